@@ -1,31 +1,221 @@
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * Multithreaded Bulletin Board Server
  * Accepts TCP connections and manages board
  */
 public class BBoard {
+    /**
+     * How client connections are served.
+     * THREAD: one platform thread per client with blocking I/O (the default).
+     * VIRTUAL: one virtual thread per client with blocking I/O (Java 21+).
+     * NIO: a selector event loop plus a small worker pool.
+     */
+    public enum ConnectionMode { THREAD, VIRTUAL, NIO }
+
     private final int port;
     private final Board board;
     private volatile boolean running = true;
 
+    private ConnectionMode mode = ConnectionMode.THREAD;
+    private int workerThreads = Runtime.getRuntime().availableProcessors();
+    private NioServer nioServer;
+
+    private Path dataDirectory;
+    private WriteAheadLog.Durability durability = WriteAheadLog.Durability.GROUP;
+    private int snapshotIntervalSeconds = 60;
+    private BoardPersistence persistence;
+
+    private int subscriberQueue = 10_000;
+    private Subscription.OverflowPolicy slowSubscriber = Subscription.OverflowPolicy.DROP;
+    private SubscriptionHub hub;
+
+    private ServerMetrics metrics;
+
+    private int responseCacheMegabytes = 16;
+    private ResponseCache responseCache;
+
+    private int binaryPort;
+    private volatile ServerSocket binarySocket;
+
+    private ScheduledExecutorService expirer;
+
+    private int replicationPort;
+    private int replicationBacklogMegabytes = 16;
+    private ReplicationLeader replicationLeader;
+    private String leaderHost;
+    private int leaderPort;
+    private ReplicationFollower replicationFollower;
+
     public BBoard(int port, int boardWidth, int boardHeight,
                   int noteWidth, int noteHeight, Set<String> colors) {
+        this(port, boardWidth, boardHeight, noteWidth, noteHeight, colors, 1);
+    }
+
+    public BBoard(int port, int boardWidth, int boardHeight,
+                  int noteWidth, int noteHeight, Set<String> colors, int shards) {
+        this(port, boardWidth, boardHeight, noteWidth, noteHeight, colors, shards, Board.NoteStorage.OBJECTS);
+    }
+
+    public BBoard(int port, int boardWidth, int boardHeight,
+                  int noteWidth, int noteHeight, Set<String> colors, int shards, Board.NoteStorage storage) {
         this.port = port;
-        this.board = new Board(boardWidth, boardHeight, noteWidth, noteHeight, colors);
+        this.board = new Board(boardWidth, boardHeight, noteWidth, noteHeight, colors, shards, storage);
+    }
+
+    public void setConnectionMode(ConnectionMode mode) {
+        this.mode = mode;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * Keeps the board in this directory so it survives restarts; null (the default)
+     * keeps it in memory only.
+     */
+    public void setDataDirectory(Path dataDirectory) {
+        this.dataDirectory = dataDirectory;
+    }
+
+    public void setDurability(WriteAheadLog.Durability durability) {
+        this.durability = durability;
+    }
+
+    /**
+     * Seconds between snapshots of a persistent board, 0 to only snapshot on shutdown.
+     */
+    public void setSnapshotInterval(int seconds) {
+        this.snapshotIntervalSeconds = seconds;
+    }
+
+    /**
+     * Maximum number of events waiting to be sent to one subscriber.
+     */
+    public void setSubscriberQueue(int events) {
+        this.subscriberQueue = events;
+    }
+
+    /**
+     * What happens to a subscriber whose queue is full: DROP counts the lost events
+     * and reports them with EVENT DROPPED, DISCONNECT closes the connection.
+     */
+    public void setSlowSubscriberPolicy(Subscription.OverflowPolicy policy) {
+        this.slowSubscriber = policy;
+    }
+
+    /**
+     * Memory for cached GET responses shared by all clients, in megabytes; 0 turns
+     * the cache off.
+     */
+    public void setResponseCacheSize(int megabytes) {
+        this.responseCacheMegabytes = megabytes;
+    }
+
+    /**
+     * Port for clients of the binary protocol (see BinaryProtocol), 0 for none.
+     */
+    public void setBinaryPort(int binaryPort) {
+        this.binaryPort = binaryPort;
+    }
+
+    /**
+     * TTL in seconds of notes posted without one, 0 (the default) for none.
+     */
+    public void setDefaultTtl(long seconds) {
+        board.setDefaultTtl(seconds);
+    }
+
+    /**
+     * Whether pinned notes are kept past their TTL until their last pin is removed.
+     */
+    public void setPinnedNotesExempt(boolean exempt) {
+        board.setPinnedNotesExempt(exempt);
+    }
+
+    /**
+     * Port on which follower servers connect to replicate this board, 0 (the default)
+     * for none.
+     */
+    public void setReplicationPort(int replicationPort) {
+        this.replicationPort = replicationPort;
+    }
+
+    /**
+     * Log kept in memory for followers to catch up from, in megabytes; a follower
+     * further behind than this reloads the whole board.
+     */
+    public void setReplicationBacklog(int megabytes) {
+        this.replicationBacklogMegabytes = megabytes;
+    }
+
+    /**
+     * Makes this server a read-only follower of the leader at host:port, which must
+     * have the same board size and colors; null host (the default) for none.
+     */
+    public void setLeader(String host, int port) {
+        this.leaderHost = host;
+        this.leaderPort = port;
     }
 
     public void start() {
+        if (leaderHost != null && (dataDirectory != null || replicationPort > 0)) {
+            System.err.println("A follower takes its board from the leader and cannot persist or lead it");
+            return;
+        }
+        if (dataDirectory != null && !openPersistence()) {
+            return;
+        }
+        if (replicationPort > 0 && !startReplication()) {
+            return;
+        }
+        if (leaderHost != null) {
+            // Its notes expire through the leader's log instead
+            replicationFollower = new ReplicationFollower(board, leaderHost, leaderPort);
+            replicationFollower.start();
+        } else {
+            startExpiry();
+        }
+        hub = new SubscriptionHub(board, subscriberQueue, slowSubscriber);
+        metrics = new ServerMetrics(board);
+        if (responseCacheMegabytes > 0) {
+            responseCache = new ResponseCache(responseCacheMegabytes * (1L << 20));
+            metrics.setResponseCache(responseCache);
+        }
+        metrics.setReplicationLeader(replicationLeader);
+        metrics.setReplicationFollower(replicationFollower);
+        registerMetrics();
+        if (binaryPort > 0 && !startBinary()) {
+            return;
+        }
+
+        if (mode == ConnectionMode.NIO) {
+            startNio();
+            return;
+        }
+
+        Executor executor = mode == ConnectionMode.VIRTUAL
+                ? virtualThreadExecutor()
+                : task -> new Thread(task).start();
+
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Bulletin Board Server started on port " + port);
-            System.out.println("Board dimensions: " + board.getWidth() + "x" + board.getHeight());
-            System.out.println("Note dimensions: " + board.getNoteWidth() + "x" + board.getNoteHeight());
-            System.out.println("Valid colors: " + board.getValidColors());
-            System.out.println("Waiting for clients...\n");
+            printBanner();
 
             int clientId = 0;
 
@@ -33,11 +223,15 @@ public class BBoard {
                 Socket clientSocket = serverSocket.accept();
                 clientId++;
 
-                System.out.println("Client #" + clientId + " connected from " +
-                        clientSocket.getInetAddress());
+                if (Log.isInfoEnabled()) {
+                    Log.info("Client #" + clientId + " connected from " + clientSocket.getInetAddress());
+                }
 
-                ClientHandler handler = new ClientHandler(clientSocket, board, clientId);
-                new Thread(handler).start();
+                ClientHandler handler = new ClientHandler(clientSocket, board, hub, metrics, responseCache, clientId);
+                if (mode == ConnectionMode.VIRTUAL) {
+                    handler.setEventExecutor(executor);
+                }
+                executor.execute(handler);
             }
 
         } catch (IOException e) {
@@ -46,14 +240,319 @@ public class BBoard {
         }
     }
 
+    /**
+     * Opens the binary protocol port and accepts its clients on a background thread.
+     * Each client gets its own thread (virtual in VIRTUAL mode, platform otherwise);
+     * their parallel reads share a pool of workerThreads threads, which only build the
+     * responses for the client's own writer thread to send.
+     * Returns false if the port could not be opened.
+     */
+    private boolean startBinary() {
+        try {
+            binarySocket = new ServerSocket(binaryPort);
+        } catch (IOException e) {
+            System.err.println("Could not open binary port " + binaryPort + ": " + e.getMessage());
+            return false;
+        }
+        Executor executor = mode == ConnectionMode.VIRTUAL
+                ? virtualThreadExecutor()
+                : task -> new Thread(task).start();
+        Executor readers = Executors.newFixedThreadPool(workerThreads);
+
+        Thread acceptor = new Thread(() -> {
+            int clientId = 0;
+            try (ServerSocket serverSocket = binarySocket) {
+                while (running) {
+                    Socket clientSocket = serverSocket.accept();
+                    clientId++;
+                    if (Log.isInfoEnabled()) {
+                        Log.info("Binary client #" + clientId + " connected from " + clientSocket.getInetAddress());
+                    }
+                    BinaryClientHandler handler = new BinaryClientHandler(clientSocket, board, metrics, readers, clientId);
+                    if (mode == ConnectionMode.VIRTUAL) {
+                        handler.setWriterExecutor(executor);
+                    }
+                    executor.execute(handler);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Binary server error: " + e.getMessage());
+                }
+            }
+        }, "binary-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return true;
+    }
+
+    /**
+     * Removes expired notes once per tick of the board's expiry wheel on a background
+     * thread. Started after recovery, so restored notes already past their time go on
+     * the first tick.
+     */
+    private void startExpiry() {
+        expirer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread t = new Thread(task, "note-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        long tick = board.getExpiryTickMillis();
+        expirer.scheduleWithFixedDelay(() -> {
+            try {
+                int removed = board.expireNotes(System.currentTimeMillis());
+                if (removed > 0 && Log.isDebugEnabled()) {
+                    Log.debug("Expired " + removed + " note(s)");
+                }
+            } catch (RuntimeException e) {
+                // Keep expiring; a failed pass leaves its notes for the next
+                if (Log.isEnabled(Log.Level.ERROR)) {
+                    Log.error("Note expiry failed: " + e);
+                }
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Streams the board's log to followers from the replication port. Without
+     * persistence the log is kept in memory only, for the followers.
+     * Returns false if the port could not be opened.
+     */
+    private boolean startReplication() {
+        WriteAheadLog log = persistence != null ? persistence.getLog() : WriteAheadLog.inMemory();
+        if (persistence == null) {
+            board.attachLog(log);
+        }
+        replicationLeader = new ReplicationLeader(board, replicationPort, replicationBacklogMegabytes << 20);
+        log.setTap(replicationLeader);
+        try {
+            replicationLeader.start();
+        } catch (IOException e) {
+            System.err.println("Could not open replication port " + replicationPort + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Restores the board from the data directory and keeps logging to it.
+     * Returns false if the stored state could not be read.
+     */
+    private boolean openPersistence() {
+        persistence = new BoardPersistence(board, dataDirectory, durability, snapshotIntervalSeconds);
+        try {
+            persistence.open();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not restore board from " + dataDirectory + ": " + e.getMessage());
+            return false;
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                persistence.snapshot();
+                persistence.close();
+            } catch (IOException e) {
+                System.err.println("Could not save board on shutdown: " + e.getMessage());
+            }
+        }));
+        return true;
+    }
+
+    /**
+     * Publishes the server metrics over JMX as BBoard:type=ServerMetrics,port=N.
+     * STATS keeps working if registration fails.
+     */
+    private void registerMetrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("BBoard:type=ServerMetrics,port=" + port));
+        } catch (JMException e) {
+            System.err.println("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    private void startNio() {
+        nioServer = new NioServer(port, board, hub, metrics, responseCache, workerThreads);
+        try {
+            printBanner();
+            nioServer.start();
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void printBanner() {
+        System.out.println("Bulletin Board Server started on port " + port
+                + (binaryPort > 0 ? " (binary protocol on port " + binaryPort + ")" : ""));
+        System.out.println("Board dimensions: " + board.getWidth() + "x" + board.getHeight());
+        System.out.println("Note dimensions: " + board.getNoteWidth() + "x" + board.getNoteHeight());
+        System.out.println("Valid colors: " + board.getValidColors());
+        System.out.println("Shards: " + board.getShardCount());
+        System.out.println("Note storage: " + board.getNoteStorage().name().toLowerCase());
+        System.out.println("Connection mode: " + mode.name().toLowerCase());
+        System.out.println("Log level: " + Log.getLevel().name().toLowerCase());
+        if (dataDirectory == null) {
+            System.out.println("Persistence: off");
+        } else {
+            System.out.println("Persistence: " + dataDirectory + " (" + durability.name().toLowerCase()
+                    + (snapshotIntervalSeconds > 0 ? ", snapshot every " + snapshotIntervalSeconds + "s" : "") + ")");
+        }
+        System.out.println("Subscriber queue: " + subscriberQueue + " events ("
+                + slowSubscriber.name().toLowerCase() + " when full)");
+        System.out.println("GET response cache: "
+                + (responseCacheMegabytes > 0 ? responseCacheMegabytes + " MB" : "off"));
+        if (replicationPort > 0) {
+            System.out.println("Replication: leader on port " + replicationPort
+                    + " (" + replicationBacklogMegabytes + " MB backlog)");
+        } else if (leaderHost != null) {
+            System.out.println("Replication: read-only follower of " + leaderHost + ":" + leaderPort);
+        } else {
+            System.out.println("Replication: off");
+        }
+        System.out.println("Default note TTL: "
+                + (board.getDefaultTtl() > 0 ? board.getDefaultTtl() + "s" : "none")
+                + (board.isPinnedNotesExempt() ? " (pinned notes exempt)" : ""));
+        System.out.println("Waiting for clients...\n");
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor reflectively so the server
+     * still builds and runs on JDKs without virtual threads, where it falls back to
+     * a cached platform thread pool.
+     */
+    private static Executor virtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not available on this JVM, using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     public void stop() {
         running = false;
+        if (expirer != null) {
+            expirer.shutdown();
+        }
+        try {
+            if (replicationLeader != null) {
+                replicationLeader.close();
+            }
+            if (replicationFollower != null) {
+                replicationFollower.close();
+            }
+        } catch (IOException e) {
+            // Stopping anyway
+        }
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+        ServerSocket binary = binarySocket;
+        if (binary != null) {
+            try {
+                binary.close();
+            } catch (IOException e) {
+                // Stopping anyway
+            }
+        }
     }
 
     public static void main(String[] args) {
-        if (args.length < 6) {
+        // Options may appear anywhere; everything else is positional
+        int shards = 1;
+        Board.NoteStorage storage = Board.NoteStorage.OBJECTS;
+        ConnectionMode mode = ConnectionMode.THREAD;
+        int workers = Runtime.getRuntime().availableProcessors();
+        Path dataDir = null;
+        WriteAheadLog.Durability durability = WriteAheadLog.Durability.GROUP;
+        int snapshotInterval = 60;
+        int subscriberQueue = 10_000;
+        Subscription.OverflowPolicy slowSubscriber = Subscription.OverflowPolicy.DROP;
+        int responseCache = 16;
+        int binaryPort = 0;
+        long defaultTtl = 0;
+        boolean pinnedExempt = false;
+        int replicationPort = 0;
+        int replicationBacklog = 16;
+        String follow = null;
+        List<String> positional = new ArrayList<>();
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--shards=")) {
+                    shards = Integer.parseInt(arg.substring(9));
+                } else if (arg.startsWith("--note-storage=")) {
+                    storage = Board.NoteStorage.valueOf(arg.substring(15).toUpperCase());
+                } else if (arg.startsWith("--mode=")) {
+                    mode = ConnectionMode.valueOf(arg.substring(7).toUpperCase());
+                } else if (arg.startsWith("--workers=")) {
+                    workers = Integer.parseInt(arg.substring(10));
+                } else if (arg.startsWith("--log-level=")) {
+                    Log.setLevel(Log.Level.valueOf(arg.substring(12).toUpperCase()));
+                } else if (arg.startsWith("--data-dir=")) {
+                    dataDir = Paths.get(arg.substring(11));
+                } else if (arg.startsWith("--durability=")) {
+                    durability = WriteAheadLog.Durability.valueOf(arg.substring(13).toUpperCase());
+                } else if (arg.startsWith("--snapshot-interval=")) {
+                    snapshotInterval = Integer.parseInt(arg.substring(20));
+                } else if (arg.startsWith("--subscriber-queue=")) {
+                    subscriberQueue = Integer.parseInt(arg.substring(19));
+                } else if (arg.startsWith("--slow-subscriber=")) {
+                    slowSubscriber = Subscription.OverflowPolicy.valueOf(arg.substring(18).toUpperCase());
+                } else if (arg.startsWith("--response-cache=")) {
+                    responseCache = Integer.parseInt(arg.substring(17));
+                } else if (arg.startsWith("--binary-port=")) {
+                    binaryPort = Integer.parseInt(arg.substring(14));
+                } else if (arg.startsWith("--default-ttl=")) {
+                    defaultTtl = Long.parseLong(arg.substring(14));
+                } else if (arg.equals("--ttl-exempt-pinned")) {
+                    pinnedExempt = true;
+                } else if (arg.startsWith("--replication-port=")) {
+                    replicationPort = Integer.parseInt(arg.substring(19));
+                } else if (arg.startsWith("--replication-backlog=")) {
+                    replicationBacklog = Integer.parseInt(arg.substring(22));
+                } else if (arg.startsWith("--follow=")) {
+                    follow = arg.substring(9);
+                } else {
+                    positional.add(arg);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Error: Invalid numeric argument");
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: --mode must be thread, virtual or nio, " +
+                    "--note-storage one of objects, columns, " +
+                    "--log-level one of off, error, warn, info, debug, trace, " +
+                    "--durability one of fsync, group, async, " +
+                    "--slow-subscriber one of drop, disconnect");
+            System.exit(1);
+        }
+        args = positional.toArray(new String[0]);
+
+        String leaderHost = null;
+        int leaderPort = 0;
+        if (follow != null) {
+            int colon = follow.lastIndexOf(':');
+            try {
+                leaderHost = colon > 0 ? follow.substring(0, colon) : null;
+                leaderPort = Integer.parseInt(follow.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                leaderHost = null;
+            }
+        }
+
+        if (args.length < 6 || shards < 1 || workers < 1 || snapshotInterval < 0 || subscriberQueue < 1
+                || responseCache < 0 || binaryPort < 0 || defaultTtl < 0 || replicationPort < 0
+                || replicationBacklog < 1 || replicationBacklog > 1024
+                || (follow != null && (leaderHost == null || leaderPort < 1))) {
             System.err.println("Usage: java BBoard <port> <board_width> <board_height> " +
-                    "<note_width> <note_height> <color1> ... <colorN>");
+                    "<note_width> <note_height> <color1> ... <colorN> " +
+                    "[--shards=N] [--note-storage=objects|columns] [--mode=thread|virtual|nio] [--workers=N] " +
+                    "[--log-level=off|error|warn|info|debug|trace] " +
+                    "[--data-dir=DIR] [--durability=fsync|group|async] [--snapshot-interval=SECONDS] " +
+                    "[--subscriber-queue=N] [--slow-subscriber=drop|disconnect] [--response-cache=MB] " +
+                    "[--binary-port=PORT] [--default-ttl=SECONDS] [--ttl-exempt-pinned] " +
+                    "[--replication-port=PORT] [--replication-backlog=MB] [--follow=HOST:PORT]");
             System.exit(1);
         }
 
@@ -69,7 +568,21 @@ public class BBoard {
                 colors.add(args[i].toLowerCase());
             }
 
-            BBoard server = new BBoard(port, boardWidth, boardHeight, noteWidth, noteHeight, colors);
+            BBoard server = new BBoard(port, boardWidth, boardHeight, noteWidth, noteHeight, colors, shards, storage);
+            server.setConnectionMode(mode);
+            server.setWorkerThreads(workers);
+            server.setDataDirectory(dataDir);
+            server.setDurability(durability);
+            server.setSnapshotInterval(snapshotInterval);
+            server.setSubscriberQueue(subscriberQueue);
+            server.setSlowSubscriberPolicy(slowSubscriber);
+            server.setResponseCacheSize(responseCache);
+            server.setBinaryPort(binaryPort);
+            server.setDefaultTtl(defaultTtl);
+            server.setPinnedNotesExempt(pinnedExempt);
+            server.setReplicationPort(replicationPort);
+            server.setReplicationBacklog(replicationBacklog);
+            server.setLeader(leaderHost, leaderPort);
             server.start();
 
         } catch (NumberFormatException e) {
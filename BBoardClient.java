@@ -0,0 +1,521 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Client for the binary protocol (see BinaryProtocol), served on BBoard's --binary-port.
+ *
+ * Every command has a blocking method and an ...Async one returning a future.
+ * Async requests are buffered until flush() or the next blocking call, so a client
+ * can pipeline many requests per write; a background thread matches responses to
+ * requests by id, so they may complete out of order. Safe for use by many threads.
+ *
+ *   try (BBoardClient client = BBoardClient.connect("localhost", 5001)) {
+ *       client.post(10, 10, "red", "Meeting at noon");
+ *       for (BBoardClient.NoteEntry note : client.getNotes("red", null, null, null, -1, 0).items) ...
+ *   }
+ */
+public class BBoardClient implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Outcome of a POST, PIN, UNPIN, SHAKE or CLEAR, or of one item of a batch.
+     */
+    public static final class Result {
+        public final int status;
+        public final String text;
+
+        Result(int status, String text) {
+            this.status = status;
+            this.text = text;
+        }
+
+        public boolean isOk() {
+            return status == BinaryProtocol.STATUS_OK;
+        }
+
+        /**
+         * The error code, such as OVERLAP_ERROR, or null if the command succeeded.
+         */
+        public String errorCode() {
+            return BinaryProtocol.errorCode(status);
+        }
+
+        /**
+         * The same line the text protocol would have answered.
+         */
+        @Override
+        public String toString() {
+            return isOk() ? Protocol.RESP_OK + " " + text : Protocol.RESP_ERROR + " " + errorCode() + " " + text;
+        }
+    }
+
+    /**
+     * Thrown (or completing a future exceptionally) when a GET, GET PINS or STATS is refused.
+     */
+    public static final class ServerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final Result result;
+
+        ServerException(Result result) {
+            super(result.toString());
+            this.result = result;
+        }
+    }
+
+    public static final class NoteEntry {
+        public final int x;
+        public final int y;
+        public final String color;
+        public final boolean pinned;
+        public final String message;
+
+        NoteEntry(int x, int y, String color, boolean pinned, String message) {
+            this.x = x;
+            this.y = y;
+            this.color = color;
+            this.pinned = pinned;
+            this.message = message;
+        }
+    }
+
+    public static final class Pin {
+        public final int x;
+        public final int y;
+
+        Pin(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    /**
+     * One page of a GET; next is the offset of the following page, or -1 if this was the last.
+     */
+    public static final class Page<T> {
+        public final List<T> items;
+        public final int next;
+
+        Page(List<T> items, int next) {
+            this.items = items;
+            this.next = next;
+        }
+    }
+
+    /**
+     * POST, PIN and UNPIN commands to send as one BATCH.
+     */
+    public static final class Batch {
+        private final List<Item> items = new ArrayList<>();
+
+        private static final class Item {
+            final byte type;
+            final int x;
+            final int y;
+            final String color;
+            final String message;
+            final int ttlSeconds;
+
+            Item(byte type, int x, int y, String color, String message, int ttlSeconds) {
+                this.type = type;
+                this.x = x;
+                this.y = y;
+                this.color = color;
+                this.message = message;
+                this.ttlSeconds = ttlSeconds;
+            }
+        }
+
+        public Batch post(int x, int y, String color, String message) {
+            items.add(new Item(BinaryProtocol.OP_POST, x, y, color, message, 0));
+            return this;
+        }
+
+        /**
+         * A POST whose note expires after ttlSeconds; 0 keeps it even if the server
+         * has a default TTL.
+         */
+        public Batch post(int x, int y, String color, String message, int ttlSeconds) {
+            items.add(new Item(BinaryProtocol.OP_POST_TTL, x, y, color, message, ttlSeconds));
+            return this;
+        }
+
+        public Batch pin(int x, int y) {
+            items.add(new Item(BinaryProtocol.OP_PIN, x, y, null, null, 0));
+            return this;
+        }
+
+        public Batch unpin(int x, int y) {
+            items.add(new Item(BinaryProtocol.OP_UNPIN, x, y, null, null, 0));
+            return this;
+        }
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final BinaryProtocol.FrameBuilder frame = new BinaryProtocol.FrameBuilder();
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    private final Map<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+    private volatile IOException failure;
+
+    private final int boardWidth;
+    private final int boardHeight;
+    private final int noteWidth;
+    private final int noteHeight;
+    private final List<String> colors;
+    private final Map<String, Integer> colorIds = new HashMap<>();
+
+    private BBoardClient(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+
+        ByteBuffer init = BinaryProtocol.readFrame(in);
+        if (init == null || init.getInt() != 0 || init.get() != BinaryProtocol.OP_INIT) {
+            throw new IOException("Expected INIT from server");
+        }
+        boardWidth = init.getInt();
+        boardHeight = init.getInt();
+        noteWidth = init.getInt();
+        noteHeight = init.getInt();
+        int count = init.get() & 0xFF;
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(BinaryProtocol.getString(init));
+            colorIds.put(names.get(i), i);
+        }
+        colors = Collections.unmodifiableList(names);
+
+        Thread reader = new Thread(this::readResponses, "bboard-client-" + socket.getLocalPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public static BBoardClient connect(String host, int port) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            return new BBoardClient(socket);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public int getBoardWidth() { return boardWidth; }
+    public int getBoardHeight() { return boardHeight; }
+    public int getNoteWidth() { return noteWidth; }
+    public int getNoteHeight() { return noteHeight; }
+
+    /**
+     * The board's colors, in the order the protocol numbers them.
+     */
+    public List<String> getColors() { return colors; }
+
+    // ---- commands ----
+
+    public Result post(int x, int y, String color, String message) throws IOException {
+        return await(postAsync(x, y, color, message));
+    }
+
+    public CompletableFuture<Result> postAsync(int x, int y, String color, String message) {
+        return post(BinaryProtocol.OP_POST, x, y, color, message, 0);
+    }
+
+    /**
+     * POSTs a note that expires after ttlSeconds; 0 keeps it even if the server has a
+     * default TTL.
+     */
+    public Result post(int x, int y, String color, String message, int ttlSeconds) throws IOException {
+        return await(postAsync(x, y, color, message, ttlSeconds));
+    }
+
+    public CompletableFuture<Result> postAsync(int x, int y, String color, String message, int ttlSeconds) {
+        return post(BinaryProtocol.OP_POST_TTL, x, y, color, message, ttlSeconds);
+    }
+
+    private CompletableFuture<Result> post(byte opcode, int x, int y, String color, String message,
+                                           int ttlSeconds) {
+        int colorId = colorId(color);
+        if (colorId < 0) {
+            // Same answer the server gives, without the round trip
+            return CompletableFuture.completedFuture(new Result(
+                    BinaryProtocol.statusOfCode(Protocol.ERR_INVALID_COLOR), color.toLowerCase()));
+        }
+        synchronized (frame) {
+            int id = begin(opcode);
+            frame.putInt(x).putInt(y).putByte(colorId).putString(message);
+            if (opcode == BinaryProtocol.OP_POST_TTL) {
+                frame.putInt(ttlSeconds);
+            }
+            return send(id, BBoardClient::result);
+        }
+    }
+
+    public Result pin(int x, int y) throws IOException {
+        return await(pinAsync(x, y));
+    }
+
+    public CompletableFuture<Result> pinAsync(int x, int y) {
+        return point(BinaryProtocol.OP_PIN, x, y);
+    }
+
+    public Result unpin(int x, int y) throws IOException {
+        return await(unpinAsync(x, y));
+    }
+
+    public CompletableFuture<Result> unpinAsync(int x, int y) {
+        return point(BinaryProtocol.OP_UNPIN, x, y);
+    }
+
+    public Result shake() throws IOException {
+        return await(simple(BinaryProtocol.OP_SHAKE));
+    }
+
+    public Result clear() throws IOException {
+        return await(simple(BinaryProtocol.OP_CLEAR));
+    }
+
+    /**
+     * GET with the same filters as the text command; null leaves a filter out (both
+     * coordinates are needed for contains). limit -1 means no limit, though the
+     * server cuts a page short when it would not fit in one frame; follow next.
+     */
+    public Page<NoteEntry> getNotes(String color, Integer containsX, Integer containsY, String refersTo,
+                                    int limit, int offset) throws IOException {
+        return await(getNotesAsync(color, containsX, containsY, refersTo, limit, offset));
+    }
+
+    public CompletableFuture<Page<NoteEntry>> getNotesAsync(String color, Integer containsX, Integer containsY,
+                                                          String refersTo, int limit, int offset) {
+        boolean byPoint = containsX != null && containsY != null;
+        int filters = (color != null ? BinaryProtocol.FILTER_COLOR : 0)
+                | (byPoint ? BinaryProtocol.FILTER_CONTAINS : 0)
+                | (refersTo != null ? BinaryProtocol.FILTER_REFERS_TO : 0);
+        synchronized (frame) {
+            int id = begin(BinaryProtocol.OP_GET);
+            frame.putByte(filters);
+            if (color != null) {
+                frame.putByte(colorId(color));
+            }
+            if (byPoint) {
+                frame.putInt(containsX).putInt(containsY);
+            }
+            if (refersTo != null) {
+                frame.putString(refersTo);
+            }
+            frame.putInt(limit).putInt(offset);
+            return send(id, response -> {
+                checkOk(response);
+                int n = response.getInt();
+                List<NoteEntry> notes = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    int x = response.getInt();
+                    int y = response.getInt();
+                    String noteColor = colors.get(response.get() & 0xFF);
+                    boolean pinned = response.get() != 0;
+                    notes.add(new NoteEntry(x, y, noteColor, pinned, BinaryProtocol.getString(response)));
+                }
+                return new Page<>(notes, response.getInt());
+            });
+        }
+    }
+
+    public Page<Pin> getPins(int limit, int offset) throws IOException {
+        return await(getPinsAsync(limit, offset));
+    }
+
+    public CompletableFuture<Page<Pin>> getPinsAsync(int limit, int offset) {
+        synchronized (frame) {
+            int id = begin(BinaryProtocol.OP_GET_PINS);
+            frame.putInt(limit).putInt(offset);
+            return send(id, response -> {
+                checkOk(response);
+                int n = response.getInt();
+                List<Pin> pins = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    pins.add(new Pin(response.getInt(), response.getInt()));
+                }
+                return new Page<>(pins, response.getInt());
+            });
+        }
+    }
+
+    /**
+     * Sends the batch as one BATCH; with atomic, all of it is applied or none.
+     * Returns one result per item, in order.
+     */
+    public List<Result> batch(Batch batch, boolean atomic) throws IOException {
+        return await(batchAsync(batch, atomic));
+    }
+
+    public CompletableFuture<List<Result>> batchAsync(Batch batch, boolean atomic) {
+        synchronized (frame) {
+            int id = begin(BinaryProtocol.OP_BATCH);
+            frame.putByte(atomic ? 1 : 0).putInt(batch.items.size());
+            for (Batch.Item item : batch.items) {
+                frame.putByte(item.type).putInt(item.x).putInt(item.y);
+                if (item.type == BinaryProtocol.OP_POST) {
+                    frame.putByte(colorId(item.color)).putString(item.message);
+                } else if (item.type == BinaryProtocol.OP_POST_TTL) {
+                    frame.putByte(colorId(item.color)).putString(item.message).putInt(item.ttlSeconds);
+                }
+            }
+            return send(id, response -> {
+                checkOk(response);
+                int n = response.getInt();
+                List<Result> results = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    results.add(new Result(response.get(), BinaryProtocol.getString(response)));
+                }
+                return results;
+            });
+        }
+    }
+
+    /**
+     * The server's STAT lines.
+     */
+    public List<String> stats() throws IOException {
+        CompletableFuture<List<String>> future;
+        synchronized (frame) {
+            int id = begin(BinaryProtocol.OP_STATS);
+            future = send(id, response -> {
+                checkOk(response);
+                int n = response.getInt();
+                List<String> lines = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    lines.add(BinaryProtocol.getString(response));
+                }
+                return lines;
+            });
+        }
+        return await(future);
+    }
+
+    /**
+     * Sends every buffered request.
+     */
+    public void flush() throws IOException {
+        synchronized (frame) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Says goodbye to the server, once every earlier request is answered, and closes.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (failure == null) {
+                await(simple(BinaryProtocol.OP_DISCONNECT));
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    // ---- framing ----
+
+    private int colorId(String color) {
+        Integer id = colorIds.get(color.toLowerCase());
+        return id != null ? id : BinaryProtocol.NO_COLOR;
+    }
+
+    private CompletableFuture<Result> point(byte opcode, int x, int y) {
+        synchronized (frame) {
+            int id = begin(opcode);
+            frame.putInt(x).putInt(y);
+            return send(id, BBoardClient::result);
+        }
+    }
+
+    private CompletableFuture<Result> simple(byte opcode) {
+        synchronized (frame) {
+            return send(begin(opcode), BBoardClient::result);
+        }
+    }
+
+    // Starts a request frame; the caller holds the frame lock until send
+    private int begin(byte opcode) {
+        int id = nextRequestId.getAndIncrement();
+        frame.start(id, opcode);
+        return id;
+    }
+
+    // Registers the request, buffers its frame and maps its response with decode
+    private <T> CompletableFuture<T> send(int id, Function<ByteBuffer, T> decode) {
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        pending.put(id, response);
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            frame.writeTo(out);
+        } catch (IOException e) {
+            pending.remove(id);
+            response.completeExceptionally(e);
+        }
+        return response.thenApply(decode);
+    }
+
+    private static Result result(ByteBuffer response) {
+        int status = response.get(4);
+        return new Result(status, BinaryProtocol.getString(response));
+    }
+
+    private static void checkOk(ByteBuffer response) {
+        int status = response.get(4);
+        if (status != BinaryProtocol.STATUS_OK) {
+            throw new CompletionException(new ServerException(
+                    new Result(status, BinaryProtocol.getString(response))));
+        }
+    }
+
+    // Flushes pending requests, then waits for this one
+    private <T> T await(CompletableFuture<T> future) throws IOException {
+        flush();
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void readResponses() {
+        try {
+            ByteBuffer response;
+            while ((response = BinaryProtocol.readFrame(in)) != null) {
+                int id = response.getInt();
+                response.get();
+                CompletableFuture<ByteBuffer> future = pending.remove(id);
+                if (future != null) {
+                    future.complete(response);
+                }
+            }
+            failure = new EOFException("Server closed the connection");
+        } catch (IOException e) {
+            failure = e;
+        }
+        for (CompletableFuture<ByteBuffer> future : pending.values()) {
+            future.completeExceptionally(failure);
+        }
+        pending.clear();
+    }
+}
@@ -0,0 +1,520 @@
+import java.io.*;
+import java.net.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Serves one client of the binary protocol (see BinaryProtocol) on blocking streams.
+ * Requests are read and applied in order on this thread, except runs of pipelined
+ * GET, GET_PINS and STATS: those are handed to the shared reader pool so they run in
+ * parallel, and any later request first waits for them to be answered.
+ * Pool threads only build response frames; the connection's own writer, started on
+ * its first pooled read, writes them, so a client that stops reading blocks its own
+ * threads and never the pool. Responses are written whole while holding the output
+ * stream's lock; in-order ones are flushed once no further request is waiting, like
+ * ClientHandler does, and pooled ones once the writer has no more queued.
+ */
+public class BinaryClientHandler implements Runnable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Pooled reads one connection may have unanswered, and bytes of their responses it
+    // may have waiting for its writer, before it stops reading requests
+    private static final int MAX_READS_IN_FLIGHT = 16;
+    private static final int MAX_BUILT_BYTES = 1 << 20;
+
+    private final Socket socket;
+    private final Board board;
+    private final ServerMetrics metrics;
+    private final Executor readers;
+    private final int clientId;
+
+    private DataInputStream in;
+    private OutputStream out;
+    // Builds responses of requests handled on this thread
+    private final BinaryProtocol.FrameBuilder frame = new BinaryProtocol.FrameBuilder();
+
+    // Guarded by this: reads handed to the pool and not yet written, and the frames of
+    // those already built, in the order they finished
+    private int readsInFlight;
+    private final ArrayDeque<BinaryProtocol.FrameBuilder> built = new ArrayDeque<>();
+    private long builtBytes;
+    private boolean writerStarted;
+    private boolean closed;
+    private Executor writerExecutor;
+
+    public BinaryClientHandler(Socket socket, Board board, ServerMetrics metrics, Executor readers, int clientId) {
+        this.socket = socket;
+        this.board = board;
+        this.metrics = metrics;
+        this.readers = readers;
+        this.clientId = clientId;
+    }
+
+    /**
+     * Sets where the writer of pooled responses runs; by default it gets its own daemon thread.
+     */
+    public void setWriterExecutor(Executor writerExecutor) {
+        this.writerExecutor = writerExecutor;
+    }
+
+    @Override
+    public void run() {
+        if (metrics != null) {
+            metrics.connectionOpened();
+        }
+        try {
+            // Responses are small and often written one at a time by the reader pool
+            socket.setTcpNoDelay(true);
+            InputStream input = socket.getInputStream();
+            OutputStream output = socket.getOutputStream();
+            if (metrics != null) {
+                input = metrics.countIn(input);
+                output = metrics.countOut(output);
+            }
+            in = new DataInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+            out = new BufferedOutputStream(output, BUFFER_SIZE);
+
+            sendInit();
+
+            ByteBuffer request;
+            while ((request = BinaryProtocol.readFrame(in)) != null) {
+                int requestId = request.getInt();
+                byte opcode = request.get();
+
+                // A lone read is cheaper to run here than to hand off
+                if (isRead(opcode) && (readsPending() || nextIsRead())) {
+                    startRead();
+                    ByteBuffer payload = request;
+                    readers.execute(() -> runRead(requestId, opcode, payload));
+                    continue;
+                }
+
+                awaitReads();
+                handle(requestId, opcode, request, frame);
+                synchronized (out) {
+                    frame.writeTo(out);
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+                if (opcode == BinaryProtocol.OP_DISCONNECT) {
+                    break;
+                }
+            }
+            awaitReads();
+            synchronized (out) {
+                out.flush();
+            }
+
+        } catch (IOException e) {
+            if (Log.isWarnEnabled()) {
+                log(Log.Level.WARN, "Connection error: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cleanup();
+        }
+    }
+
+    private void sendInit() throws IOException {
+        int colors = board.colorCount();
+        frame.start(0, BinaryProtocol.OP_INIT)
+                .putInt(board.getWidth()).putInt(board.getHeight())
+                .putInt(board.getNoteWidth()).putInt(board.getNoteHeight())
+                .putByte(colors);
+        for (int i = 0; i < colors; i++) {
+            frame.putString(board.colorName(i));
+        }
+        synchronized (out) {
+            frame.writeTo(out);
+            out.flush();
+        }
+        if (Log.isDebugEnabled()) {
+            log(Log.Level.DEBUG, "Sent INIT");
+        }
+    }
+
+    // ---- parallel reads ----
+
+    private static boolean isRead(int opcode) {
+        return opcode == BinaryProtocol.OP_GET || opcode == BinaryProtocol.OP_GET_PINS
+                || opcode == BinaryProtocol.OP_STATS;
+    }
+
+    // Whether the opcode changes the board, which a read-only follower refuses
+    private static boolean isChange(int opcode) {
+        return opcode == BinaryProtocol.OP_POST || opcode == BinaryProtocol.OP_POST_TTL
+                || opcode == BinaryProtocol.OP_PIN || opcode == BinaryProtocol.OP_UNPIN
+                || opcode == BinaryProtocol.OP_SHAKE || opcode == BinaryProtocol.OP_CLEAR
+                || opcode == BinaryProtocol.OP_BATCH;
+    }
+
+    // Whether the next request has already arrived and is a read too
+    private boolean nextIsRead() throws IOException {
+        if (in.available() < 9) {
+            return false;
+        }
+        in.mark(9);
+        in.skipBytes(8);
+        int opcode = in.read();
+        in.reset();
+        return isRead(opcode);
+    }
+
+    private synchronized boolean readsPending() {
+        return readsInFlight > 0;
+    }
+
+    // Waits until the connection has room for another pooled read, so a client that
+    // sends reads without taking their responses holds a bounded amount of memory
+    private synchronized void startRead() throws InterruptedException {
+        while (readsInFlight >= MAX_READS_IN_FLIGHT || builtBytes >= MAX_BUILT_BYTES) {
+            wait();
+        }
+        readsInFlight++;
+        if (!writerStarted) {
+            writerStarted = true;
+            if (writerExecutor != null) {
+                writerExecutor.execute(this::writeReads);
+            } else {
+                Thread thread = new Thread(this::writeReads, "binary-writer-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    private synchronized void endRead() {
+        readsInFlight--;
+        notifyAll();
+    }
+
+    // Queues a pooled read's response for the writer
+    private synchronized void readBuilt(BinaryProtocol.FrameBuilder response) {
+        built.add(response);
+        builtBytes += response.size();
+        notifyAll();
+    }
+
+    private synchronized void awaitReads() throws InterruptedException {
+        while (readsInFlight > 0) {
+            wait();
+        }
+    }
+
+    private void runRead(int requestId, byte opcode, ByteBuffer payload) {
+        BinaryProtocol.FrameBuilder response = new BinaryProtocol.FrameBuilder();
+        try {
+            handle(requestId, opcode, payload, response);
+        } catch (RuntimeException | Error e) {
+            endRead();
+            throw e;
+        }
+        readBuilt(response);
+    }
+
+    /**
+     * Writer loop: writes the responses of pooled reads as they are built, flushing
+     * once none is left, until the connection closes.
+     */
+    private void writeReads() {
+        while (true) {
+            BinaryProtocol.FrameBuilder response;
+            synchronized (this) {
+                while (built.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                response = built.poll();
+                builtBytes -= response.size();
+            }
+            try {
+                synchronized (out) {
+                    response.writeTo(out);
+                    if (!hasBuilt()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // The connection is gone; the reading thread notices and cleans up
+            } finally {
+                endRead();
+            }
+        }
+    }
+
+    private synchronized boolean hasBuilt() {
+        return !built.isEmpty();
+    }
+
+    // ---- requests ----
+
+    /**
+     * Runs one request and builds its response frame in response.
+     */
+    private void handle(int requestId, byte opcode, ByteBuffer payload, BinaryProtocol.FrameBuilder response) {
+        if (Log.isDebugEnabled()) {
+            log(Log.Level.DEBUG, "Received request " + requestId + " opcode " + opcode);
+        }
+        long started = metrics != null ? System.nanoTime() : 0;
+        ServerMetrics.Command command = null;
+        boolean batchFailed = false;
+        response.start(requestId, BinaryProtocol.STATUS_OK);
+        if (board.isReadOnly() && isChange(opcode)) {
+            text(response, Board.READ_ONLY_ERROR);
+            return;
+        }
+        try {
+            switch (opcode) {
+                case BinaryProtocol.OP_POST:
+                case BinaryProtocol.OP_POST_TTL:
+                    command = ServerMetrics.Command.POST;
+                    text(response, post(payload, opcode == BinaryProtocol.OP_POST_TTL));
+                    break;
+                case BinaryProtocol.OP_GET:
+                    command = ServerMetrics.Command.GET;
+                    get(payload, response);
+                    break;
+                case BinaryProtocol.OP_GET_PINS:
+                    command = ServerMetrics.Command.GET;
+                    getPins(payload, response);
+                    break;
+                case BinaryProtocol.OP_PIN:
+                    command = ServerMetrics.Command.PIN;
+                    text(response, board.placePin(payload.getInt(), payload.getInt()));
+                    break;
+                case BinaryProtocol.OP_UNPIN:
+                    command = ServerMetrics.Command.UNPIN;
+                    text(response, board.removePin(payload.getInt(), payload.getInt()));
+                    break;
+                case BinaryProtocol.OP_SHAKE:
+                    command = ServerMetrics.Command.SHAKE;
+                    text(response, board.shake());
+                    break;
+                case BinaryProtocol.OP_CLEAR:
+                    command = ServerMetrics.Command.CLEAR;
+                    text(response, board.clear());
+                    break;
+                case BinaryProtocol.OP_BATCH:
+                    command = ServerMetrics.Command.BATCH;
+                    batchFailed = batch(payload, response);
+                    break;
+                case BinaryProtocol.OP_STATS:
+                    stats(response);
+                    break;
+                case BinaryProtocol.OP_DISCONNECT:
+                    if (Log.isDebugEnabled()) {
+                        log(Log.Level.DEBUG, "Client disconnecting");
+                    }
+                    response.putString("Goodbye");
+                    break;
+                default:
+                    error(requestId, response, Protocol.ERR_UNKNOWN_COMMAND, "Unknown opcode: " + opcode);
+            }
+        } catch (BufferUnderflowException e) {
+            error(requestId, response, Protocol.ERR_INVALID_FORMAT, "Truncated request");
+        } catch (IllegalStateException e) {
+            // The response outgrew MAX_FRAME; GET and GET_PINS stop short of it instead
+            error(requestId, response, Protocol.ERR_INVALID_FORMAT, "Response too large, use limit and offset");
+        }
+        if (command != null && metrics != null) {
+            metrics.commandDone(command, started, batchFailed || response.status() != BinaryProtocol.STATUS_OK);
+        }
+    }
+
+    // Puts a text response's status and text into response
+    private static void text(BinaryProtocol.FrameBuilder response, String result) {
+        response.setStatus(BinaryProtocol.statusOf(result));
+        response.putString(BinaryProtocol.textOf(result));
+    }
+
+    // Replaces whatever response holds with an error
+    private static void error(int requestId, BinaryProtocol.FrameBuilder response, String code, String text) {
+        response.start(requestId, BinaryProtocol.statusOfCode(code)).putString(text);
+    }
+
+    // A color id the board does not know is passed on by number, so Board rejects it
+    private String colorName(int colorId) {
+        return colorId >= 0 && colorId < board.colorCount() ? board.colorName(colorId) : String.valueOf(colorId);
+    }
+
+    private String post(ByteBuffer payload, boolean withTtl) {
+        int x = payload.getInt();
+        int y = payload.getInt();
+        String color = colorName(payload.get());
+        String message = BinaryProtocol.getString(payload);
+        if (!withTtl) {
+            return board.postNote(x, y, color, message);
+        }
+        int ttl = payload.getInt();
+        if (ttl < 0) {
+            return TTL_ERROR;
+        }
+        return board.postNote(x, y, color, message, ttl);
+    }
+
+    private static final String TTL_ERROR =
+            "ERROR " + Protocol.ERR_INVALID_FORMAT + " TTL must be a non-negative number of seconds";
+
+    private void get(ByteBuffer payload, BinaryProtocol.FrameBuilder response) {
+        int filters = payload.get();
+        String color = null;
+        boolean byPoint = (filters & BinaryProtocol.FILTER_CONTAINS) != 0;
+        int containsX = 0;
+        int containsY = 0;
+        String refersTo = null;
+        if ((filters & BinaryProtocol.FILTER_COLOR) != 0) {
+            color = colorName(payload.get());
+        }
+        if (byPoint) {
+            containsX = payload.getInt();
+            containsY = payload.getInt();
+        }
+        if ((filters & BinaryProtocol.FILTER_REFERS_TO) != 0) {
+            refersTo = BinaryProtocol.getString(payload);
+        }
+        int limit = payload.getInt();
+        int offset = payload.getInt();
+        if (limit < -1 || limit == 0 || offset < 0) {
+            paging(response);
+            return;
+        }
+
+        // Paging as in the text GET: one result past the page tells if another follows
+        long end = limit < 0 ? Long.MAX_VALUE : (long) offset + limit;
+        int max = (int) Math.min(Integer.MAX_VALUE, end < Long.MAX_VALUE ? end + 1 : end);
+        QueryResult notes = board.query(color, byPoint, containsX, containsY, refersTo, max);
+        int stop = (int) Math.min(notes.size(), end);
+        int first = Math.min(offset, stop);
+        int countAt = response.size();
+        response.putInt(0);
+        int i = first;
+        for (; i < stop; i++) {
+            Note note = notes.getNote(i);
+            // Leave room for the note and the closing next offset; a first note that can
+            // never fit overflows the frame, which handle() answers with an error
+            if (i > first && 14 + BinaryProtocol.utf8Length(note.getMessage()) + 4 > response.room()) {
+                break;
+            }
+            response.putInt(note.getX()).putInt(note.getY()).putByte(note.colorId())
+                    .putByte(notes.isPinned(i) ? 1 : 0).putString(note.getMessage());
+        }
+        response.setInt(countAt, i - first);
+        response.putInt(i < stop ? i : notes.size() > end ? (int) end : -1);
+    }
+
+    private void getPins(ByteBuffer payload, BinaryProtocol.FrameBuilder response) {
+        int limit = payload.getInt();
+        int offset = payload.getInt();
+        if (limit < -1 || limit == 0 || offset < 0) {
+            paging(response);
+            return;
+        }
+        long[] keys = board.getPinKeys();
+        long end = limit < 0 ? Long.MAX_VALUE : (long) offset + limit;
+        // Every pin takes 8 bytes; keep 4 for the next offset
+        int stop = (int) Math.min(Math.min(keys.length, end), offset + (long) (response.room() - 8) / 8);
+        int first = Math.min(offset, stop);
+        response.putInt(stop - first);
+        for (int i = first; i < stop; i++) {
+            response.putInt(SpatialGrid.unpackX(keys[i])).putInt(SpatialGrid.unpackY(keys[i]));
+        }
+        response.putInt(keys.length > stop ? stop : -1);
+    }
+
+    // A limit of 0 would answer with next equal to offset, sending a paging client round forever
+    private void paging(BinaryProtocol.FrameBuilder response) {
+        response.setStatus(BinaryProtocol.statusOfCode(Protocol.ERR_INVALID_FORMAT));
+        response.putString("LIMIT must be -1 or positive and OFFSET non-negative");
+    }
+
+    // Returns true if an atomic batch was aborted
+    private boolean batch(ByteBuffer payload, BinaryProtocol.FrameBuilder response) {
+        boolean atomic = payload.get() != 0;
+        int n = payload.getInt();
+        if (n < 0 || n > payload.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        List<Board.BatchItem> items = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            byte type = payload.get();
+            if (type == BinaryProtocol.OP_POST || type == BinaryProtocol.OP_POST_TTL) {
+                int x = payload.getInt();
+                int y = payload.getInt();
+                String color = colorName(payload.get());
+                String message = BinaryProtocol.getString(payload);
+                long ttl = type == BinaryProtocol.OP_POST_TTL ? payload.getInt() : Board.DEFAULT_TTL;
+                if (ttl < 0 && ttl != Board.DEFAULT_TTL) {
+                    response.setStatus(BinaryProtocol.statusOfCode(Protocol.ERR_INVALID_FORMAT));
+                    response.putString(BinaryProtocol.textOf(TTL_ERROR));
+                    return false;
+                }
+                items.add(Board.BatchItem.post(x, y, color, message, ttl));
+            } else if (type == BinaryProtocol.OP_PIN) {
+                items.add(Board.BatchItem.pin(payload.getInt(), payload.getInt()));
+            } else if (type == BinaryProtocol.OP_UNPIN) {
+                items.add(Board.BatchItem.unpin(payload.getInt(), payload.getInt()));
+            } else {
+                response.setStatus(BinaryProtocol.statusOfCode(Protocol.ERR_INVALID_FORMAT));
+                response.putString("Only POST, PIN and UNPIN can be batched");
+                return false;
+            }
+        }
+        String[] results = board.applyBatch(items, atomic);
+        boolean failed = false;
+        response.putInt(results.length);
+        for (String result : results) {
+            byte status = BinaryProtocol.statusOf(result);
+            failed |= atomic && status != BinaryProtocol.STATUS_OK;
+            response.putByte(status).putString(BinaryProtocol.textOf(result));
+        }
+        return failed;
+    }
+
+    private void stats(BinaryProtocol.FrameBuilder response) {
+        if (metrics == null) {
+            response.setStatus(BinaryProtocol.statusOfCode(Protocol.ERR_INVALID_FORMAT));
+            response.putString("Statistics are not available");
+            return;
+        }
+        List<String> lines = metrics.statLines();
+        response.putInt(lines.size());
+        for (String line : lines) {
+            response.putString(line);
+        }
+    }
+
+    private void cleanup() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (metrics != null) {
+            metrics.connectionClosed();
+        }
+        try {
+            socket.close();
+            if (Log.isInfoEnabled()) {
+                log(Log.Level.INFO, "Connection closed");
+            }
+        } catch (IOException e) {
+            if (Log.isWarnEnabled()) {
+                log(Log.Level.WARN, "Error closing connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void log(Log.Level level, String message) {
+        Log.log(level, "[Binary client #" + clientId + "] " + message);
+    }
+}
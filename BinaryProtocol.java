@@ -0,0 +1,267 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary protocol, served on BBoard's --binary-port next to the
+ * text protocol and mapping one-to-one onto its commands and error codes.
+ *
+ * Every frame, in both directions, is
+ *   int length (of everything after this field), int requestId, byte opcode or status, payload
+ * Ints are big-endian, strings are an int byte count then UTF-8 (so messages may hold
+ * line breaks) and colors are one-byte ids indexing the color list sent in INIT.
+ * On connect the server sends INIT with requestId 0:
+ *   int boardWidth, int boardHeight, int noteWidth, int noteHeight, byte n, n strings
+ *
+ * Requests, and the payload of their OK response:
+ *   POST        int x, int y, byte color, string message        string text
+ *   POST_TTL    POST's payload, then int ttlSeconds (0: none)    string text
+ *   GET         byte filters (FILTER_*), then per set filter:    int n, n * (int x, int y, byte color,
+ *               byte color / int x, int y / string refersTo;       byte pinned, string message),
+ *               then int limit (-1 for none), int offset          int next (the MORE offset, or -1)
+ *   GET_PINS    int limit, int offset                            int n, n * (int x, int y), int next
+ *   PIN, UNPIN  int x, int y                                     string text
+ *   SHAKE, CLEAR                                                 string text
+ *   BATCH       byte atomic, int n, n * (byte OP_POST,           int n, n * (byte status, string text)
+ *               OP_POST_TTL, OP_PIN or OP_UNPIN, then that
+ *               request's payload)
+ *   STATS                                                        int n, n strings (the STAT lines)
+ *   DISCONNECT                                                   string text, then the server closes
+ * Any request may instead be answered with an error status and a string text,
+ * the binary form of "ERROR <code> <text>"; text is what follows OK or the code.
+ * A GET or GET_PINS page that would not fit in MAX_FRAME, as an unlimited one on a
+ * large board may not, is cut short and its next gives the offset to carry on from.
+ *
+ * The response carries the request's id. GET, GET_PINS and STATS of one connection
+ * may run in parallel and overtake one another; every other request waits for them
+ * and is answered in order, so a client always reads its own writes.
+ * SUBSCRIBE is only offered by the text protocol.
+ */
+public class BinaryProtocol {
+    // Opcodes
+    public static final byte OP_INIT = 0;
+    public static final byte OP_POST = 1;
+    public static final byte OP_GET = 2;
+    public static final byte OP_GET_PINS = 3;
+    public static final byte OP_PIN = 4;
+    public static final byte OP_UNPIN = 5;
+    public static final byte OP_SHAKE = 6;
+    public static final byte OP_CLEAR = 7;
+    public static final byte OP_BATCH = 8;
+    public static final byte OP_STATS = 9;
+    public static final byte OP_DISCONNECT = 10;
+    public static final byte OP_POST_TTL = 11;
+
+    // GET filter flags
+    public static final int FILTER_COLOR = 1;
+    public static final int FILTER_CONTAINS = 2;
+    public static final int FILTER_REFERS_TO = 4;
+
+    // Color id for a color the board does not have
+    public static final byte NO_COLOR = -1;
+
+    // Response status: OK, or an error code's index in ERROR_CODES
+    public static final byte STATUS_OK = 0;
+    private static final String[] ERROR_CODES = {
+            null,
+            Protocol.ERR_INVALID_FORMAT,
+            Protocol.ERR_OUT_OF_BOUNDS,
+            Protocol.ERR_OVERLAP_ERROR,
+            Protocol.ERR_INVALID_COLOR,
+            Protocol.ERR_NO_NOTE,
+            Protocol.ERR_NO_PIN,
+            Protocol.ERR_UNKNOWN_COMMAND,
+            Protocol.ERR_STORAGE,
+            Protocol.ERR_BATCH_ABORTED,
+            Protocol.ERR_PIN_EXISTS,
+            Protocol.ERR_READ_ONLY,
+    };
+
+    // Frames larger than this are a protocol violation and end the connection
+    public static final int MAX_FRAME = 16 << 20;
+
+    /**
+     * Status byte for a text response ("OK ..." or "ERROR <code> ...").
+     */
+    static byte statusOf(String response) {
+        if (response.startsWith(Protocol.RESP_OK)) {
+            return STATUS_OK;
+        }
+        int start = Protocol.RESP_ERROR.length() + 1;
+        int end = response.indexOf(' ', start);
+        return statusOfCode(response.substring(Math.min(start, response.length()),
+                end < 0 ? response.length() : end));
+    }
+
+    /**
+     * The human-readable part of a text response: what follows OK or the error code.
+     */
+    static String textOf(String response) {
+        int skip = response.startsWith(Protocol.RESP_OK) ? 1 : 2;
+        int pos = 0;
+        for (int i = 0; i < skip && pos >= 0; i++) {
+            pos = response.indexOf(' ', pos + 1);
+        }
+        return pos < 0 ? "" : response.substring(pos + 1);
+    }
+
+    /**
+     * Error code name for a status byte, or null for STATUS_OK.
+     */
+    public static String errorCode(int status) {
+        return status > 0 && status < ERROR_CODES.length ? ERROR_CODES[status] : null;
+    }
+
+    /**
+     * Status byte for an error code name; INVALID_FORMAT's for one it does not know.
+     */
+    static byte statusOfCode(String code) {
+        for (int i = 1; i < ERROR_CODES.length; i++) {
+            if (ERROR_CODES[i].equals(code)) {
+                return (byte) i;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Reads one frame and returns what follows its length field, or null if the
+     * stream ended cleanly before the frame started.
+     */
+    static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8)
+                | in.readUnsignedByte();
+        if (length < 5 || length > MAX_FRAME) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return ByteBuffer.wrap(body);
+    }
+
+    /**
+     * Bytes s takes in UTF-8, without encoding it.
+     */
+    static int utf8Length(String s) {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                // Two bytes over the char count; a surrogate pair's four bytes are two per char
+                length += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    /**
+     * Builds one frame at a time in a reusable, growing array.
+     */
+    static final class FrameBuilder {
+        private byte[] buf = new byte[256];
+        private int size;
+
+        /**
+         * Starts a new frame; the length field is filled in by writeTo.
+         */
+        FrameBuilder start(int requestId, byte opcodeOrStatus) {
+            size = 4;
+            putInt(requestId);
+            return putByte(opcodeOrStatus);
+        }
+
+        FrameBuilder putByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+            return this;
+        }
+
+        FrameBuilder putInt(int v) {
+            ensure(4);
+            buf[size] = (byte) (v >>> 24);
+            buf[size + 1] = (byte) (v >>> 16);
+            buf[size + 2] = (byte) (v >>> 8);
+            buf[size + 3] = (byte) v;
+            size += 4;
+            return this;
+        }
+
+        FrameBuilder putString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+            return this;
+        }
+
+        // Overwrites an int already put, at the size() from before it was put
+        void setInt(int at, int v) {
+            buf[at] = (byte) (v >>> 24);
+            buf[at + 1] = (byte) (v >>> 16);
+            buf[at + 2] = (byte) (v >>> 8);
+            buf[at + 3] = (byte) v;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Bytes that can still be put before the frame reaches MAX_FRAME.
+         */
+        int room() {
+            return MAX_FRAME + 4 - size;
+        }
+
+        // Overwrites the status byte of the frame being built
+        void setStatus(byte status) {
+            buf[8] = status;
+        }
+
+        byte status() {
+            return buf[8];
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            int length = size - 4;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            out.write(buf, 0, size);
+        }
+
+        private void ensure(int more) {
+            if (size + more > buf.length) {
+                if ((long) size + more > MAX_FRAME + 4L) {
+                    throw new IllegalStateException("Frame too large");
+                }
+                long grown = Math.min(Math.max((long) buf.length * 2, (long) size + more), MAX_FRAME + 4L);
+                byte[] next = new byte[(int) grown];
+                System.arraycopy(buf, 0, next, 0, size);
+                buf = next;
+            }
+        }
+    }
+}
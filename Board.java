@@ -1,196 +1,1392 @@
-import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-
-/**
- * bulletin board that manages notes and pins.
- */
-public class Board {
-    private final int width;
-    private final int height;
-    private final int noteWidth;
-    private final int noteHeight;
-    private final Set<String> validColors;
-
-    private final List<Note> notes;
-
-    private final Set<String> pins;
-
-    public Board(int width, int height, int noteWidth, int noteHeight, Set<String> validColors) {
-        this.width = width;
-        this.height = height;
-        this.noteWidth = noteWidth;
-        this.noteHeight = noteHeight;
-        this.validColors = new HashSet<>(validColors);
-
-        this.notes = new CopyOnWriteArrayList<>();
-        this.pins = new HashSet<>();
-    }
-
-    public int getWidth() { return width; }
-    public int getHeight() { return height; }
-    public int getNoteWidth() { return noteWidth; }
-    public int getNoteHeight() { return noteHeight; }
-    public Set<String> getValidColors() { return new HashSet<>(validColors); }
-
-    private boolean inBounds(int x, int y) {
-        return x >= 0 && y >= 0 && x < width && y < height;
-    }
-
-    private String pinKey(int x, int y) {
-        return x + "," + y;
-    }
-
-    /**
-     * Returns true if the given note contains one pin within its boundaries.
-     */
-    public synchronized boolean isNotePinned(Note note) {
-        for (String p : pins) {
-            String[] parts = p.split(",");
-            int px = Integer.parseInt(parts[0]);
-            int py = Integer.parseInt(parts[1]);
-
-            if (note.contains(px, py)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    /**
-     * Posts a new note to the board.
-     * returns an error message on failure, OK message on success
-     */
-    public synchronized String postNote(int x, int y, String color, String message) {
-        // Validate color
-        if (!validColors.contains(color)) {
-            return "ERROR INVALID_COLOR " + color;
-        }
-
-        // Validate bounds
-        if (x < 0 || y < 0 || x + noteWidth > width || y + noteHeight > height) {
-            return "ERROR OUT_OF_BOUNDS Note would extend beyond board boundaries";
-        }
-
-        // Create new note
-        Note newNote = new Note(x, y, color, message, noteWidth, noteHeight);
-
-        // Check for complete overlap
-        for (Note existing : notes) {
-            if (existing.completelyOverlaps(newNote)) {
-                return "ERROR OVERLAP_ERROR Note completely overlaps existing note";
-            }
-        }
-
-        notes.add(newNote);
-        return "OK Note posted successfully";
-    }
-
-    /**
-     * Places a pin anywhere on the board.
-     */
-    public synchronized String placePin(int x, int y) {
-        if (!inBounds(x, y)) {
-            return "ERROR OUT_OF_BOUNDS Pin must be inside the board";
-        }
-
-        String key = pinKey(x, y);
-
-        if (pins.contains(key)) {
-            return "ERROR PIN_ALREADY_EXISTS Pin already exists at (" + x + "," + y + ")";
-        }
-
-        pins.add(key);
-        return "OK Pin placed at (" + x + "," + y + ")";
-    }
-
-    /**
-     * Removes a pin anywhere on the board.
-     */
-    public synchronized String removePin(int x, int y) {
-        String key = pinKey(x, y);
-
-        if (!pins.contains(key)) {
-            return "ERROR NO_PIN_AT_COORDINATE No pin found at coordinate (" + x + "," + y + ")";
-        }
-
-        pins.remove(key);
-        return "OK Pin removed from (" + x + "," + y + ")";
-    }
-
-    /**
-     * Removes all unpinned notes from the board.
-     * A note is pinned if it contains at least one pin coordinate.
-     */
-    public synchronized String shake() {
-        int beforeCount = notes.size();
-
-        notes.removeIf(note -> !isNotePinned(note));
-
-        int afterCount = notes.size();
-        int removed = beforeCount - afterCount;
-
-        return "OK Removed " + removed + " unpinned note(s)";
-    }
-
-    /**
-     * Removes all notes and pins from the board.
-     */
-    public synchronized String clear() {
-        int noteCount = notes.size();
-        int pinCount = pins.size();
-
-        notes.clear();
-        pins.clear();
-
-        return "OK Cleared " + noteCount + " note(s) and " + pinCount + " pin(s)";
-    }
-
-    /**
-     * Gets all pins on the board.
-     */
-    public synchronized List<String> getAllPins() {
-        List<String> out = new ArrayList<>();
-        for (String key : pins) {
-            out.add(key.replace(",", " "));
-        }
-        Collections.sort(out);
-        return out;
-    }
-
-    /**
-     * Queries notes based on search filters.
-     */
-    public synchronized List<Note> queryNotes(String color, Integer containsX, Integer containsY, String refersTo) {
-        List<Note> results = new ArrayList<>();
-
-        for (Note note : notes) {
-            // Check color filter
-            if (color != null && !note.getColor().equals(color)) {
-                continue;
-            }
-
-            // Check contains filter
-            if (containsX != null && containsY != null) {
-                if (!note.contains(containsX, containsY)) {
-                    continue;
-                }
-            }
-
-            // Check refersTo filter
-            if (refersTo != null && !note.getMessage().toLowerCase().contains(refersTo.toLowerCase())) {
-                continue;
-            }
-
-            results.add(note);
-        }
-
-        return results;
-    }
-
-    /**
-     * Gets all notes on the board.
-     */
-    public synchronized List<Note> getAllNotes() {
-        return new ArrayList<>(notes);
-    }
-}
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * bulletin board that manages notes and pins.
+ *
+ * The board is split into vertical shards, each with its own lock, so mutations in
+ * different regions run in parallel. An operation locks the contiguous range of shards
+ * it can touch, always in ascending shard order, and releases them in reverse; board-wide
+ * operations (SHAKE, CLEAR, unfiltered GET) lock every shard the same way.
+ * Mutations take write locks and queries share read locks. Queries only hold them while
+ * collecting a QueryResult, so rendering and socket writes never block writers.
+ * Notes posted with a TTL are tracked in an ExpiryWheel and removed by expireNotes,
+ * which the server calls once per tick from a background thread.
+ * While loadInBackground builds the shards from a snapshot, queries are answered from
+ * the snapshot's columns and mutations wait until the shards are in place.
+ */
+public class Board {
+    /**
+     * How shards keep their notes.
+     * OBJECTS: one Note object per note, in indexes by cell, position, color and trigram.
+     * COLUMNS: parallel primitive arrays with messages in a byte arena (ColumnarShard);
+     * several times fewer bytes per note, with color, text and SHAKE answered by scans.
+     */
+    public enum NoteStorage { OBJECTS, COLUMNS }
+
+    private final int width;
+    private final int height;
+    private final int noteWidth;
+    private final int noteHeight;
+    private final Set<String> validColors;
+    // Dense color IDs index the per-shard color buckets and the shared note shapes
+    private final Map<String, Integer> colorIds = new HashMap<>();
+    private final NoteShape[] shapes;
+
+    private final NoteStorage storage;
+    private final int shardWidth;
+    private final BoardShard[] shards;
+    private final StampedLock[] locks;
+
+    // Empty shards the next CLEAR swaps in, built on a background thread after each
+    // CLEAR so allocating them never holds the board's locks
+    private final AtomicReference<BoardShard[]> spareShards = new AtomicReference<>();
+    private final ExecutorService shardBuilder = Executors.newSingleThreadExecutor(task -> {
+        Thread t = new Thread(task, "board-clear");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong nextSequence = new AtomicLong();
+
+    // Shard lock acquisitions that had to wait, and the total time they waited
+    private final LongAdder lockWaits = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+
+    // Change counters read by ResponseCache without locks: one per shard and color,
+    // bumped when such a note is added, removed or changes pinned state, and one per
+    // shard, bumped when a pin in it is placed or removed. Only ever incremented, by
+    // writers holding the shard's write lock, and kept across CLEAR.
+    private final AtomicLongArray noteVersions;
+    private final AtomicLongArray pinVersions;
+
+    // Set once before the server starts when persistence is enabled
+    private volatile WriteAheadLog wal;
+
+    /**
+     * TTL argument of postNote that stands for the board's default TTL.
+     */
+    static final long DEFAULT_TTL = -1;
+    // Longer TTLs are cut to this, about 68 years, so deadlines cannot overflow
+    private static final long MAX_TTL_SECONDS = Integer.MAX_VALUE;
+    private static final long EXPIRY_TICK_MS = 100;
+    // Most expired notes removed under one acquisition of a shard lock
+    private static final int EXPIRY_BATCH = 256;
+
+    // Replaced by its successor on CLEAR; writers read it under a shard lock
+    private volatile ExpiryWheel expiry = new ExpiryWheel(EXPIRY_TICK_MS, System.currentTimeMillis());
+    private volatile long defaultTtlSeconds;
+    private volatile boolean pinnedNotesExempt;
+    private final LongAdder expiredNotes = new LongAdder();
+
+    // Set on a replication follower, whose changes all come from its leader
+    private volatile boolean readOnly;
+
+    private final List<BoardListener> listeners = new CopyOnWriteArrayList<>();
+
+    // The snapshot being loaded by loadInBackground, null once its shards are in place
+    private volatile Loading loading;
+
+    public Board(int width, int height, int noteWidth, int noteHeight, Set<String> validColors) {
+        this(width, height, noteWidth, noteHeight, validColors, 1);
+    }
+
+    public Board(int width, int height, int noteWidth, int noteHeight, Set<String> validColors, int shardCount) {
+        this(width, height, noteWidth, noteHeight, validColors, shardCount, NoteStorage.OBJECTS);
+    }
+
+    public Board(int width, int height, int noteWidth, int noteHeight, Set<String> validColors, int shardCount,
+                 NoteStorage storage) {
+        this.width = width;
+        this.height = height;
+        this.noteWidth = noteWidth;
+        this.noteHeight = noteHeight;
+        this.validColors = new HashSet<>(validColors);
+        for (String color : validColors) {
+            colorIds.putIfAbsent(color, colorIds.size());
+        }
+        this.shapes = new NoteShape[colorIds.size()];
+        for (Map.Entry<String, Integer> entry : colorIds.entrySet()) {
+            shapes[entry.getValue()] = new NoteShape(entry.getKey(), noteWidth, noteHeight, entry.getValue());
+        }
+        if (storage == NoteStorage.COLUMNS && shapes.length > ColumnarShard.MAX_COLORS) {
+            throw new IllegalArgumentException("Columnar storage supports at most "
+                    + ColumnarShard.MAX_COLORS + " colors");
+        }
+        this.storage = storage;
+
+        int count = Math.max(1, Math.min(shardCount, width));
+        this.shardWidth = Math.max(1, (width + count - 1) / count);
+        count = Math.max(1, (width + shardWidth - 1) / shardWidth);
+
+        this.shards = newShards(count);
+        this.locks = new StampedLock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new StampedLock();
+        }
+        this.noteVersions = new AtomicLongArray(count * shapes.length);
+        this.pinVersions = new AtomicLongArray(count);
+    }
+
+    private BoardShard[] newShards(int count) {
+        BoardShard[] fresh = new BoardShard[count];
+        for (int i = 0; i < count; i++) {
+            int startX = i * shardWidth;
+            int endX = Math.min(width, startX + shardWidth);
+            fresh[i] = storage == NoteStorage.COLUMNS
+                    ? new ColumnarShard(startX, endX, width, height, noteWidth, noteHeight, shapes)
+                    : new ObjectShard(startX, endX, width, height, noteWidth, noteHeight, colorIds.size());
+        }
+        return fresh;
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    public int getNoteWidth() { return noteWidth; }
+    public int getNoteHeight() { return noteHeight; }
+    public NoteStorage getNoteStorage() { return storage; }
+    public Set<String> getValidColors() { return new HashSet<>(validColors); }
+    public int getShardCount() { return shards.length; }
+    public long getDefaultTtl() { return defaultTtlSeconds; }
+    public boolean isPinnedNotesExempt() { return pinnedNotesExempt; }
+    public boolean isReadOnly() { return readOnly; }
+
+    /**
+     * TTL in seconds of notes posted without one, 0 (the default) for none.
+     */
+    public void setDefaultTtl(long seconds) {
+        this.defaultTtlSeconds = seconds;
+    }
+
+    /**
+     * Whether a pinned note outlives its TTL; it then expires as soon as its last pin
+     * is removed.
+     */
+    public void setPinnedNotesExempt(boolean exempt) {
+        this.pinnedNotesExempt = exempt;
+    }
+
+    /**
+     * Marks the board as a follower's copy of its leader's. The board still applies
+     * every change it is given; the protocol handlers check this and refuse changes
+     * from clients with READ_ONLY_ERROR.
+     */
+    void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    static final String READ_ONLY_ERROR =
+            "ERROR " + Protocol.ERR_READ_ONLY + " This server is a read-only follower; send changes to the leader";
+
+    private boolean inBounds(int x, int y) {
+        return x >= 0 && y >= 0 && x < width && y < height;
+    }
+
+    private int shardOf(int x) {
+        return Math.max(0, Math.min(shards.length - 1, x / shardWidth));
+    }
+
+    // ---- lock ordering ----
+
+    // Only an acquisition that cannot succeed at once reads the clock
+    private long[] writeLock(int from, int to) {
+        long[] stamps = new long[to - from + 1];
+        for (int i = from; i <= to; i++) {
+            long stamp = locks[i].tryWriteLock();
+            if (stamp == 0) {
+                long start = System.nanoTime();
+                stamp = locks[i].writeLock();
+                recordLockWait(start);
+            }
+            stamps[i - from] = stamp;
+        }
+        return stamps;
+    }
+
+    private void recordLockWait(long start) {
+        lockWaitNanos.add(System.nanoTime() - start);
+        lockWaits.increment();
+    }
+
+    private void unlockWrite(int from, int to, long[] stamps) {
+        for (int i = to; i >= from; i--) {
+            locks[i].unlockWrite(stamps[i - from]);
+        }
+    }
+
+    private long[] readLock(int from, int to) {
+        long[] stamps = new long[to - from + 1];
+        for (int i = from; i <= to; i++) {
+            long stamp = locks[i].tryReadLock();
+            if (stamp == 0) {
+                long start = System.nanoTime();
+                stamp = locks[i].readLock();
+                recordLockWait(start);
+            }
+            stamps[i - from] = stamp;
+        }
+        return stamps;
+    }
+
+    private void unlockRead(int from, int to, long[] stamps) {
+        for (int i = to; i >= from; i--) {
+            locks[i].unlockRead(stamps[i - from]);
+        }
+    }
+
+    /**
+     * Returns true if the given note contains one pin within its boundaries.
+     */
+    public boolean isNotePinned(Note note) {
+        // Every PIN that can cover the note locks the note's own shard
+        StampedLock lock = locks[shardOf(note.getX())];
+        long stamp = lock.readLock();
+        try {
+            return shards[shardOf(note.getX())].isPinned(note);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Posts a new note to the board.
+     * returns an error message on failure, OK message on success
+     */
+    public String postNote(int x, int y, String color, String message) {
+        return postNote(x, y, color, message, DEFAULT_TTL);
+    }
+
+    /**
+     * Posts a note that expires ttlSeconds from now; 0 keeps it until it is removed
+     * and DEFAULT_TTL applies the board's default.
+     */
+    public String postNote(int x, int y, String color, String message, long ttlSeconds) {
+        return post(x, y, color, message, -1, expiresAt(ttlSeconds));
+    }
+
+    /**
+     * Re-posts a note read back from a snapshot or the write-ahead log, keeping its
+     * original insertion sequence and expiry time (0 for none). Used while recovering,
+     * before clients connect; a note whose time has passed expires on the next tick.
+     */
+    String restoreNote(long sequence, int x, int y, String color, String message, long expiresAt) {
+        String result = post(x, y, color, message, sequence, expiresAt);
+        nextSequence.accumulateAndGet(sequence + 1, Math::max);
+        return result;
+    }
+
+    // Wall-clock expiry time for a TTL argument of postNote, 0 for none
+    private long expiresAt(long ttlSeconds) {
+        long ttl = ttlSeconds == DEFAULT_TTL ? defaultTtlSeconds : ttlSeconds;
+        if (ttl <= 0) {
+            return 0;
+        }
+        return System.currentTimeMillis() + Math.min(ttl, MAX_TTL_SECONDS) * 1000;
+    }
+
+    // A negative sequence means the note is new and takes the next one
+    private String post(int x, int y, String color, String message, long sequence, long expiresAt) {
+        awaitLoaded();
+        String invalid = checkPost(x, y, color);
+        if (invalid != null) {
+            return invalid;
+        }
+        WriteAheadLog log = wal;
+        if (log != null && 1 + WriteAheadLog.postPayloadBound(color, message) > WriteAheadLog.MAX_RECORD) {
+            return MESSAGE_TOO_LONG;
+        }
+
+        // The note lives in the shard of its left edge but may cover pins further right
+        int from = shardOf(x);
+        int to = Math.max(from, shardOf(x + noteWidth - 1));
+        long logPosition;
+        long[] stamps = writeLock(from, to);
+        try {
+            Note newNote = insertNote(x, y, color, message, sequence, expiresAt);
+            if (newNote == null) {
+                return OVERLAP_ERROR;
+            }
+            logPosition = log != null ? log.logPost(newNote) : 0;
+        } finally {
+            unlockWrite(from, to, stamps);
+        }
+        if (!isDurable(log, logPosition)) {
+            return STORAGE_ERROR;
+        }
+        return POSTED;
+    }
+
+    private static final String POSTED = "OK Note posted successfully";
+    private static final String OVERLAP_ERROR = "ERROR OVERLAP_ERROR Note completely overlaps existing note";
+    private static final String MESSAGE_TOO_LONG =
+            "ERROR " + Protocol.ERR_INVALID_FORMAT + " Message too long to log";
+
+    /**
+     * Checks a note's color and bounds, returning the error response or null.
+     */
+    private String checkPost(int x, int y, String color) {
+        if (!validColors.contains(color)) {
+            return "ERROR INVALID_COLOR " + color;
+        }
+        if (x < 0 || y < 0 || x + noteWidth > width || y + noteHeight > height) {
+            return "ERROR OUT_OF_BOUNDS Note would extend beyond board boundaries";
+        }
+        return null;
+    }
+
+    /**
+     * Adds a note that passed checkPost, or returns null if it would completely overlap
+     * an existing one. The caller holds the write locks of every shard the note covers.
+     */
+    private Note insertNote(int x, int y, String color, String message, long sequence, long expiresAt) {
+        Note newNote = placeNote(shards, expiry, x, y, colorIds.get(color), message, sequence, expiresAt);
+        if (newNote == null) {
+            return null;
+        }
+        noteVersions.incrementAndGet(shardOf(x) * shapes.length + newNote.colorId());
+        for (BoardListener listener : listeners) {
+            listener.notePosted(newNote);
+        }
+        return newNote;
+    }
+
+    /**
+     * Adds a note to the given shards and wheel without telling anyone, or returns null
+     * if it would completely overlap an existing one.
+     */
+    private Note placeNote(BoardShard[] into, ExpiryWheel wheel, int x, int y, int colorId, String message,
+                           long sequence, long expiresAt) {
+        BoardShard owner = into[shardOf(x)];
+
+        // Check for complete overlap, only a note anchored at the same point can match
+        Note newNote = new Note(x, y, shapes[colorId], message);
+        Note existing = owner.noteAt(x, y);
+        if (existing != null && existing.completelyOverlaps(newNote)) {
+            return null;
+        }
+
+        int pinCount = 0;
+        for (int i = shardOf(x), last = shardOf(x + noteWidth - 1); i <= last; i++) {
+            pinCount += into[i].countPinsIn(newNote);
+        }
+        newNote.pinCount = pinCount;
+        newNote.sequence = sequence >= 0 ? sequence : nextSequence.getAndIncrement();
+        if (expiresAt != 0) {
+            newNote.expiry = new NoteExpiry(expiresAt);
+        }
+        owner.addNote(newNote);
+        if (newNote.expiry != null) {
+            wheel.schedule(newNote);
+        }
+        return newNote;
+    }
+
+    /**
+     * Places a pin anywhere on the board.
+     */
+    public String placePin(int x, int y) {
+        awaitLoaded();
+        if (!inBounds(x, y)) {
+            return "ERROR OUT_OF_BOUNDS Pin must be inside the board";
+        }
+
+        // Notes covering the pin are anchored at most one note width to its left
+        int from = shardOf(x - noteWidth + 1);
+        int to = shardOf(x);
+        WriteAheadLog log = wal;
+        long logPosition;
+        long[] stamps = writeLock(from, to);
+        try {
+            if (!insertPin(x, y)) {
+                return pinExistsError(x, y);
+            }
+            logPosition = log != null ? log.logPin(x, y) : 0;
+        } finally {
+            unlockWrite(from, to, stamps);
+        }
+        if (!isDurable(log, logPosition)) {
+            return STORAGE_ERROR;
+        }
+        return "OK Pin placed at (" + x + "," + y + ")";
+    }
+
+    /**
+     * Removes a pin anywhere on the board.
+     */
+    public String removePin(int x, int y) {
+        awaitLoaded();
+        if (!inBounds(x, y)) {
+            return noPinError(x, y);
+        }
+
+        int from = shardOf(x - noteWidth + 1);
+        int to = shardOf(x);
+        WriteAheadLog log = wal;
+        long logPosition;
+        long[] stamps = writeLock(from, to);
+        try {
+            if (!deletePin(x, y)) {
+                return noPinError(x, y);
+            }
+            logPosition = log != null ? log.logUnpin(x, y) : 0;
+        } finally {
+            unlockWrite(from, to, stamps);
+        }
+        if (!isDurable(log, logPosition)) {
+            return STORAGE_ERROR;
+        }
+        return "OK Pin removed from (" + x + "," + y + ")";
+    }
+
+    private static String pinExistsError(int x, int y) {
+        return "ERROR PIN_ALREADY_EXISTS Pin already exists at (" + x + "," + y + ")";
+    }
+
+    private static String noPinError(int x, int y) {
+        return "ERROR NO_PIN_AT_COORDINATE No pin found at coordinate (" + x + "," + y + ")";
+    }
+
+    /**
+     * Adds an in-bounds pin, or returns false if it already exists. The caller holds
+     * the write locks of every shard that can anchor a note over it.
+     */
+    private boolean insertPin(int x, int y) {
+        if (!shards[shardOf(x)].addPin(x, y)) {
+            return false;
+        }
+        adjustPinCounts(shardOf(x - noteWidth + 1), shardOf(x), x, y, 1);
+        pinVersions.incrementAndGet(shardOf(x));
+        for (BoardListener listener : listeners) {
+            listener.pinPlaced(x, y);
+        }
+        return true;
+    }
+
+    /**
+     * Removes an in-bounds pin, or returns false if there is none; locking as for insertPin.
+     */
+    private boolean deletePin(int x, int y) {
+        if (!shards[shardOf(x)].removePin(x, y)) {
+            return false;
+        }
+        adjustPinCounts(shardOf(x - noteWidth + 1), shardOf(x), x, y, -1);
+        pinVersions.incrementAndGet(shardOf(x));
+        for (BoardListener listener : listeners) {
+            listener.pinRemoved(x, y);
+        }
+        return true;
+    }
+
+    private void adjustPinCounts(int from, int to, int x, int y, int delta) {
+        List<Note> scratch = new ArrayList<>();
+        for (int i = from; i <= to; i++) {
+            shards[i].adjustPinCounts(x, y, delta, scratch);
+            // Only notes that just became pinned or unpinned render differently
+            for (Note note : scratch) {
+                if (note.pinCount == (delta > 0 ? 1 : 0)) {
+                    noteVersions.incrementAndGet(i * shapes.length + note.colorId());
+                    // A note kept past its TTL by its pins goes once the last one does
+                    if (delta < 0 && note.expiry != null) {
+                        expiry.scheduleIfIdle(note);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all unpinned notes from the board.
+     * A note is pinned if it contains at least one pin coordinate. With OBJECTS storage
+     * each shard keeps a list of its unpinned notes, so this takes time proportional to
+     * the notes removed; with COLUMNS it is one scan of each shard's pin counts.
+     */
+    public String shake() {
+        awaitLoaded();
+        int removed = 0;
+        int last = shards.length - 1;
+        WriteAheadLog log = wal;
+        long logPosition;
+        long[] stamps = writeLock(0, last);
+        try {
+            List<Note> removedNotes = listeners.isEmpty() && expiry.size() == 0 ? null : new ArrayList<>();
+            for (int i = 0; i < shards.length; i++) {
+                int count = shards[i].removeUnpinned(removedNotes);
+                if (count > 0) {
+                    removed += count;
+                    bumpNoteVersions(i);
+                }
+            }
+            logPosition = log != null ? log.logShake() : 0;
+            if (removedNotes != null) {
+                for (Note note : removedNotes) {
+                    expiry.cancel(note);
+                }
+                removedNotes.sort(SpatialGrid.INSERTION_ORDER);
+                for (BoardListener listener : listeners) {
+                    for (Note note : removedNotes) {
+                        listener.noteRemoved(note);
+                    }
+                }
+            }
+        } finally {
+            unlockWrite(0, last, stamps);
+        }
+        if (!isDurable(log, logPosition)) {
+            return STORAGE_ERROR;
+        }
+
+        return "OK Removed " + removed + " unpinned note(s)";
+    }
+
+    /**
+     * Removes all notes and pins from the board.
+     * The shards and the expiry wheel are swapped for empty ones rather than emptied,
+     * so the locks are held for a time independent of the board's contents; the old
+     * ones are dropped whole and left to the collector.
+     */
+    public String clear() {
+        awaitLoaded();
+        BoardShard[] fresh = spareShards.getAndSet(null);
+        if (fresh == null) {
+            fresh = newShards(shards.length);
+        }
+        int noteCount = 0;
+        int pinCount = 0;
+        int last = shards.length - 1;
+        WriteAheadLog log = wal;
+        long logPosition;
+        long[] stamps = writeLock(0, last);
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                noteCount += shards[i].noteCount();
+                pinCount += shards[i].pinCount();
+                shards[i] = fresh[i];
+                bumpNoteVersions(i);
+                pinVersions.incrementAndGet(i);
+            }
+            expiry = expiry.successor();
+            logPosition = log != null ? log.logClear() : 0;
+            for (BoardListener listener : listeners) {
+                listener.boardCleared();
+            }
+        } finally {
+            unlockWrite(0, last, stamps);
+        }
+        shardBuilder.execute(() -> {
+            if (spareShards.get() == null) {
+                spareShards.compareAndSet(null, newShards(shards.length));
+            }
+        });
+        if (!isDurable(log, logPosition)) {
+            return STORAGE_ERROR;
+        }
+
+        return "OK Cleared " + noteCount + " note(s) and " + pinCount + " pin(s)";
+    }
+
+    // ---- batches ----
+
+    /**
+     * One POST, PIN or UNPIN of a batch; type is WriteAheadLog.POST, PIN or UNPIN.
+     */
+    static final class BatchItem {
+        final byte type;
+        final int x;
+        final int y;
+        final String color;
+        final String message;
+        // As for postNote: seconds, 0 for none or DEFAULT_TTL
+        final long ttlSeconds;
+
+        // The posted note, once applied
+        Note note;
+
+        private BatchItem(byte type, int x, int y, String color, String message, long ttlSeconds) {
+            this.type = type;
+            this.x = x;
+            this.y = y;
+            this.color = color;
+            this.message = message;
+            this.ttlSeconds = ttlSeconds;
+        }
+
+        static BatchItem post(int x, int y, String color, String message) {
+            return post(x, y, color, message, DEFAULT_TTL);
+        }
+
+        static BatchItem post(int x, int y, String color, String message, long ttlSeconds) {
+            return new BatchItem(WriteAheadLog.POST, x, y, color, message, ttlSeconds);
+        }
+
+        static BatchItem pin(int x, int y) {
+            return new BatchItem(WriteAheadLog.PIN, x, y, null, null, 0);
+        }
+
+        static BatchItem unpin(int x, int y) {
+            return new BatchItem(WriteAheadLog.UNPIN, x, y, null, null, 0);
+        }
+    }
+
+    static final String BATCH_ABORTED =
+            "ERROR " + Protocol.ERR_BATCH_ABORTED + " Not applied because another item of the batch failed";
+    private static final String BATCH_TOO_LARGE =
+            "ERROR " + Protocol.ERR_INVALID_FORMAT + " Batch too large to log, send it in smaller batches";
+
+    /**
+     * Applies a batch in order, as if its items were sent one by one, but under a single
+     * acquisition of the shard locks they touch, with one log record and one wait for
+     * durability. Returns one response per item.
+     * With atomic, the whole batch is checked first and either every item is applied or
+     * none is: the items that would fail report why and the rest report BATCH_ABORTED.
+     */
+    public String[] applyBatch(List<BatchItem> items, boolean atomic) {
+        awaitLoaded();
+        String[] results = new String[items.size()];
+
+        // Color and bounds need no locks; the rest decide which shards to lock
+        WriteAheadLog log = wal;
+        int from = shards.length;
+        int to = -1;
+        boolean invalid = false;
+        // Type and item count of the batch's log record, then every item that may apply
+        long recordBound = 1 + 4;
+        for (int i = 0; i < results.length; i++) {
+            BatchItem item = items.get(i);
+            if (item.type == WriteAheadLog.POST) {
+                results[i] = checkPost(item.x, item.y, item.color);
+                if (results[i] == null) {
+                    from = Math.min(from, shardOf(item.x));
+                    to = Math.max(to, shardOf(item.x + noteWidth - 1));
+                    if (log != null) {
+                        recordBound += 1 + WriteAheadLog.postPayloadBound(item.color, item.message);
+                    }
+                }
+            } else if (!inBounds(item.x, item.y)) {
+                results[i] = item.type == WriteAheadLog.PIN
+                        ? "ERROR OUT_OF_BOUNDS Pin must be inside the board"
+                        : noPinError(item.x, item.y);
+            } else {
+                from = Math.min(from, shardOf(item.x - noteWidth + 1));
+                to = Math.max(to, shardOf(item.x));
+                recordBound += 1 + 8;
+            }
+            invalid |= results[i] != null;
+        }
+        if (to < 0 || (atomic && invalid)) {
+            return abortRest(results, atomic);
+        }
+        // Its log record would be too long to replay, so none of the batch is applied
+        if (log != null && recordBound > WriteAheadLog.MAX_RECORD) {
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] == null) {
+                    results[i] = BATCH_TOO_LARGE;
+                }
+            }
+            return results;
+        }
+
+        long logPosition = 0;
+        List<BatchItem> applied = new ArrayList<>();
+        long[] stamps = writeLock(from, to);
+        try {
+            if (atomic && !checkBatch(items, results)) {
+                return abortRest(results, true);
+            }
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] == null) {
+                    results[i] = applyLocked(items.get(i));
+                    if (results[i].startsWith(Protocol.RESP_OK)) {
+                        applied.add(items.get(i));
+                    }
+                }
+            }
+            if (log != null && !applied.isEmpty()) {
+                logPosition = log.logBatch(applied);
+            }
+        } finally {
+            unlockWrite(from, to, stamps);
+        }
+        if (!isDurable(log, logPosition)) {
+            for (int i = 0; i < results.length; i++) {
+                if (results[i].startsWith(Protocol.RESP_OK)) {
+                    results[i] = STORAGE_ERROR;
+                }
+            }
+        }
+        return results;
+    }
+
+    private static String[] abortRest(String[] results, boolean atomic) {
+        if (atomic) {
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] == null) {
+                    results[i] = BATCH_ABORTED;
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Replays the batch against the locked board without changing it, recording the
+     * overlap and pin errors it would hit. Notes and pins the batch itself adds or
+     * removes are tracked in position hash sets, so the check is linear in the batch.
+     */
+    private boolean checkBatch(List<BatchItem> items, String[] results) {
+        LongHashSet posted = new LongHashSet();
+        LongHashSet pinsAdded = new LongHashSet();
+        LongHashSet pinsRemoved = new LongHashSet();
+        boolean ok = true;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null) {
+                continue;
+            }
+            BatchItem item = items.get(i);
+            long key = SpatialGrid.pack(item.x, item.y);
+            if (item.type == WriteAheadLog.POST) {
+                if (shards[shardOf(item.x)].noteAt(item.x, item.y) != null || !posted.add(key)) {
+                    results[i] = OVERLAP_ERROR;
+                    ok = false;
+                }
+                continue;
+            }
+            boolean exists = pinsAdded.contains(key)
+                    || (!pinsRemoved.contains(key) && shards[shardOf(item.x)].hasPin(item.x, item.y));
+            if (item.type == WriteAheadLog.PIN) {
+                if (exists) {
+                    results[i] = pinExistsError(item.x, item.y);
+                    ok = false;
+                } else if (!pinsRemoved.remove(key)) {
+                    pinsAdded.add(key);
+                }
+            } else {
+                if (!exists) {
+                    results[i] = noPinError(item.x, item.y);
+                    ok = false;
+                } else if (!pinsAdded.remove(key)) {
+                    pinsRemoved.add(key);
+                }
+            }
+        }
+        return ok;
+    }
+
+    // Applies one item that passed the lock-free checks; the caller holds its shards
+    private String applyLocked(BatchItem item) {
+        switch (item.type) {
+            case WriteAheadLog.POST:
+                item.note = insertNote(item.x, item.y, item.color, item.message, -1, expiresAt(item.ttlSeconds));
+                return item.note != null ? POSTED : OVERLAP_ERROR;
+            case WriteAheadLog.PIN:
+                return insertPin(item.x, item.y)
+                        ? "OK Pin placed at (" + item.x + "," + item.y + ")"
+                        : pinExistsError(item.x, item.y);
+            default:
+                return deletePin(item.x, item.y)
+                        ? "OK Pin removed from (" + item.x + "," + item.y + ")"
+                        : noPinError(item.x, item.y);
+        }
+    }
+
+    // ---- expiry ----
+
+    long getExpiryTickMillis() {
+        return expiry.getTickMillis();
+    }
+
+    /**
+     * Removes the notes whose TTL ran out by nowMillis, as found by the expiry wheel,
+     * and returns how many were removed. Only the owner shard of a note is locked to
+     * remove it, at most EXPIRY_BATCH notes per acquisition, so expiring many notes
+     * at once never holds up the rest of the board or one shard for long.
+     * As with any other change, a removal whose log record cannot be made durable
+     * stays applied; there is no client to tell, so they are counted and logged.
+     */
+    int expireNotes(long nowMillis) {
+        if (loading != null) {
+            // Nothing is scheduled until the loaded shards and their wheel are in place
+            return 0;
+        }
+        List<Note> due = new ArrayList<>();
+        expiry.advance(nowMillis, due);
+        if (due.isEmpty()) {
+            return 0;
+        }
+        // Grouped by shard; within one, removed (and reported) in insertion order
+        due.sort(Comparator.comparingInt((Note note) -> shardOf(note.getX()))
+                .thenComparing(SpatialGrid.INSERTION_ORDER));
+
+        int removed = 0;
+        int unpersisted = 0;
+        WriteAheadLog log = wal;
+        for (int start = 0; start < due.size(); ) {
+            int shard = shardOf(due.get(start).getX());
+            int end = start + 1;
+            while (end < due.size() && end - start < EXPIRY_BATCH && shardOf(due.get(end).getX()) == shard) {
+                end++;
+            }
+            long logPosition = 0;
+            int batchRemoved = 0;
+            long[] stamps = writeLock(shard, shard);
+            try {
+                for (int i = start; i < end; i++) {
+                    Note note = due.get(i);
+                    // Removed meanwhile, or kept by a pin until it is unpinned
+                    if (shards[shard].noteAt(note.getX(), note.getY()) != note
+                            || (pinnedNotesExempt && note.pinCount > 0)) {
+                        continue;
+                    }
+                    removeExpired(shard, note);
+                    if (log != null) {
+                        logPosition = log.logExpire(note);
+                    }
+                    batchRemoved++;
+                }
+            } finally {
+                unlockWrite(shard, shard, stamps);
+            }
+            if (!isDurable(log, logPosition)) {
+                unpersisted += batchRemoved;
+            }
+            removed += batchRemoved;
+            start = end;
+        }
+        expiredNotes.add(removed);
+        if (unpersisted > 0 && Log.isWarnEnabled()) {
+            Log.warn(unpersisted + " expired note(s) were removed but their removal could not be persisted");
+        }
+        return removed;
+    }
+
+    /**
+     * Replays an expiry read back from the write-ahead log: removes the note at (x, y)
+     * if it is still the one with that sequence.
+     */
+    void restoreExpiry(long sequence, int x, int y) {
+        awaitLoaded();
+        if (!inBounds(x, y)) {
+            return;
+        }
+        int shard = shardOf(x);
+        long[] stamps = writeLock(shard, shard);
+        try {
+            Note note = shards[shard].noteAt(x, y);
+            if (note != null && note.sequence == sequence) {
+                removeExpired(shard, note);
+            }
+        } finally {
+            unlockWrite(shard, shard, stamps);
+        }
+    }
+
+    // The caller holds the write lock of the note's shard
+    private void removeExpired(int shard, Note note) {
+        shards[shard].removeNote(note);
+        expiry.cancel(note);
+        noteVersions.incrementAndGet(shard * shapes.length + note.colorId());
+        for (BoardListener listener : listeners) {
+            listener.noteRemoved(note);
+        }
+    }
+
+    /**
+     * Number of notes removed because their TTL ran out.
+     */
+    public long getExpiredCount() {
+        return expiredNotes.sum();
+    }
+
+    // ---- versions ----
+
+    private void bumpNoteVersions(int shard) {
+        for (int c = 0; c < shapes.length; c++) {
+            noteVersions.incrementAndGet(shard * shapes.length + c);
+        }
+    }
+
+    /**
+     * Version of what query(color, byPoint, containsX, ...) can return: it changes
+     * whenever a note of that color (any color if null) in a shard the query reads is
+     * posted, removed, pinned or unpinned. Reads no locks; a change that completed
+     * before the call is always reflected, so a result captured after reading an
+     * equal version is still current.
+     */
+    long notesVersion(String color, boolean byPoint, int containsX) {
+        int from = byPoint ? shardOf(containsX - noteWidth + 1) : 0;
+        int to = byPoint ? shardOf(containsX) : shards.length - 1;
+        int colorId = -1;
+        if (color != null) {
+            Integer id = colorIds.get(color);
+            if (id == null) {
+                // Such a query never matches anything
+                return 0;
+            }
+            colorId = id;
+        }
+        // Counters only grow, so their sum changes exactly when one of them does
+        long version = 0;
+        for (int i = from; i <= to; i++) {
+            if (colorId >= 0) {
+                version += noteVersions.get(i * shapes.length + colorId);
+            } else {
+                for (int c = 0; c < shapes.length; c++) {
+                    version += noteVersions.get(i * shapes.length + c);
+                }
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Version of getPinKeys(), under the same rules as notesVersion.
+     */
+    long pinsVersion() {
+        long version = 0;
+        for (int i = 0; i < shards.length; i++) {
+            version += pinVersions.get(i);
+        }
+        return version;
+    }
+
+    // ---- statistics ----
+
+    /**
+     * Number of times a shard lock was not free and a caller had to wait for it.
+     */
+    public long getLockWaitCount() {
+        return lockWaits.sum();
+    }
+
+    /**
+     * Total time callers have spent waiting for shard locks, in nanoseconds.
+     */
+    public long getLockWaitNanos() {
+        return lockWaitNanos.sum();
+    }
+
+    /**
+     * Counts the notes and pins on the board under every shard's read lock,
+     * returned as { notes, pins }.
+     */
+    public long[] countNotesAndPins() {
+        Loading load = loading;
+        if (load != null) {
+            return load.countNotesAndPins();
+        }
+        int last = shards.length - 1;
+        long[] stamps = readLock(0, last);
+        try {
+            long notes = 0;
+            long pins = 0;
+            for (BoardShard shard : shards) {
+                notes += shard.noteCount();
+                pins += shard.pinCount();
+            }
+            return new long[] { notes, pins };
+        } finally {
+            unlockRead(0, last, stamps);
+        }
+    }
+
+    // ---- listeners ----
+
+    /**
+     * Dense id of a valid color, as used by Note.colorId(), or -1.
+     */
+    int colorIdOf(String color) {
+        Integer id = colorIds.get(color);
+        return id != null ? id : -1;
+    }
+
+    int colorCount() {
+        return shapes.length;
+    }
+
+    /**
+     * Name of the color with the given dense id.
+     */
+    String colorName(int colorId) {
+        return shapes[colorId].color;
+    }
+
+    public void addListener(BoardListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(BoardListener listener) {
+        listeners.remove(listener);
+    }
+
+    // ---- persistence ----
+
+    private static final String STORAGE_ERROR =
+            "ERROR " + Protocol.ERR_STORAGE + " Change applied but could not be persisted";
+
+    /**
+     * Starts recording every successful mutation in the given log.
+     */
+    void attachLog(WriteAheadLog log) {
+        this.wal = log;
+    }
+
+    // Waits outside the shard locks, so other clients keep working during the sync
+    private static boolean isDurable(WriteAheadLog log, long position) {
+        return log == null || log.awaitDurable(position);
+    }
+
+    /**
+     * Whole-board contents at one instant: notes in insertion order and packed pins.
+     */
+    static final class State {
+        final List<Note> notes;
+        final long[] pins;
+
+        State(List<Note> notes, long[] pins) {
+            this.notes = notes;
+            this.pins = pins;
+        }
+    }
+
+    /**
+     * Captures the whole board under every shard's read lock. whileLocked runs inside the
+     * same locks, so it can mark the log position that matches the captured state.
+     */
+    State captureState(Runnable whileLocked) {
+        awaitLoaded();
+        int last = shards.length - 1;
+        long[] stamps = readLock(0, last);
+        try {
+            whileLocked.run();
+
+            List<Note> notes = new ArrayList<>();
+            for (BoardShard shard : shards) {
+                shard.collectNotes(notes);
+            }
+            if (shards.length > 1) {
+                notes.sort(SpatialGrid.INSERTION_ORDER);
+            }
+            return new State(notes, sortedPins());
+        } finally {
+            unlockRead(0, last, stamps);
+        }
+    }
+
+    /**
+     * Gets all pins on the board.
+     */
+    public List<String> getAllPins() {
+        long[] keys = getPinKeys();
+        List<String> out = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            out.add(SpatialGrid.unpackX(key) + " " + SpatialGrid.unpackY(key));
+        }
+        return out;
+    }
+
+    /**
+     * Gets all pins packed as (x << 32 | y), ordered by x then y.
+     */
+    public long[] getPinKeys() {
+        Loading load = loading;
+        if (load != null) {
+            return load.pinKeys();
+        }
+        int last = shards.length - 1;
+        long[] stamps = readLock(0, last);
+        try {
+            return sortedPins();
+        } finally {
+            unlockRead(0, last, stamps);
+        }
+    }
+
+    // Every shard's pins in order; the caller holds every shard's read lock
+    private long[] sortedPins() {
+        int total = 0;
+        for (BoardShard shard : shards) {
+            total += shard.pinCount();
+        }
+        // Shards are ordered by x, so concatenating their sorted pins keeps the order
+        long[] out = new long[total];
+        int pos = 0;
+        for (BoardShard shard : shards) {
+            pos = shard.copySortedPinsTo(out, pos);
+        }
+        return out;
+    }
+
+    /**
+     * Queries notes based on search filters.
+     */
+    public List<Note> queryNotes(String color, Integer containsX, Integer containsY, String refersTo) {
+        return query(color, containsX, containsY, refersTo).toList();
+    }
+
+    /**
+     * Queries notes and captures their pinned state in one consistent view.
+     */
+    public QueryResult query(String color, Integer containsX, Integer containsY, String refersTo) {
+        boolean byPoint = containsX != null && containsY != null;
+        return query(color, byPoint, byPoint ? containsX : 0, byPoint ? containsY : 0, refersTo);
+    }
+
+    /**
+     * Same as query above, with the contains filter passed as primitives.
+     */
+    public QueryResult query(String color, boolean byPoint, int containsX, int containsY, String refersTo) {
+        return query(color, byPoint, containsX, containsY, refersTo, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns at most the first maxResults matches in insertion order, so a paged GET
+     * only collects the notes up to the end of its page.
+     */
+    public QueryResult query(String color, boolean byPoint, int containsX, int containsY, String refersTo,
+                             int maxResults) {
+        // A contains filter only needs the shards that can anchor a note over that point
+        int from = byPoint ? shardOf(containsX - noteWidth + 1) : 0;
+        int to = byPoint ? shardOf(containsX) : shards.length - 1;
+
+        int colorId = -1;
+        if (color != null) {
+            Integer id = colorIds.get(color);
+            if (id == null) {
+                // No note can have a color outside the board's set
+                return new QueryResult(Collections.emptyList());
+            }
+            colorId = id;
+        }
+        String lowerRefersTo = refersTo != null ? refersTo.toLowerCase() : null;
+
+        Loading load = loading;
+        if (load != null) {
+            return load.query(colorId, byPoint, containsX, containsY, lowerRefersTo, maxResults);
+        }
+        long[] stamps = readLock(from, to);
+        try {
+            List<Note> results = new ArrayList<>();
+            for (int i = from; i <= to; i++) {
+                // Each shard lists its notes in insertion order, so the first maxResults
+                // overall are among the first maxResults of every shard
+                int before = results.size();
+                shards[i].findNotes(colorId, byPoint, containsX, containsY, lowerRefersTo, results,
+                        before + maxResults < 0 ? Integer.MAX_VALUE : before + maxResults);
+            }
+            if (from != to) {
+                results.sort(SpatialGrid.INSERTION_ORDER);
+            }
+            if (results.size() > maxResults) {
+                results.subList(maxResults, results.size()).clear();
+            }
+            return new QueryResult(results);
+        } finally {
+            unlockRead(from, to, stamps);
+        }
+    }
+
+    /**
+     * Gets all notes on the board.
+     */
+    public List<Note> getAllNotes() {
+        return queryNotes(null, null, null, null);
+    }
+
+    // ---- loading ----
+
+    /**
+     * Builds the board's shards from a snapshot on a background thread and swaps them
+     * in, so the board can serve clients at once. Until then queries read the mapped
+     * snapshot directly and mutations wait. Must be called on an empty board before
+     * clients connect; the result is the number of notes loaded, and notes that do not
+     * fit the board are skipped. Loaded notes are neither logged nor reported to
+     * listeners, as they are already on disk and on the board.
+     */
+    CompletableFuture<Integer> loadInBackground(BoardSnapshot snapshot) {
+        Loading load = new Loading(snapshot);
+        loading = load;
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        Thread loader = new Thread(() -> {
+            try {
+                result.complete(load.build());
+            } catch (RuntimeException | Error e) {
+                result.completeExceptionally(e);
+            }
+        }, "snapshot-load");
+        loader.setDaemon(true);
+        loader.start();
+        return result;
+    }
+
+    // Mutations call this first, so none is applied to the board before it is loaded
+    private void awaitLoaded() {
+        Loading load = loading;
+        if (load == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                load.done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A snapshot being loaded, and the board's view of it until it is.
+     */
+    private final class Loading {
+        final BoardSnapshot snapshot;
+        // Board color id of each of the snapshot's colors, -1 if the board lacks it
+        final int[] colorOf;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Loading(BoardSnapshot snapshot) {
+            this.snapshot = snapshot;
+            this.colorOf = new int[snapshot.colorCount()];
+            for (int i = 0; i < colorOf.length; i++) {
+                colorOf[i] = colorIdOf(snapshot.colorName(i));
+            }
+        }
+
+        // The board color id of note i, or -1 if the note does not fit the board
+        private int colorIdAt(int i) {
+            int x = snapshot.x(i);
+            int y = snapshot.y(i);
+            if (x < 0 || y < 0 || x + noteWidth > width || y + noteHeight > height) {
+                return -1;
+            }
+            return colorOf[snapshot.colorIndex(i)];
+        }
+
+        // True if note i's TTL has run out, so the first tick after the load removes it
+        private boolean expired(int i, long now) {
+            long expiresAt = snapshot.expiresAt(i);
+            return expiresAt != 0 && expiresAt <= now
+                    && !(pinnedNotesExempt && snapshot.countPins(snapshot.x(i), snapshot.y(i), noteWidth, noteHeight) > 0);
+        }
+
+        private boolean pinFits(long pin) {
+            return inBounds(SpatialGrid.unpackX(pin), SpatialGrid.unpackY(pin));
+        }
+
+        // Builds the shards as restoring each pin and note in turn would, then swaps them in
+        int build() {
+            BoardShard[] fresh = newShards(shards.length);
+            ExpiryWheel wheel = expiry.successor();
+            // Pins first, so every note picks up its pin count as it is placed
+            for (int i = 0; i < snapshot.pinCount(); i++) {
+                long pin = snapshot.pin(i);
+                if (pinFits(pin)) {
+                    int x = SpatialGrid.unpackX(pin);
+                    fresh[shardOf(x)].addPin(x, SpatialGrid.unpackY(pin));
+                }
+            }
+            int restored = 0;
+            long lastSequence = -1;
+            for (int i = 0; i < snapshot.noteCount(); i++) {
+                int colorId = colorIdAt(i);
+                if (colorId < 0) {
+                    continue;
+                }
+                Note note = placeNote(fresh, wheel, snapshot.x(i), snapshot.y(i), colorId, snapshot.message(i),
+                        snapshot.sequence(i), snapshot.expiresAt(i));
+                if (note != null) {
+                    restored++;
+                    lastSequence = Math.max(lastSequence, note.sequence);
+                }
+            }
+
+            int last = shards.length - 1;
+            long[] stamps = writeLock(0, last);
+            try {
+                for (int i = 0; i < shards.length; i++) {
+                    shards[i] = fresh[i];
+                    bumpNoteVersions(i);
+                    pinVersions.incrementAndGet(i);
+                }
+                expiry = wheel;
+                nextSequence.accumulateAndGet(lastSequence + 1, Math::max);
+                loading = null;
+            } finally {
+                unlockWrite(0, last, stamps);
+            }
+            done.countDown();
+            return restored;
+        }
+
+        /**
+         * As Board.query, by a scan of the snapshot's columns; notes are built only for
+         * matches. Notes whose TTL has run out are left out.
+         */
+        QueryResult query(int colorId, boolean byPoint, int containsX, int containsY, String lowerRefersTo,
+                          int maxResults) {
+            List<Note> results = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < snapshot.noteCount() && results.size() < maxResults; i++) {
+                int noteColor = colorIdAt(i);
+                if (noteColor < 0 || colorId >= 0 && noteColor != colorId) {
+                    continue;
+                }
+                int x = snapshot.x(i);
+                int y = snapshot.y(i);
+                if (byPoint && (containsX < x || containsX >= x + noteWidth
+                        || containsY < y || containsY >= y + noteHeight)) {
+                    continue;
+                }
+                if (expired(i, now)) {
+                    continue;
+                }
+                Note note = new Note(x, y, shapes[noteColor], snapshot.message(i));
+                if (lowerRefersTo != null && !note.lowerMessage().contains(lowerRefersTo)) {
+                    continue;
+                }
+                note.pinCount = snapshot.countPins(x, y, noteWidth, noteHeight);
+                long expiresAt = snapshot.expiresAt(i);
+                note.sequence = snapshot.sequence(i);
+                if (expiresAt != 0) {
+                    note.expiry = new NoteExpiry(expiresAt);
+                }
+                results.add(note);
+            }
+            return new QueryResult(results);
+        }
+
+        long[] pinKeys() {
+            long[] keys = new long[snapshot.pinCount()];
+            int count = 0;
+            for (int i = 0; i < keys.length; i++) {
+                long pin = snapshot.pin(i);
+                if (pinFits(pin)) {
+                    keys[count++] = pin;
+                }
+            }
+            return count == keys.length ? keys : Arrays.copyOf(keys, count);
+        }
+
+        long[] countNotesAndPins() {
+            long notes = 0;
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < snapshot.noteCount(); i++) {
+                if (colorIdAt(i) >= 0 && !expired(i, now)) {
+                    notes++;
+                }
+            }
+            return new long[] { notes, pinKeys().length };
+        }
+    }
+}
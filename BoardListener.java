@@ -0,0 +1,19 @@
+/**
+ * Receives every successful board mutation.
+ * Callbacks run on the mutating thread while it still holds the affected shards'
+ * write locks, so changes that touch the same area are reported in the order they
+ * were applied. Implementations must only record or enqueue; they must not block
+ * or call back into the board.
+ */
+public interface BoardListener {
+    void notePosted(Note note);
+
+    void pinPlaced(int x, int y);
+
+    void pinRemoved(int x, int y);
+
+    // Called once per note removed by SHAKE or because its TTL ran out
+    void noteRemoved(Note note);
+
+    void boardCleared();
+}
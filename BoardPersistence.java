@@ -0,0 +1,251 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a Board on disk as a snapshot plus a write-ahead log.
+ *
+ * snapshot-N.bin holds the board exactly as it was when log segment N was started,
+ * so recovery loads the newest snapshot and replays segments N, N+1, ... over it.
+ * Snapshots are taken periodically while clients keep working; afterwards the
+ * segments and snapshots they supersede are deleted.
+ * When no segment has records past the newest snapshot, as after a clean shutdown,
+ * the board loads the snapshot in the background and serves reads from the mapped
+ * file meanwhile, so startup does not wait for the board's indexes to be built.
+ */
+class BoardPersistence implements Closeable {
+    private final Board board;
+    private final Path dir;
+    private final WriteAheadLog.Durability durability;
+    private final int snapshotIntervalSeconds;
+
+    private WriteAheadLog wal;
+    private ScheduledExecutorService snapshotter;
+    private long lastSnapshotPosition;
+
+    BoardPersistence(Board board, Path dir, WriteAheadLog.Durability durability, int snapshotIntervalSeconds) {
+        this.board = board;
+        this.dir = dir;
+        this.durability = durability;
+        this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+    }
+
+    /**
+     * Restores the board from disk, then starts logging new mutations.
+     * Must run before any client can reach the board.
+     */
+    void open() throws IOException {
+        Files.createDirectories(dir);
+        long started = System.nanoTime();
+
+        long snapshot = latest(snapshotFiles());
+        int notes = 0;
+        boolean background = snapshot >= 0 && !hasRecordsFrom(snapshot);
+        if (background) {
+            loadInBackground(snapshotPath(snapshot), started);
+        } else if (snapshot >= 0) {
+            notes = loadSnapshot(snapshotPath(snapshot));
+        }
+
+        long records = 0;
+        long nextSegment = Math.max(snapshot, 0);
+        for (long segment : walSegments()) {
+            if (segment < snapshot) {
+                Files.deleteIfExists(WriteAheadLog.segmentPath(dir, segment));
+                continue;
+            }
+            records += WriteAheadLog.replay(WriteAheadLog.segmentPath(dir, segment), board);
+            nextSegment = segment + 1;
+        }
+
+        if (!background && Log.isInfoEnabled()) {
+            Log.info("Recovered " + notes + " note(s) from snapshot and " + records
+                    + " log record(s) in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+        }
+
+        // Always start a fresh segment so a damaged tail is never appended to
+        wal = new WriteAheadLog(dir, nextSegment, durability);
+        board.attachLog(wal);
+
+        if (snapshotIntervalSeconds > 0) {
+            snapshotter = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread t = new Thread(task, "snapshot");
+                t.setDaemon(true);
+                return t;
+            });
+            snapshotter.scheduleWithFixedDelay(this::periodicSnapshot,
+                    snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * The log new mutations are appended to, once open() has run.
+     */
+    WriteAheadLog getLog() {
+        return wal;
+    }
+
+    private void periodicSnapshot() {
+        try {
+            if (wal.position() != lastSnapshotPosition) {
+                snapshot();
+            }
+        } catch (IOException e) {
+            if (Log.isEnabled(Log.Level.ERROR)) {
+                Log.error("Snapshot failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the current board and drops the log segments it replaces.
+     */
+    synchronized void snapshot() throws IOException {
+        long started = System.nanoTime();
+        long[] segment = new long[1];
+        long[] position = new long[1];
+        // Only the segment boundary is marked under the board's locks; the ended
+        // segment is written and synced once they are released
+        Board.State state = board.captureState(() -> {
+            segment[0] = wal.startSegment();
+            position[0] = wal.position();
+        });
+        wal.flush();
+
+        Path target = snapshotPath(segment[0]);
+        Path temp = dir.resolve(target.getFileName() + ".tmp");
+        BoardSnapshot.write(temp, state);
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        lastSnapshotPosition = position[0];
+
+        for (long old : snapshotFiles()) {
+            if (old < segment[0]) {
+                Files.deleteIfExists(snapshotPath(old));
+            }
+        }
+        for (long old : walSegments()) {
+            if (old < segment[0]) {
+                Files.deleteIfExists(WriteAheadLog.segmentPath(dir, old));
+            }
+        }
+
+        if (Log.isInfoEnabled()) {
+            Log.info("Snapshot of " + state.notes.size() + " note(s) and " + state.pins.length
+                    + " pin(s) written in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (snapshotter != null) {
+            snapshotter.shutdown();
+        }
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
+    // ---- snapshot format ----
+
+    private Path snapshotPath(long segment) {
+        return dir.resolve(String.format("snapshot-%016d.bin", segment));
+    }
+
+    /**
+     * Maps a snapshot into the (empty) board, returning the number of notes restored.
+     */
+    private int loadSnapshot(Path file) throws IOException {
+        BoardSnapshot snapshot = BoardSnapshot.map(file);
+        int restored = snapshot.restoreInto(board);
+        int rejected = snapshot.noteCount() - restored;
+        if (rejected > 0 && Log.isWarnEnabled()) {
+            Log.warn(rejected + " note(s) in " + file.getFileName() + " do not fit this board and were skipped");
+        }
+        return restored;
+    }
+
+    /**
+     * Starts loading a snapshot into the (empty) board while it serves reads from it.
+     * A snapshot that cannot be loaded stops the process without touching the files,
+     * as the same failure in open() would.
+     */
+    private void loadInBackground(Path file, long started) throws IOException {
+        BoardSnapshot snapshot = BoardSnapshot.map(file);
+        if (Log.isInfoEnabled()) {
+            Log.info("Serving " + snapshot.noteCount() + " note(s) from " + file.getFileName()
+                    + " while the board loads");
+        }
+        board.loadInBackground(snapshot).whenComplete((restored, failure) -> {
+            if (failure != null) {
+                if (Log.isEnabled(Log.Level.ERROR)) {
+                    Log.error("Could not load " + file.getFileName() + ": " + failure);
+                }
+                Runtime.getRuntime().halt(1);
+                return;
+            }
+            int rejected = snapshot.noteCount() - restored;
+            if (rejected > 0 && Log.isWarnEnabled()) {
+                Log.warn(rejected + " note(s) in " + file.getFileName() + " do not fit this board and were skipped");
+            }
+            if (Log.isInfoEnabled()) {
+                Log.info("Loaded " + restored + " note(s) from snapshot in "
+                        + (System.nanoTime() - started) / 1_000_000 + " ms");
+            }
+        });
+    }
+
+    // True if a log segment from the snapshot's on holds records to replay over it
+    private boolean hasRecordsFrom(long snapshot) throws IOException {
+        for (long segment : walSegments()) {
+            if (segment >= snapshot && Files.size(WriteAheadLog.segmentPath(dir, segment)) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ---- directory listing ----
+
+    private List<Long> snapshotFiles() throws IOException {
+        List<Long> out = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "snapshot-*.bin")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    out.add(Long.parseLong(name.substring(9, name.length() - 4)));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    private List<Long> walSegments() throws IOException {
+        List<Long> out = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path file : files) {
+                long segment = WriteAheadLog.segmentNumber(file);
+                if (segment >= 0) {
+                    out.add(segment);
+                }
+            }
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    private static long latest(List<Long> sorted) {
+        return sorted.isEmpty() ? -1 : sorted.get(sorted.size() - 1);
+    }
+}
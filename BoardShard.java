@@ -0,0 +1,82 @@
+import java.util.List;
+
+/**
+ * Notes and pins for one vertical strip of the board, [startX, endX).
+ * A note belongs to the strip holding its left edge and a pin to the strip holding it.
+ * ObjectShard keeps each note as an object in pointer-based indexes; ColumnarShard
+ * keeps them in parallel primitive columns and hands out Note views.
+ * Not thread-safe; Board guards each shard with its own lock.
+ */
+abstract class BoardShard {
+    final int startX;
+    final int endX;
+
+    BoardShard(int startX, int endX) {
+        this.startX = startX;
+        this.endX = endX;
+    }
+
+    abstract int noteCount();
+
+    abstract int pinCount();
+
+    abstract boolean hasPin(int x, int y);
+
+    /**
+     * Copies the packed pins, ordered by x then y, into out from pos on, returning
+     * the position after the last one.
+     */
+    abstract int copySortedPinsTo(long[] out, int pos);
+
+    /**
+     * Counts the pins of this shard lying inside the given note.
+     */
+    abstract int countPinsIn(Note note);
+
+    /**
+     * Returns the note whose top-left corner is exactly (x, y), or null.
+     */
+    abstract Note noteAt(int x, int y);
+
+    /**
+     * Adds a note whose pin count and sequence are set. A note with a TTL is kept as
+     * given, so noteAt returns that same object while it is on the board.
+     */
+    abstract void addNote(Note note);
+
+    abstract void removeNote(Note note);
+
+    /**
+     * True if the given note, as it is now on the board, has a pin.
+     */
+    abstract boolean isPinned(Note note);
+
+    abstract boolean addPin(int x, int y);
+
+    abstract boolean removePin(int x, int y);
+
+    /**
+     * Adds delta to the pin count of every note in this shard containing (x, y), and
+     * fills scratch with those notes showing their new pin count.
+     */
+    abstract void adjustPinCounts(int x, int y, int delta, List<Note> scratch);
+
+    /**
+     * Removes every note without a pin, returning how many were removed.
+     * The removed notes are added to removedOut unless it is null.
+     */
+    abstract int removeUnpinned(List<Note> removedOut);
+
+    /**
+     * Adds every note to out, in insertion order.
+     */
+    abstract void collectNotes(List<Note> out);
+
+    /**
+     * Adds the notes matching every given filter to results, in insertion order.
+     * colorId is -1 for any color and lowerRefersTo null for any message.
+     * Stops once results holds limit notes.
+     */
+    abstract void findNotes(int colorId, boolean byPoint, int containsX, int containsY, String lowerRefersTo,
+                            List<Note> results, int limit);
+}
@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar binary image of a whole board, written and read through FileChannel.map.
+ *
+ * Layout (big-endian):
+ *   int magic, int version, int noteCount, int pinCount, int colorCount, int blobLength
+ *   colors:    colorCount x (int length, UTF-8 bytes)
+ *   sequence:  long[noteCount]
+ *   expires:   long[noteCount], epoch ms or 0 for no TTL (from version 2)
+ *   x, y:      int[noteCount] each
+ *   color:     byte[noteCount], index into the color table
+ *   offsets:   int[noteCount + 1] into the message blob
+ *   blob:      UTF-8 message bytes
+ *   pins:      long[pinCount], packed (x << 32 | y), sorted
+ *   int magic
+ *
+ * Every column sits at a fixed offset, so a reader answers x(i), message(i) and so on
+ * straight from the mapped file without parsing records or building objects first;
+ * Board answers queries this way while it builds its indexes from a snapshot.
+ * The same bytes can be shipped to another host and read with wrap().
+ */
+final class BoardSnapshot {
+    private static final int MAGIC = 0x42425332; // "BBS2"
+    private static final int VERSION = 2;
+    private static final int HEADER = 6 * 4;
+
+    private final ByteBuffer data;
+    private final int noteCount;
+    private final int pinCount;
+    private final String[] colors;
+    private final int sequenceAt;
+    // -1 in a version 1 snapshot, which predates TTLs
+    private final int expiryAt;
+    private final int xAt;
+    private final int yAt;
+    private final int colorAt;
+    private final int offsetAt;
+    private final int blobAt;
+    private final int pinAt;
+
+    private BoardSnapshot(ByteBuffer data) throws IOException {
+        this.data = data;
+        if (data.limit() < HEADER || data.getInt(0) != MAGIC) {
+            throw new IOException("Not a board snapshot");
+        }
+        int version = data.getInt(4);
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        noteCount = data.getInt(8);
+        pinCount = data.getInt(12);
+        int colorCount = data.getInt(16);
+        int blobLength = data.getInt(20);
+
+        colors = new String[colorCount];
+        int pos = HEADER;
+        for (int i = 0; i < colorCount; i++) {
+            int length = data.getInt(pos);
+            colors[i] = decode(pos + 4, length);
+            pos += 4 + length;
+        }
+
+        sequenceAt = pos;
+        expiryAt = version >= 2 ? sequenceAt + 8 * noteCount : -1;
+        xAt = (version >= 2 ? expiryAt : sequenceAt) + 8 * noteCount;
+        yAt = xAt + 4 * noteCount;
+        colorAt = yAt + 4 * noteCount;
+        offsetAt = colorAt + noteCount;
+        blobAt = offsetAt + 4 * (noteCount + 1);
+        pinAt = blobAt + blobLength;
+        int end = pinAt + 8 * pinCount;
+        if (end + 4 > data.limit() || data.getInt(end) != MAGIC) {
+            throw new IOException("Snapshot is truncated");
+        }
+    }
+
+    /**
+     * Maps a snapshot file read-only.
+     */
+    static BoardSnapshot map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot is too large to map: " + file);
+            }
+            return new BoardSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads a snapshot held in memory, e.g. one received from another host.
+     */
+    static BoardSnapshot wrap(ByteBuffer bytes) throws IOException {
+        return new BoardSnapshot(bytes.slice());
+    }
+
+    int noteCount() { return noteCount; }
+    int pinCount() { return pinCount; }
+
+    long sequence(int i) { return data.getLong(sequenceAt + 8 * i); }
+    long expiresAt(int i) { return expiryAt >= 0 ? data.getLong(expiryAt + 8 * i) : 0; }
+    int x(int i) { return data.getInt(xAt + 4 * i); }
+    int y(int i) { return data.getInt(yAt + 4 * i); }
+    String color(int i) { return colors[colorIndex(i)]; }
+    long pin(int i) { return data.getLong(pinAt + 8 * i); }
+
+    // Index of note i's color in the color table
+    int colorIndex(int i) { return data.get(colorAt + i) & 0xFF; }
+    int colorCount() { return colors.length; }
+    String colorName(int index) { return colors[index]; }
+
+    /**
+     * Number of pins inside the width x height rectangle at (x, y), found by a binary
+     * search of the sorted pin column per column of the rectangle.
+     */
+    int countPins(int x, int y, int width, int height) {
+        int count = 0;
+        for (int px = x; px < x + width; px++) {
+            long end = SpatialGrid.pack(px, y + height);
+            for (int i = firstPinAtOrAfter(SpatialGrid.pack(px, y)); i < pinCount && pin(i) < end; i++) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int firstPinAtOrAfter(long key) {
+        int lo = 0;
+        int hi = pinCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (pin(mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    String message(int i) {
+        int start = data.getInt(offsetAt + 4 * i);
+        int end = data.getInt(offsetAt + 4 * (i + 1));
+        return decode(blobAt + start, end - start);
+    }
+
+    private String decode(int at, int length) {
+        if (data.hasArray()) {
+            return new String(data.array(), data.arrayOffset() + at, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer view = data.duplicate();
+        view.position(at);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Loads the snapshot into an empty board, returning the number of notes restored.
+     * Notes that do not fit the board (other size or colors) are skipped.
+     */
+    int restoreInto(Board board) {
+        // Pins first, so every restored note picks up its pin count as it is placed
+        for (int i = 0; i < pinCount; i++) {
+            long pin = pin(i);
+            board.placePin(SpatialGrid.unpackX(pin), SpatialGrid.unpackY(pin));
+        }
+        int restored = 0;
+        for (int i = 0; i < noteCount; i++) {
+            String result = board.restoreNote(sequence(i), x(i), y(i), color(i), message(i), expiresAt(i));
+            if (result.startsWith(Protocol.RESP_OK)) {
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    // ---- writing ----
+
+    /**
+     * Writes the state to file through a mapped buffer and forces it to disk.
+     */
+    static void write(Path file, Board.State state) throws IOException {
+        Encoder encoder = new Encoder(state);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, encoder.size);
+            encoder.writeTo(out);
+            out.force();
+        }
+    }
+
+    /**
+     * The snapshot of state as bytes in memory, e.g. to send to another host.
+     */
+    static byte[] toBytes(Board.State state) throws IOException {
+        Encoder encoder = new Encoder(state);
+        ByteBuffer out = ByteBuffer.allocate((int) encoder.size);
+        encoder.writeTo(out);
+        return out.array();
+    }
+
+    // Encoded color table and messages of a state, and the size of its snapshot
+    private static final class Encoder {
+        final Board.State state;
+        final Map<String, Integer> colorIds = new LinkedHashMap<>();
+        final List<byte[]> colorNames = new ArrayList<>();
+        final byte[][] messages;
+        final long blobLength;
+        final long size;
+
+        Encoder(Board.State state) throws IOException {
+            this.state = state;
+            List<Note> notes = state.notes;
+            int count = notes.size();
+
+            messages = new byte[count][];
+            long blob = 0;
+            for (int i = 0; i < count; i++) {
+                Note note = notes.get(i);
+                colorIds.putIfAbsent(note.getColor(), colorIds.size());
+                messages[i] = note.getMessage().getBytes(StandardCharsets.UTF_8);
+                blob += messages[i].length;
+            }
+            if (colorIds.size() > 256) {
+                throw new IOException("Too many colors for a snapshot");
+            }
+            blobLength = blob;
+            long total = HEADER;
+            for (String color : colorIds.keySet()) {
+                byte[] name = color.getBytes(StandardCharsets.UTF_8);
+                colorNames.add(name);
+                total += 4 + name.length;
+            }
+            total += (8L + 8 + 4 + 4 + 1 + 4) * count + 4 + blobLength + 8L * state.pins.length + 4;
+            if (total > Integer.MAX_VALUE) {
+                throw new IOException("Board is too large for one snapshot");
+            }
+            size = total;
+        }
+
+        void writeTo(ByteBuffer out) {
+            List<Note> notes = state.notes;
+            out.putInt(MAGIC).putInt(VERSION).putInt(notes.size()).putInt(state.pins.length)
+                    .putInt(colorNames.size()).putInt((int) blobLength);
+            for (byte[] name : colorNames) {
+                out.putInt(name.length).put(name);
+            }
+            for (Note note : notes) {
+                out.putLong(note.sequence);
+            }
+            for (Note note : notes) {
+                out.putLong(note.expiresAt());
+            }
+            for (Note note : notes) {
+                out.putInt(note.getX());
+            }
+            for (Note note : notes) {
+                out.putInt(note.getY());
+            }
+            for (Note note : notes) {
+                out.put((byte) (int) colorIds.get(note.getColor()));
+            }
+            int offset = 0;
+            out.putInt(0);
+            for (byte[] message : messages) {
+                offset += message.length;
+                out.putInt(offset);
+            }
+            for (byte[] message : messages) {
+                out.put(message);
+            }
+            for (long pin : state.pins) {
+                out.putLong(pin);
+            }
+            out.putInt(MAGIC);
+        }
+    }
+}
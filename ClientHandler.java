@@ -1,264 +1,209 @@
 import java.io.*;
 import java.net.*;
-import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Handles communication with a single client in a separate thread.
+ * Handles communication with a single client in a separate thread,
+ * using blocking socket streams.
+ * Responses go into a buffered writer that is flushed only once every command
+ * already received has been answered, so pipelined commands share one flush.
+ * Once the client subscribes, a second thread pushes its events; both threads
+ * write whole responses or event batches while holding the writer's lock. The
+ * pusher runs on the executor given to setEventExecutor, so it is a virtual
+ * thread when the connection is.
+ * A subscriber that falls too far behind is disconnected by its pusher, so board
+ * writers, which raise the overflow while holding shard locks, never close sockets.
  */
 public class ClientHandler implements Runnable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final Socket socket;
-    private final Board board;
-    private final int clientId;
+    private final CommandProcessor processor;
+    private final ServerMetrics metrics;
     private BufferedReader in;
-    private PrintWriter out;
+    private volatile PrintWriter out;
+
+    private Executor eventExecutor;
+    // Guarded by this; pusher is set once the pusher is running
+    private boolean pusherStarted;
+    private Thread pusher;
+    private volatile boolean closed;
+    // True while the pusher is writing events, or waiting to, when it may be blocked
+    // on a client that stopped reading
+    private volatile boolean pushing;
+    private final AtomicBoolean disconnecting = new AtomicBoolean();
+
+    // Closes the sockets of overflowed subscribers whose pusher is blocked mid-write
+    private static final ExecutorService STUCK_PUSHER_CLOSER = Executors.newSingleThreadExecutor(task -> {
+        Thread t = new Thread(task, "subscriber-disconnect");
+        t.setDaemon(true);
+        return t;
+    });
 
     public ClientHandler(Socket socket, Board board, int clientId) {
+        this(socket, board, null, clientId);
+    }
+
+    public ClientHandler(Socket socket, Board board, SubscriptionHub hub, int clientId) {
+        this(socket, board, hub, null, null, clientId);
+    }
+
+    public ClientHandler(Socket socket, Board board, SubscriptionHub hub, ServerMetrics metrics,
+                         ResponseCache cache, int clientId) {
         this.socket = socket;
-        this.board = board;
-        this.clientId = clientId;
+        this.metrics = metrics;
+        this.processor = new CommandProcessor(board, clientId, hub, metrics, cache);
+        this.processor.setEventWakeup(this::eventsReady);
+    }
+
+    /**
+     * Sets where the subscription pusher runs; by default it gets its own daemon thread.
+     */
+    public void setEventExecutor(Executor eventExecutor) {
+        this.eventExecutor = eventExecutor;
     }
 
     @Override
     public void run() {
+        if (metrics != null) {
+            metrics.connectionOpened();
+        }
         try {
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            InputStream input = socket.getInputStream();
+            OutputStream output = socket.getOutputStream();
+            if (metrics != null) {
+                input = metrics.countIn(input);
+                output = metrics.countOut(output);
+            }
+            in = new BufferedReader(new InputStreamReader(input), BUFFER_SIZE);
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(output), BUFFER_SIZE));
 
             // Send initialization message
-            sendInit();
+            String initMsg = processor.initMessage();
+            out.println(initMsg);
+            out.flush();
+            if (Log.isDebugEnabled()) {
+                processor.log(Log.Level.DEBUG, "Sent: " + initMsg);
+            }
 
             // Process client commands
-            String command;
-            while ((command = in.readLine()) != null) {
-                command = command.trim();
-                if (command.isEmpty()) {
-                    continue;
-                }
-
-                log("Received: " + command);
-                String response = processCommand(command);
+            String line;
+            while ((line = in.readLine()) != null) {
+                synchronized (out) {
+                    processor.handleLine(line, out);
 
-                if (response != null) {
-                    sendResponse(response);
-                }
+                    if (processor.isClosing()) {
+                        break;
+                    }
 
-                if (command.startsWith(Protocol.CMD_DISCONNECT)) {
-                    break;
+                    // Keep buffering while more pipelined commands are already waiting
+                    if (!in.ready()) {
+                        out.flush();
+                    }
                 }
             }
+            synchronized (out) {
+                out.flush();
+            }
 
         } catch (IOException e) {
-            log("Connection error: " + e.getMessage());
+            if (Log.isWarnEnabled()) {
+                processor.log(Log.Level.WARN, "Connection error: " + e.getMessage());
+            }
         } finally {
             cleanup();
         }
     }
 
     /**
-     * Sends the init message to the client.
+     * Subscription wakeup, called on a board writer's thread: starts or signals the
+     * pusher, which also drops the connection if the client fell too far behind.
+     * Does no I/O itself, as the writer holds shard locks.
      */
-    private void sendInit() {
-        StringBuilder colorsStr = new StringBuilder();
-        for (String color : board.getValidColors()) {
-            if (colorsStr.length() > 0) colorsStr.append(" ");
-            colorsStr.append(color);
+    private void eventsReady() {
+        if (processor.isEventOverflow() && pushing && !disconnecting.get()) {
+            // The pusher only sees the overflow once its write returns, which it may
+            // never do for a client that stopped reading; closing the socket unblocks it
+            STUCK_PUSHER_CLOSER.execute(this::disconnectOverflowed);
         }
-
-        String initMsg = Protocol.formatInit(
-                board.getWidth(), board.getHeight(),
-                board.getNoteWidth(), board.getNoteHeight(),
-                colorsStr.toString()
-        );
-
-        out.println(initMsg);
-        log("Sent: " + initMsg);
-    }
-
-    /**
-     * Processes command from client.
-     */
-    private String processCommand(String command) {
-        try {
-            String[] parts = command.split("\\s+", 2);
-            String cmd = parts[0].toUpperCase();
-
-            switch (cmd) {
-                case Protocol.CMD_POST:
-                    return handlePost(parts.length > 1 ? parts[1] : "");
-
-                case Protocol.CMD_GET:
-                    return handleGet(parts.length > 1 ? parts[1] : "");
-
-                case Protocol.CMD_PIN:
-                    return handlePin(parts.length > 1 ? parts[1] : "");
-
-                case Protocol.CMD_UNPIN:
-                    return handleUnpin(parts.length > 1 ? parts[1] : "");
-
-                case Protocol.CMD_SHAKE:
-                    return board.shake();
-
-                case Protocol.CMD_CLEAR:
-                    return board.clear();
-
-                case Protocol.CMD_DISCONNECT:
-                    log("Client disconnecting");
-                    return "OK Goodbye";
-
-                default:
-                    return "ERROR UNKNOWN_COMMAND Unknown command: " + cmd;
+        Thread current;
+        synchronized (this) {
+            if (!pusherStarted) {
+                pusherStarted = true;
+                startPusher();
+                return;
             }
-        } catch (Exception e) {
-            return "ERROR INVALID_FORMAT " + e.getMessage();
+            current = pusher;
+        }
+        // A pusher not running yet checks for events before it first parks
+        if (current != null) {
+            LockSupport.unpark(current);
         }
     }
 
-    /**
-     * POST command
-     * Format: POST <x> <y> <color> <message>
-     */
-    private String handlePost(String args) {
-        try {
-            String[] parts = args.split("\\s+", 4);
-            if (parts.length < 4) {
-                return "ERROR INVALID_FORMAT Expected: POST <x> <y> <color> <message>";
-            }
-
-            int x = Integer.parseInt(parts[0]);
-            int y = Integer.parseInt(parts[1]);
-            String color = parts[2].toLowerCase();
-            String message = parts[3];
-
-            return board.postNote(x, y, color, message);
-
-        } catch (NumberFormatException e) {
-            return "ERROR INVALID_FORMAT Coordinates must be integers";
+    private void startPusher() {
+        if (eventExecutor != null) {
+            eventExecutor.execute(this::pushEvents);
+            return;
         }
+        Thread thread = new Thread(this::pushEvents, "events-" + socket.getPort());
+        thread.setDaemon(true);
+        thread.start();
     }
 
     /**
-     * GET command
-     * Format: GET [PINS | color=<c> contains=<x> <y> refersTo=<substring>]
+     * Pusher loop: sends whatever events are waiting, then parks until the next wakeup.
      */
-    private String handleGet(String args) {
-        try {
-            // Special case: GET PINS
-            if (args.toUpperCase().equals("PINS")) {
-                List<String> pins = board.getAllPins();
-                StringBuilder response = new StringBuilder();
-                for (String pin : pins) {
-                    response.append("PIN ").append(pin).append("\n");
-                }
-                response.append("END");
-                return response.toString();
+    private void pushEvents() {
+        synchronized (this) {
+            pusher = Thread.currentThread();
+        }
+        while (!closed) {
+            if (processor.isEventOverflow()) {
+                disconnectOverflowed();
+                return;
             }
-
-            // Parse query criteria
-            String color = null;
-            Integer containsX = null;
-            Integer containsY = null;
-            String refersTo = null;
-
-            if (!args.isEmpty()) {
-                String[] criteria = args.split("\\s+");
-
-                for (int i = 0; i < criteria.length; i++) {
-                    if (criteria[i].startsWith("color=")) {
-                        color = criteria[i].substring(6).toLowerCase();
-
-                    } else if (criteria[i].equals("contains") && i + 2 < criteria.length) {
-                        containsX = Integer.parseInt(criteria[i + 1]);
-                        containsY = Integer.parseInt(criteria[i + 2]);
-                        i += 2;
-
-                    } else if (criteria[i].startsWith("contains=") && i + 1 < criteria.length) {
-                        containsX = Integer.parseInt(criteria[i].substring(9));
-                        containsY = Integer.parseInt(criteria[i + 1]);
-                        i += 1;
-
-                    } else if (criteria[i].equals("refersTo") && i + 1 < criteria.length) {
-                        refersTo = criteria[i + 1];
-                        i += 1;
-
-                    } else if (criteria[i].startsWith("refersTo=")) {
-                        refersTo = criteria[i].substring(9);
+            PrintWriter writer = out;
+            if (writer != null && processor.hasPendingEvents()) {
+                // Set before checking again, so either this or eventsReady sees the overflow
+                pushing = true;
+                if (processor.isEventOverflow()) {
+                    continue;
+                }
+                synchronized (writer) {
+                    try {
+                        processor.drainEvents(writer);
+                    } catch (IOException e) {
+                        // PrintWriter never throws; checkError reports failures
+                    }
+                    writer.flush();
+                    pushing = false;
+                    if (writer.checkError()) {
+                        return;
                     }
                 }
+                continue;
             }
-
-            List<Note> notes = board.queryNotes(color, containsX, containsY, refersTo);
-
-            StringBuilder response = new StringBuilder();
-            for (Note note : notes) {
-                boolean pinned = board.isNotePinned(note);
-
-                response.append("NOTE ")
-                        .append(note.getX()).append(" ")
-                        .append(note.getY()).append(" ")
-                        .append(note.getColor()).append(" ")
-                        .append(pinned ? "pinned" : "unpinned").append(" ")
-                        .append(note.getMessage())
-                        .append("\n");
-            }
-            response.append("END");
-
-            return response.toString();
-
-        } catch (NumberFormatException e) {
-            return "ERROR INVALID_FORMAT Coordinates must be integers";
+            LockSupport.park(this);
         }
     }
 
-    /**
-     * PIN command.
-     * Format: PIN <x> <y>
-     */
-    private String handlePin(String args) {
-        try {
-            String[] parts = args.split("\\s+");
-            if (parts.length < 2) {
-                return "ERROR INVALID_FORMAT Expected: PIN <x> <y>";
-            }
-
-            int x = Integer.parseInt(parts[0]);
-            int y = Integer.parseInt(parts[1]);
-
-            return board.placePin(x, y);
-
-        } catch (NumberFormatException e) {
-            return "ERROR INVALID_FORMAT Coordinates must be integers";
+    // Closing the socket also ends the reading thread, which then cleans up
+    private void disconnectOverflowed() {
+        if (!disconnecting.compareAndSet(false, true)) {
+            return;
         }
-    }
-
-    /**
-     * UNPIN command.
-     * Format: UNPIN <x> <y>
-     */
-    private String handleUnpin(String args) {
-        try {
-            String[] parts = args.split("\\s+");
-            if (parts.length < 2) {
-                return "ERROR INVALID_FORMAT Expected: UNPIN <x> <y>";
-            }
-
-            int x = Integer.parseInt(parts[0]);
-            int y = Integer.parseInt(parts[1]);
-
-            return board.removePin(x, y);
-
-        } catch (NumberFormatException e) {
-            return "ERROR INVALID_FORMAT Coordinates must be integers";
+        if (Log.isWarnEnabled()) {
+            processor.log(Log.Level.WARN, "Too many unsent events, disconnecting");
         }
-    }
-
-    /**
-     * Sends response to client.
-     */
-    private void sendResponse(String response) {
-        String[] lines = response.split("\n");
-        for (String line : lines) {
-            out.println(line);
-            log("Sent: " + line);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
         }
     }
 
@@ -266,20 +211,27 @@ public class ClientHandler implements Runnable {
      * Cleans up resources.
      */
     private void cleanup() {
+        closed = true;
+        processor.close();
+        if (metrics != null) {
+            metrics.connectionClosed();
+        }
+        synchronized (this) {
+            if (pusher != null) {
+                LockSupport.unpark(pusher);
+            }
+        }
         try {
             if (in != null) in.close();
             if (out != null) out.close();
             if (socket != null) socket.close();
-            log("Connection closed");
+            if (Log.isInfoEnabled()) {
+                processor.log(Log.Level.INFO, "Connection closed");
+            }
         } catch (IOException e) {
-            log("Error closing connection: " + e.getMessage());
+            if (Log.isWarnEnabled()) {
+                processor.log(Log.Level.WARN, "Error closing connection: " + e.getMessage());
+            }
         }
     }
-
-    /**
-     * Logs message with client ID.
-     */
-    private void log(String message) {
-        System.out.println("[Client #" + clientId + "] " + message);
-    }
 }
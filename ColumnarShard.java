@@ -0,0 +1,475 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * BoardShard keeping its notes as rows of parallel primitive columns, in insertion
+ * order: position, color ID, sequence and pin count, with every message packed into
+ * one byte arena. A note costs a few dozen bytes rather than a Note object, its
+ * message String and its index entries; notes are handed out as Note views built
+ * from their row. A note posted with a TTL keeps the Note it was posted as, since
+ * the ExpiryWheel links it, and that object serves as its view.
+ *
+ * Removing a note marks its row dead, and the columns are compacted once dead rows
+ * outnumber live ones. Rows are bucketed by the grid cell of their top-left corner in
+ * chains of row numbers, so point lookups stay local; color, text and SHAKE are
+ * linear scans over the columns instead of separate indexes.
+ */
+final class ColumnarShard extends BoardShard {
+    static final int MAX_COLORS = Short.MAX_VALUE;
+
+    private static final int MIN_CAPACITY = 64;
+
+    // Row state bits: the row holds a note, its message chars are all below 0x80,
+    // they are stored as two bytes each rather than one, and the note has a TTL
+    private static final byte LIVE = 1;
+    private static final byte ASCII = 2;
+    private static final byte WIDE = 4;
+    private static final byte TIMED = 8;
+
+    // Whether lower-casing in the default locale maps ASCII letters to ASCII letters,
+    // so refersTo can be matched on the bytes of an ASCII message
+    private static final boolean ASCII_LOWER_CASE =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZ".toLowerCase().equals("abcdefghijklmnopqrstuvwxyz");
+
+    private final NoteShape[] shapes;
+    private final int noteWidth;
+    private final int noteHeight;
+
+    private int[] xs = new int[MIN_CAPACITY];
+    private int[] ys = new int[MIN_CAPACITY];
+    private short[] colorIds = new short[MIN_CAPACITY];
+    private byte[] states = new byte[MIN_CAPACITY];
+    private long[] sequences = new long[MIN_CAPACITY];
+    private int[] pinCounts = new int[MIN_CAPACITY];
+    // Offset of each row's message in the arena; it runs to the next row's offset
+    private int[] messageStarts = new int[MIN_CAPACITY];
+    private int end;
+    private int size;
+
+    private byte[] arena = new byte[1024];
+    private int arenaEnd;
+
+    // Grid over the strip as SpatialGrid lays it out: the first row anchored in each
+    // cell, -1 for none, and the next row anchored in the same cell, -1 at the end
+    private final int gridWidth;
+    private final int height;
+    private final int cellWidth;
+    private final int cellHeight;
+    private final int cols;
+    private final int[] cellHeads;
+    private int[] nextInCell = new int[MIN_CAPACITY];
+
+    private final PinSet pins = new PinSet();
+    // The Note of each note with a TTL, by packed top-left corner
+    private final LongHashMap<Note> timed = new LongHashMap<>();
+
+    ColumnarShard(int startX, int endX, int boardWidth, int boardHeight, int noteWidth, int noteHeight,
+                  NoteShape[] shapes) {
+        super(startX, endX);
+        this.shapes = shapes;
+        this.noteWidth = noteWidth;
+        this.noteHeight = noteHeight;
+        // Notes anchored in the strip reach up to one note width past its right edge
+        this.gridWidth = Math.min(boardWidth, endX + noteWidth) - startX;
+        this.height = boardHeight;
+        this.cellWidth = SpatialGrid.cellSize(boardWidth, noteWidth);
+        this.cellHeight = SpatialGrid.cellSize(boardHeight, noteHeight);
+        this.cols = Math.max(1, SpatialGrid.ceilDiv(gridWidth, cellWidth));
+        int rows = Math.max(1, SpatialGrid.ceilDiv(boardHeight, cellHeight));
+        this.cellHeads = new int[cols * rows];
+        Arrays.fill(cellHeads, -1);
+    }
+
+    @Override
+    int noteCount() {
+        return size;
+    }
+
+    @Override
+    int pinCount() {
+        return pins.size();
+    }
+
+    @Override
+    boolean hasPin(int x, int y) {
+        return pins.contains(x, y);
+    }
+
+    @Override
+    int copySortedPinsTo(long[] out, int pos) {
+        return pins.copySortedTo(out, pos);
+    }
+
+    @Override
+    int countPinsIn(Note note) {
+        int from = Math.max(note.getX(), startX);
+        int to = Math.min(note.getX() + note.getWidth(), endX);
+        return from < to ? pins.countIn(from, note.getY(), to - from, note.getHeight()) : 0;
+    }
+
+    @Override
+    Note noteAt(int x, int y) {
+        int row = rowAt(x, y);
+        return row >= 0 ? view(row) : null;
+    }
+
+    @Override
+    boolean isPinned(Note note) {
+        int row = rowAt(note.getX(), note.getY());
+        if (row >= 0 && sequences[row] == note.sequence) {
+            return pinCounts[row] > 0;
+        }
+        return note.pinCount > 0;
+    }
+
+    @Override
+    void addNote(Note note) {
+        if (end == xs.length) {
+            if (end - size >= size) {
+                compact();
+            } else {
+                resize(xs.length * 2);
+            }
+        }
+        int row = end++;
+        xs[row] = note.getX();
+        ys[row] = note.getY();
+        colorIds[row] = (short) note.colorId();
+        sequences[row] = note.sequence;
+        pinCounts[row] = note.pinCount;
+        byte state = (byte) (LIVE | appendMessage(row, note.getMessage()));
+        if (note.expiry != null) {
+            state |= TIMED;
+            timed.put(SpatialGrid.pack(note.getX(), note.getY()), note);
+        }
+        states[row] = state;
+        link(row);
+        size++;
+    }
+
+    @Override
+    void removeNote(Note note) {
+        int row = rowAt(note.getX(), note.getY());
+        if (row < 0) {
+            return;
+        }
+        unlink(row);
+        kill(row);
+        if (end - size >= MIN_CAPACITY && end - size > size) {
+            compact();
+        }
+    }
+
+    @Override
+    boolean addPin(int x, int y) {
+        return pins.add(x, y);
+    }
+
+    @Override
+    boolean removePin(int x, int y) {
+        return pins.remove(x, y);
+    }
+
+    @Override
+    void adjustPinCounts(int x, int y, int delta, List<Note> scratch) {
+        scratch.clear();
+        int[] found = rowsContaining(x, y);
+        for (int i = 1; i <= found[0]; i++) {
+            int row = found[i];
+            pinCounts[row] += delta;
+            if ((states[row] & TIMED) != 0) {
+                timed.get(SpatialGrid.pack(xs[row], ys[row])).pinCount = pinCounts[row];
+            }
+            scratch.add(view(row));
+        }
+    }
+
+    /**
+     * One pass over the pin count column, then one compaction; the cost is
+     * proportional to the shard's notes rather than to the notes removed.
+     */
+    @Override
+    int removeUnpinned(List<Note> removedOut) {
+        int removed = 0;
+        for (int row = 0; row < end; row++) {
+            if (states[row] != 0 && pinCounts[row] == 0) {
+                if (removedOut != null) {
+                    removedOut.add(view(row));
+                }
+                kill(row);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            // Relinks the cells, which still chain the rows just killed
+            compact();
+        }
+        return removed;
+    }
+
+    @Override
+    void collectNotes(List<Note> out) {
+        for (int row = 0; row < end; row++) {
+            if (states[row] != 0) {
+                out.add(view(row));
+            }
+        }
+    }
+
+    /**
+     * A contains filter looks at the rows of at most 2x2 cells; otherwise the color,
+     * state and message columns are scanned in row order, and only matching rows
+     * become Note views.
+     */
+    @Override
+    void findNotes(int colorId, boolean byPoint, int containsX, int containsY, String lowerRefersTo,
+                   List<Note> results, int limit) {
+        byte[] needle = lowerRefersTo != null ? asciiBytes(lowerRefersTo) : null;
+        if (byPoint) {
+            int[] found = rowsContaining(containsX, containsY);
+            Arrays.sort(found, 1, found[0] + 1);
+            for (int i = 1; i <= found[0] && results.size() < limit; i++) {
+                int row = found[i];
+                if ((colorId < 0 || colorIds[row] == colorId)
+                        && (lowerRefersTo == null || refersTo(row, lowerRefersTo, needle))) {
+                    results.add(view(row));
+                }
+            }
+            return;
+        }
+        for (int row = 0; row < end && results.size() < limit; row++) {
+            if (states[row] == 0 || (colorId >= 0 && colorIds[row] != colorId)) {
+                continue;
+            }
+            if (lowerRefersTo == null || refersTo(row, lowerRefersTo, needle)) {
+                results.add(view(row));
+            }
+        }
+    }
+
+    // ---- rows ----
+
+    private Note view(int row) {
+        if ((states[row] & TIMED) != 0) {
+            return timed.get(SpatialGrid.pack(xs[row], ys[row]));
+        }
+        Note note = new Note(xs[row], ys[row], shapes[colorIds[row]], message(row));
+        note.sequence = sequences[row];
+        note.pinCount = pinCounts[row];
+        return note;
+    }
+
+    // The live row anchored at (x, y), or -1
+    private int rowAt(int x, int y) {
+        if (x < startX || x >= endX || y < 0 || y >= height) {
+            return -1;
+        }
+        for (int row = cellHeads[cellOf(x, y)]; row >= 0; row = nextInCell[row]) {
+            if (xs[row] == x && ys[row] == y) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The rows whose note contains (px, py), counted in element 0 and listed after it.
+     * Only the cell holding the point and its left/upper neighbours can anchor one.
+     */
+    private int[] rowsContaining(int px, int py) {
+        int[] found = new int[5];
+        if (px < startX || px - startX >= gridWidth || py < 0 || py >= height) {
+            return found;
+        }
+        int cx = (px - startX) / cellWidth;
+        int cy = py / cellHeight;
+        for (int y = Math.max(0, cy - 1); y <= cy; y++) {
+            for (int x = Math.max(0, cx - 1); x <= cx; x++) {
+                for (int row = cellHeads[y * cols + x]; row >= 0; row = nextInCell[row]) {
+                    if (px >= xs[row] && px < xs[row] + noteWidth && py >= ys[row] && py < ys[row] + noteHeight) {
+                        if (found[0] + 1 == found.length) {
+                            found = Arrays.copyOf(found, found.length * 2);
+                        }
+                        found[++found[0]] = row;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private void kill(int row) {
+        if ((states[row] & TIMED) != 0) {
+            timed.remove(SpatialGrid.pack(xs[row], ys[row]));
+        }
+        states[row] = 0;
+        size--;
+    }
+
+    private int cellOf(int x, int y) {
+        return (y / cellHeight) * cols + (x - startX) / cellWidth;
+    }
+
+    private void link(int row) {
+        int cell = cellOf(xs[row], ys[row]);
+        nextInCell[row] = cellHeads[cell];
+        cellHeads[cell] = row;
+    }
+
+    private void unlink(int row) {
+        int cell = cellOf(xs[row], ys[row]);
+        if (cellHeads[cell] == row) {
+            cellHeads[cell] = nextInCell[row];
+            return;
+        }
+        int prev = cellHeads[cell];
+        while (nextInCell[prev] != row) {
+            prev = nextInCell[prev];
+        }
+        nextInCell[prev] = nextInCell[row];
+    }
+
+    /**
+     * Moves the live rows and their messages down over the dead ones, keeping their
+     * order, shrinks columns left mostly empty, and rebuilds the cell chains.
+     */
+    private void compact() {
+        int to = 0;
+        int arenaTo = 0;
+        for (int from = 0; from < end; from++) {
+            if (states[from] == 0) {
+                continue;
+            }
+            int start = messageStarts[from];
+            int length = messageEnd(from) - start;
+            System.arraycopy(arena, start, arena, arenaTo, length);
+            xs[to] = xs[from];
+            ys[to] = ys[from];
+            colorIds[to] = colorIds[from];
+            states[to] = states[from];
+            sequences[to] = sequences[from];
+            pinCounts[to] = pinCounts[from];
+            messageStarts[to] = arenaTo;
+            arenaTo += length;
+            to++;
+        }
+        end = to;
+        arenaEnd = arenaTo;
+        int capacity = Math.max(MIN_CAPACITY, end * 2);
+        if (xs.length > capacity * 2) {
+            resize(capacity);
+        }
+        if (arena.length > 2048 && arena.length > arenaEnd * 4) {
+            arena = Arrays.copyOf(arena, Math.max(1024, arenaEnd * 2));
+        }
+        Arrays.fill(cellHeads, -1);
+        for (int row = 0; row < end; row++) {
+            link(row);
+        }
+    }
+
+    private void resize(int capacity) {
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        colorIds = Arrays.copyOf(colorIds, capacity);
+        states = Arrays.copyOf(states, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+        pinCounts = Arrays.copyOf(pinCounts, capacity);
+        messageStarts = Arrays.copyOf(messageStarts, capacity);
+        nextInCell = Arrays.copyOf(nextInCell, capacity);
+    }
+
+    // ---- messages ----
+
+    private int messageEnd(int row) {
+        return row + 1 < end ? messageStarts[row + 1] : arenaEnd;
+    }
+
+    /**
+     * Appends the row's message to the arena, one byte per char if every char fits
+     * in one and two otherwise, and returns the ASCII and WIDE bits describing it.
+     */
+    private int appendMessage(int row, String message) {
+        int length = message.length();
+        char max = 0;
+        for (int i = 0; i < length; i++) {
+            max = (char) Math.max(max, message.charAt(i));
+        }
+        boolean wide = max > 0xff;
+        int bytes = wide ? length * 2 : length;
+        if (arenaEnd + bytes > arena.length) {
+            long grown = Math.max((long) arenaEnd + bytes, arena.length + (arena.length >> 1));
+            if (grown > Integer.MAX_VALUE - 8) {
+                throw new OutOfMemoryError("Message arena of one shard is full");
+            }
+            arena = Arrays.copyOf(arena, (int) grown);
+        }
+        messageStarts[row] = arenaEnd;
+        if (wide) {
+            for (int i = 0; i < length; i++) {
+                char c = message.charAt(i);
+                arena[arenaEnd++] = (byte) (c >> 8);
+                arena[arenaEnd++] = (byte) c;
+            }
+            return WIDE;
+        }
+        for (int i = 0; i < length; i++) {
+            arena[arenaEnd++] = (byte) message.charAt(i);
+        }
+        return max < 0x80 ? ASCII : 0;
+    }
+
+    private String message(int row) {
+        int start = messageStarts[row];
+        int stop = messageEnd(row);
+        if ((states[row] & WIDE) == 0) {
+            return new String(arena, start, stop - start, StandardCharsets.ISO_8859_1);
+        }
+        char[] chars = new char[(stop - start) / 2];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ((arena[start + 2 * i] & 0xff) << 8 | (arena[start + 2 * i + 1] & 0xff));
+        }
+        return new String(chars);
+    }
+
+    // The bytes of an all-ASCII lowered search text, or null if it has other chars
+    private static byte[] asciiBytes(String lower) {
+        for (int i = 0; i < lower.length(); i++) {
+            if (lower.charAt(i) >= 0x80) {
+                return null;
+            }
+        }
+        return lower.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Matches the row's message as Note.lowerMessage would. An ASCII message is
+     * compared byte by byte, lower-casing as it goes; any other is decoded first.
+     */
+    private boolean refersTo(int row, String lowerRefersTo, byte[] needle) {
+        if (ASCII_LOWER_CASE && (states[row] & ASCII) != 0) {
+            // A lowered ASCII message cannot contain anything but ASCII
+            return needle != null && asciiContains(messageStarts[row], messageEnd(row), needle);
+        }
+        return message(row).toLowerCase().contains(lowerRefersTo);
+    }
+
+    private boolean asciiContains(int start, int stop, byte[] needle) {
+        int last = stop - needle.length;
+        outer:
+        for (int i = start; i <= last; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                byte b = arena[i + j];
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                if (b != needle[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
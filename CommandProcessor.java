@@ -0,0 +1,993 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Text protocol logic for one client connection.
+ * Turns command lines into response text without knowing how the bytes travel,
+ * so the blocking and the selector-based servers answer identically.
+ */
+public class CommandProcessor {
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final Board board;
+    private final int clientId;
+    private final String[] colors;
+    private final LineTokenizer tokenizer = new LineTokenizer();
+    private final StringBuilder line = new StringBuilder();
+    private final Criteria criteria = new Criteria();
+    private final PostArgs postArgs = new PostArgs();
+    private boolean closing;
+
+    // Open BATCH or MPOST block: the parsed items, and per line the parse error or null
+    private static final int MAX_BATCH_LINES = 100_000;
+    private List<Board.BatchItem> batch;
+    private List<String> batchErrors;
+    private boolean batchAtomic;
+    private boolean batchPostsOnly;
+    private boolean batchOverflow;
+
+    private final SubscriptionHub hub;
+    private volatile Subscription subscription;
+    private boolean released;
+    private Runnable eventWakeup = () -> { };
+
+    private final ServerMetrics metrics;
+    private final ResponseCache cache;
+    private final StringBuilder cacheKey = new StringBuilder();
+
+    // Set by a server that wants GET responses cut into resumable parts
+    private BooleanSupplier outputFull;
+    private volatile GetCursor unfinished;
+
+    public CommandProcessor(Board board, int clientId) {
+        this(board, clientId, null);
+    }
+
+    /**
+     * With a hub, the client may SUBSCRIBE to board changes; without one SUBSCRIBE
+     * is refused.
+     */
+    public CommandProcessor(Board board, int clientId, SubscriptionHub hub) {
+        this(board, clientId, hub, null, null);
+    }
+
+    /**
+     * With metrics, every command is counted and timed and STATS reports the
+     * numbers; without them STATS is refused. With a cache, GET responses are
+     * shared with every other client using the same cache.
+     */
+    public CommandProcessor(Board board, int clientId, SubscriptionHub hub, ServerMetrics metrics,
+                            ResponseCache cache) {
+        this.board = board;
+        this.clientId = clientId;
+        this.colors = board.getValidColors().toArray(new String[0]);
+        this.hub = hub;
+        this.metrics = metrics;
+        this.cache = cache;
+    }
+
+    /**
+     * Builds the init message sent to the client on connect.
+     */
+    public String initMessage() {
+        StringBuilder colorsStr = new StringBuilder();
+        for (String color : board.getValidColors()) {
+            if (colorsStr.length() > 0) colorsStr.append(" ");
+            colorsStr.append(color);
+        }
+
+        return Protocol.formatInit(
+                board.getWidth(), board.getHeight(),
+                board.getNoteWidth(), board.getNoteHeight(),
+                colorsStr.toString()
+        );
+    }
+
+    /**
+     * Handles one raw line from the client, appending the response lines to out.
+     * GET results are rendered into out one line at a time rather than built up as
+     * one string first. With an output limit (see setOutputLimit) a GET may stop
+     * part-way, and no other line may be handled until continueResponse has
+     * finished it. Nothing is flushed here. Returns false if the line was blank.
+     */
+    public boolean handleLine(String line, Appendable out) throws IOException {
+        String command = line.trim();
+        if (command.isEmpty()) {
+            return false;
+        }
+
+        if (Log.isDebugEnabled()) {
+            log(Log.Level.DEBUG, "Received: " + command);
+        }
+        boolean inBatch = batch != null;
+        String response = execute(command, out, LINE_SEPARATOR, true);
+        if (response != null) {
+            writeResponse(response, out);
+        }
+
+        if (!inBatch && command.startsWith(Protocol.CMD_DISCONNECT)) {
+            closing = true;
+        }
+        return true;
+    }
+
+    /**
+     * Appends a response to out one line at a time, using the platform line separator
+     * like PrintWriter.println. Nothing is flushed here; callers flush once per batch.
+     * Every sent line is logged at TRACE; DEBUG only gets the first line and a count.
+     */
+    public void writeResponse(String response, Appendable out) throws IOException {
+        // Same lines as response.split("\n"): trailing empty lines are dropped
+        int length = response.length();
+        while (length > 0 && response.charAt(length - 1) == '\n') {
+            length--;
+        }
+        if (length == 0 && !response.isEmpty()) {
+            return;
+        }
+
+        boolean trace = Log.isTraceEnabled();
+        int firstEnd = -1;
+        int lines = 0;
+        int start = 0;
+        while (true) {
+            int end = response.indexOf('\n', start);
+            if (end < 0 || end > length) {
+                end = length;
+            }
+            out.append(response, start, end).append(LINE_SEPARATOR);
+            if (trace) {
+                log(Log.Level.TRACE, "Sent: " + response.substring(start, end));
+            }
+            if (firstEnd < 0) {
+                firstEnd = end;
+            }
+            lines++;
+            if (end >= length) {
+                break;
+            }
+            start = end + 1;
+        }
+
+        if (!trace && Log.isDebugEnabled()) {
+            log(Log.Level.DEBUG, "Sent: " + response.substring(0, firstEnd)
+                    + (lines > 1 ? " (+" + (lines - 1) + " more lines)" : ""));
+        }
+    }
+
+    /**
+     * Lets GET responses stop part-way: after each rendered line, one that is not
+     * done yet stops if outputFull says the connection has enough unsent output, and
+     * continueResponse renders the rest later. Set it before the first command.
+     */
+    public void setOutputLimit(BooleanSupplier outputFull) {
+        this.outputFull = outputFull;
+    }
+
+    /**
+     * True if a GET stopped part-way and continueResponse has more to render.
+     */
+    public boolean hasUnfinishedResponse() {
+        return unfinished != null;
+    }
+
+    /**
+     * Renders more of the unfinished GET into the output it was started on, again
+     * stopping if the output fills up. Does nothing if there is none.
+     */
+    public void continueResponse() throws IOException {
+        GetCursor cursor = unfinished;
+        if (cursor != null) {
+            unfinished = null;
+            render(cursor);
+        }
+    }
+
+    /**
+     * True once the client has asked to disconnect.
+     */
+    public boolean isClosing() {
+        return closing;
+    }
+
+    // ---- subscription events ----
+
+    /**
+     * Sets what to run when subscription events become ready to send. It runs on
+     * the thread changing the board, so it must only signal the connection.
+     * Set it before the first command is handled.
+     */
+    public void setEventWakeup(Runnable wakeup) {
+        this.eventWakeup = wakeup;
+    }
+
+    /**
+     * True if subscription events are waiting for drainEvents.
+     */
+    public boolean hasPendingEvents() {
+        Subscription current = subscription;
+        return current != null && current.hasEvents();
+    }
+
+    /**
+     * True if this client fell so far behind on its events that it must be
+     * disconnected (the DISCONNECT overflow policy).
+     */
+    public boolean isEventOverflow() {
+        Subscription current = subscription;
+        return current != null && current.isOverflowed();
+    }
+
+    /**
+     * Appends every waiting event line to out. Nothing is flushed here.
+     */
+    public void drainEvents(Appendable out) throws IOException {
+        Subscription current = subscription;
+        if (current == null) {
+            return;
+        }
+        int lines = current.drainTo(out, LINE_SEPARATOR);
+        if (lines > 0 && Log.isTraceEnabled()) {
+            log(Log.Level.TRACE, "Sent " + lines + " event(s)");
+        }
+    }
+
+    /**
+     * Ends the client's subscription, if any, and refuses new ones.
+     * Call once the connection is gone.
+     */
+    public synchronized void close() {
+        released = true;
+        unsubscribe();
+    }
+
+    private synchronized void unsubscribe() {
+        Subscription current = subscription;
+        if (current != null) {
+            hub.unsubscribe(current);
+            subscription = null;
+        }
+    }
+
+    /**
+     * Processes command from client and returns the whole response,
+     * lines separated by '\n'. The command must already be trimmed.
+     */
+    public String processCommand(String command) {
+        StringBuilder rendered = new StringBuilder();
+        String response;
+        try {
+            response = execute(command, rendered, "\n", false);
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new UncheckedIOException(e);
+        }
+        if (response != null) {
+            return response;
+        }
+        // Lines taken into an open batch have no response of their own
+        rendered.setLength(Math.max(0, rendered.length() - 1));
+        return rendered.toString();
+    }
+
+    /**
+     * Runs a trimmed command. GET and batch responses are rendered straight into out,
+     * each line followed by separator (and logged as sent if logSent), and null is
+     * returned; so is null for a line taken into an open batch. Every other response
+     * is returned.
+     */
+    private String execute(String command, Appendable out, String separator, boolean logSent)
+            throws IOException {
+        if (batch != null) {
+            return batchLine(command, new ResponseLines(out, separator, logSent));
+        }
+        try {
+            LineTokenizer t = tokenizer;
+            int end = command.length();
+            t.split(command, 0, end, 2);
+            int cmdEnd = t.end(0);
+            int argsStart = t.count() > 1 ? t.start(1) : end;
+            long started = metrics != null ? System.nanoTime() : 0;
+
+            if (board.isReadOnly() && isChange(command, cmdEnd)) {
+                return Board.READ_ONLY_ERROR;
+            }
+            if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_POST)) {
+                return timed(ServerMetrics.Command.POST, started, handlePost(command, argsStart, end));
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_GET)) {
+                // A rendered GET is timed once its last line is out
+                String error = handleGet(command, argsStart, end, out, separator, logSent, started);
+                return error != null ? timed(ServerMetrics.Command.GET, started, error) : null;
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_PIN)) {
+                return timed(ServerMetrics.Command.PIN, started, handlePin(command, argsStart, end));
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_UNPIN)) {
+                return timed(ServerMetrics.Command.UNPIN, started, handleUnpin(command, argsStart, end));
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_SHAKE)) {
+                return timed(ServerMetrics.Command.SHAKE, started, board.shake());
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_CLEAR)) {
+                return timed(ServerMetrics.Command.CLEAR, started, board.clear());
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_STATS)) {
+                return handleStats(new ResponseLines(out, separator, logSent));
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_BATCH)) {
+                return startBatch(command, argsStart, end, false);
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_MPOST)) {
+                return startBatch(command, argsStart, end, true);
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_MPIN)) {
+                return timed(ServerMetrics.Command.BATCH, started,
+                        handleMultiPin(command, argsStart, end, new ResponseLines(out, separator, logSent)));
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_SUBSCRIBE)) {
+                return handleSubscribe(command, argsStart, end);
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_UNSUBSCRIBE)) {
+                unsubscribe();
+                return "OK Unsubscribed";
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_DISCONNECT)) {
+                if (Log.isDebugEnabled()) {
+                    log(Log.Level.DEBUG, "Client disconnecting");
+                }
+                return "OK Goodbye";
+            }
+            return "ERROR UNKNOWN_COMMAND Unknown command: " + command.substring(0, cmdEnd).toUpperCase();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            return "ERROR INVALID_FORMAT " + e.getMessage();
+        }
+    }
+
+    // Whether the command changes the board, which a read-only follower refuses
+    private static boolean isChange(String command, int cmdEnd) {
+        return LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_POST)
+                || LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_PIN)
+                || LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_UNPIN)
+                || LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_SHAKE)
+                || LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_CLEAR)
+                || LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_BATCH)
+                || LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_MPOST)
+                || LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_MPIN);
+    }
+
+    /**
+     * Records a finished command when metrics are on; a response starting with ERROR
+     * counts as a failure. Returns the response.
+     */
+    private String timed(ServerMetrics.Command command, long started, String response) {
+        if (metrics != null) {
+            metrics.commandDone(command, started, response != null && response.startsWith(Protocol.RESP_ERROR));
+        }
+        return response;
+    }
+
+    /**
+     * STATS command
+     * Format: STATS
+     * Answers one STAT line per counter (see ServerMetrics.statLines), then END.
+     */
+    private String handleStats(ResponseLines lines) throws IOException {
+        if (metrics == null) {
+            return "ERROR INVALID_FORMAT Statistics are not available";
+        }
+        for (String stat : metrics.statLines()) {
+            lines.start().append(stat);
+            lines.end();
+        }
+        lines.finish(-1);
+        return null;
+    }
+
+    /**
+     * Resolves a color token to the board's lower-case color name, allocating only
+     * when the token is not a plain ASCII spelling of a valid color.
+     */
+    private String colorOf(String command, int from, int to) {
+        String color = LineTokenizer.matchLowerCase(command, from, to, colors);
+        return color != null ? color : command.substring(from, to).toLowerCase();
+    }
+
+    /**
+     * POST command
+     * Format: POST <x> <y> [TTL <seconds>] <color> <message>
+     * A note with a TTL is removed that many seconds after it was posted; TTL 0 keeps
+     * it even when the board has a default TTL.
+     */
+    private String handlePost(String command, int from, int to) {
+        PostArgs p = postArgs;
+        String error = parsePost(command, from, to, p);
+        if (error != null) {
+            return error;
+        }
+        return board.postNote(p.x, p.y, p.color, p.message, p.ttl);
+    }
+
+    /**
+     * Arguments of a POST, parsed into a reused holder.
+     */
+    private static final class PostArgs {
+        int x;
+        int y;
+        String color;
+        String message;
+        long ttl;
+    }
+
+    /**
+     * Parses <x> <y> [TTL <seconds>] <color> <message> into p, returning an error
+     * response or null. Without the option the TTL is Board.DEFAULT_TTL. The option
+     * sits before the color so the message is always taken as sent; TTL in the color's
+     * place is the option unless the board has a color of that name.
+     */
+    private String parsePost(String command, int from, int to, PostArgs p) {
+        LineTokenizer t = tokenizer;
+        int n = t.split(command, from, to, 5);
+        if (n < 4) {
+            return "ERROR INVALID_FORMAT Expected: POST <x> <y> <color> <message>";
+        }
+
+        long x = t.parseInt(0);
+        long y = t.parseInt(1);
+        if (x == LineTokenizer.INVALID || y == LineTokenizer.INVALID) {
+            return "ERROR INVALID_FORMAT Coordinates must be integers";
+        }
+        p.x = (int) x;
+        p.y = (int) y;
+
+        p.ttl = Board.DEFAULT_TTL;
+        int colorToken = 2;
+        if (t.tokenEqualsUpperCase(2, Protocol.KEY_TTL)
+                && LineTokenizer.matchLowerCase(command, t.start(2), t.end(2), colors) == null) {
+            if (t.split(command, from, to, 6) < 6) {
+                return "ERROR INVALID_FORMAT Expected: POST <x> <y> TTL <seconds> <color> <message>";
+            }
+            long ttl = t.parseInt(3);
+            if (ttl == LineTokenizer.INVALID || ttl < 0) {
+                return "ERROR INVALID_FORMAT TTL must be a non-negative number of seconds";
+            }
+            p.ttl = ttl;
+            colorToken = 4;
+        }
+        p.color = colorOf(command, t.start(colorToken), t.end(colorToken));
+        // The message runs to the end of the line, as the last token of a limited split does
+        p.message = command.substring(t.start(colorToken + 1), to);
+        return null;
+    }
+
+    /**
+     * GET command
+     * Format: GET [PINS | color=<c> contains=<x> <y> refersTo=<substring>] [LIMIT <n>] [OFFSET <k>]
+     * With a LIMIT, a page that stops short of the full result ends with MORE <offset>
+     * giving the OFFSET of the next page.
+     * With a response cache, a query whose result cannot have changed since it was
+     * last rendered is answered with the cached text in one write.
+     */
+    private String handleGet(String command, int from, int to, Appendable out, String separator,
+                             boolean logSent, long started) throws IOException {
+        Criteria c = criteria;
+        String error = parseCriteria(command, from, to, c);
+        if (error != null) {
+            return error;
+        }
+        if (cache == null) {
+            render(startGet(c, new ResponseLines(out, separator, logSent), started));
+            return null;
+        }
+
+        // Read before querying: a change racing with the query can only make the entry stale
+        long version = c.pins ? board.pinsVersion() : board.notesVersion(c.color, c.byPoint, c.containsX);
+        String key = cacheKey(c, separator);
+        ResponseCache.Entry cached = cache.get(key, version);
+        if (cached != null) {
+            out.append(cached.text);
+            if (logSent && Log.isDebugEnabled()) {
+                logCached(cached.text, separator);
+            }
+            timed(ServerMetrics.Command.GET, started, null);
+            return null;
+        }
+        ResponseCache.Recorder recorder = cache.record(out);
+        GetCursor cursor = startGet(c, new ResponseLines(recorder, separator, logSent), started);
+        cursor.cacheKey = key;
+        cursor.version = version;
+        cursor.recorder = recorder;
+        render(cursor);
+        return null;
+    }
+
+    // Normalized form of a parsed GET; fields are split by '\n', which no command line holds
+    private String cacheKey(Criteria c, String separator) {
+        StringBuilder k = cacheKey;
+        k.setLength(0);
+        k.append(separator).append('\n');
+        if (c.pins) {
+            k.append("PINS");
+        } else {
+            if (c.color != null) {
+                k.append(c.color);
+            }
+            k.append('\n');
+            if (c.byPoint) {
+                k.append(c.containsX).append(' ').append(c.containsY);
+            }
+            k.append('\n');
+            if (c.refersTo != null) {
+                k.append(c.refersTo);
+            }
+        }
+        k.append('\n').append(c.limit).append(' ').append(c.offset);
+        return k.toString();
+    }
+
+    // Logs a cached response the way ResponseLines logs a rendered one
+    private void logCached(String text, String separator) {
+        int lines = 0;
+        String first = null;
+        for (int start = 0; start < text.length(); ) {
+            int end = text.indexOf(separator, start);
+            String sent = text.substring(start, end);
+            if (Log.isTraceEnabled()) {
+                log(Log.Level.TRACE, "Sent: " + sent);
+            } else if (first == null) {
+                first = sent;
+            }
+            lines++;
+            start = end + separator.length();
+        }
+        if (first != null) {
+            log(Log.Level.DEBUG, "Sent: " + first + (lines > 1 ? " (+" + (lines - 1) + " more lines)" : ""));
+        }
+    }
+
+    /**
+     * A GET between its query and its last line. The result is taken once, so a
+     * response rendered in several parts is still one consistent page.
+     */
+    private static final class GetCursor {
+        final ResponseLines lines;
+        final long started;
+        long[] pins;
+        QueryResult notes;
+        int next;
+        int stop;
+        // OFFSET of the following page for MORE, -1 if this is the last
+        long more;
+        // With a response cache: where to store the response once it is complete
+        String cacheKey;
+        long version;
+        ResponseCache.Recorder recorder;
+
+        GetCursor(ResponseLines lines, long started) {
+            this.lines = lines;
+            this.started = started;
+        }
+    }
+
+    // Runs a parsed GET, leaving its result ready to render
+    private GetCursor startGet(Criteria c, ResponseLines lines, long started) {
+        GetCursor cursor = new GetCursor(lines, started);
+        long offset = c.offset;
+
+        // One result past the page tells whether another page follows
+        long end = c.limit < 0 ? Long.MAX_VALUE : offset + c.limit;
+        int max = (int) Math.min(Integer.MAX_VALUE, end < Long.MAX_VALUE ? end + 1 : end);
+
+        int size;
+        if (c.pins) {
+            cursor.pins = board.getPinKeys();
+            size = cursor.pins.length;
+        } else {
+            cursor.notes = board.query(c.color, c.byPoint, c.containsX, c.containsY, c.refersTo, max);
+            size = cursor.notes.size();
+        }
+        cursor.stop = (int) Math.min(size, end);
+        cursor.next = (int) Math.min(offset, cursor.stop);
+        cursor.more = size > end ? end : -1;
+        return cursor;
+    }
+
+    // Renders the cursor's remaining lines, or as many as the output takes for now
+    private void render(GetCursor cursor) throws IOException {
+        ResponseLines lines = cursor.lines;
+        BooleanSupplier full = outputFull;
+        long[] pins = cursor.pins;
+        QueryResult notes = cursor.notes;
+        int i = cursor.next;
+        while (i < cursor.stop) {
+            if (pins != null) {
+                lines.start().append("PIN ")
+                        .append(SpatialGrid.unpackX(pins[i])).append(' ')
+                        .append(SpatialGrid.unpackY(pins[i]));
+            } else {
+                Note note = notes.getNote(i);
+                lines.start().append("NOTE ")
+                        .append(note.getX()).append(' ')
+                        .append(note.getY()).append(' ')
+                        .append(note.getColor()).append(' ')
+                        .append(notes.isPinned(i) ? "pinned" : "unpinned").append(' ')
+                        .append(note.lineMessage());
+            }
+            lines.end();
+            i++;
+            if (full != null && i < cursor.stop && full.getAsBoolean()) {
+                cursor.next = i;
+                unfinished = cursor;
+                return;
+            }
+        }
+        lines.finish(cursor.more);
+        if (cursor.recorder != null) {
+            cache.put(cursor.cacheKey, cursor.version, cursor.recorder);
+        }
+        timed(ServerMetrics.Command.GET, cursor.started, null);
+    }
+
+    // ---- batches ----
+
+    /**
+     * BATCH and MPOST commands
+     * Format: BATCH [ATOMIC], then one POST, PIN or UNPIN command per line, then END
+     *         MPOST [ATOMIC], then one <x> <y> [TTL <seconds>] <color> <message> per line, then END
+     * Nothing is answered until END; then every line gets its own response, in order,
+     * followed by END. The board applies the whole block under one lock acquisition
+     * (see Board.applyBatch); with ATOMIC, either all of it is applied or none.
+     */
+    private String startBatch(String command, int from, int to, boolean postsOnly) {
+        LineTokenizer t = tokenizer;
+        int n = t.split(command, from, to, 0);
+        if (n > 1 || (n == 1 && !t.tokenEqualsUpperCase(0, Protocol.KEY_ATOMIC))) {
+            return "ERROR INVALID_FORMAT Expected: " + (postsOnly ? Protocol.CMD_MPOST : Protocol.CMD_BATCH)
+                    + " [ATOMIC]";
+        }
+        batch = new ArrayList<>();
+        batchErrors = new ArrayList<>();
+        batchAtomic = n == 1;
+        batchPostsOnly = postsOnly;
+        batchOverflow = false;
+        return null;
+    }
+
+    /**
+     * Takes one line of an open block, applying the block when the line is END.
+     */
+    private String batchLine(String command, ResponseLines lines) throws IOException {
+        LineTokenizer t = tokenizer;
+        int end = command.length();
+        t.split(command, 0, end, 2);
+        if (t.count() == 1 && t.tokenEqualsUpperCase(0, Protocol.CMD_END)) {
+            return finishBatch(lines);
+        }
+        if (batchErrors.size() >= MAX_BATCH_LINES) {
+            batchOverflow = true;
+            return null;
+        }
+
+        String error;
+        if (batchPostsOnly) {
+            error = addBatchPost(command, 0, end);
+        } else {
+            int cmdEnd = t.end(0);
+            int argsStart = t.count() > 1 ? t.start(1) : end;
+            if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_POST)) {
+                error = addBatchPost(command, argsStart, end);
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_PIN)) {
+                error = addBatchPin(command, argsStart, end, true);
+            } else if (LineTokenizer.equalsUpperCase(command, 0, cmdEnd, Protocol.CMD_UNPIN)) {
+                error = addBatchPin(command, argsStart, end, false);
+            } else {
+                error = "ERROR INVALID_FORMAT Only POST, PIN and UNPIN can be batched";
+            }
+        }
+        batchErrors.add(error);
+        return null;
+    }
+
+    // Parses POST arguments into the open batch, returning an error response or null
+    private String addBatchPost(String command, int from, int to) {
+        PostArgs p = postArgs;
+        String error = parsePost(command, from, to, p);
+        if (error == null) {
+            batch.add(Board.BatchItem.post(p.x, p.y, p.color, p.message, p.ttl));
+        }
+        return error;
+    }
+
+    private String addBatchPin(String command, int from, int to, boolean pin) {
+        LineTokenizer t = tokenizer;
+        if (t.split(command, from, to, 0) < 2) {
+            return "ERROR INVALID_FORMAT Expected: " + (pin ? "PIN" : "UNPIN") + " <x> <y>";
+        }
+        long x = t.parseInt(0);
+        long y = t.parseInt(1);
+        if (x == LineTokenizer.INVALID || y == LineTokenizer.INVALID) {
+            return "ERROR INVALID_FORMAT Coordinates must be integers";
+        }
+        batch.add(pin ? Board.BatchItem.pin((int) x, (int) y) : Board.BatchItem.unpin((int) x, (int) y));
+        return null;
+    }
+
+    private String finishBatch(ResponseLines lines) throws IOException {
+        long started = metrics != null ? System.nanoTime() : 0;
+        boolean failed = batchOverflow;
+        List<Board.BatchItem> items = batch;
+        List<String> errors = batchErrors;
+        batch = null;
+        batchErrors = null;
+
+        if (batchOverflow) {
+            lines.start().append("ERROR INVALID_FORMAT A batch may hold at most ")
+                    .append(MAX_BATCH_LINES).append(" commands");
+            lines.end();
+        } else {
+            boolean parsed = items.size() == errors.size();
+            String[] results = parsed || !batchAtomic
+                    ? board.applyBatch(items, batchAtomic)
+                    : null;
+            int next = 0;
+            for (String error : errors) {
+                String result = error != null ? error
+                        : results != null ? results[next++] : Board.BATCH_ABORTED;
+                failed |= batchAtomic && result.startsWith(Protocol.RESP_ERROR);
+                lines.start().append(result);
+                lines.end();
+            }
+        }
+        lines.finish(-1);
+        if (metrics != null) {
+            // A batch fails as a whole when it is refused or, with ATOMIC, aborted
+            metrics.commandDone(ServerMetrics.Command.BATCH, started, failed);
+        }
+        return null;
+    }
+
+    /**
+     * MPIN command
+     * Format: MPIN [ATOMIC] <x1> <y1> [<x2> <y2> ...]
+     * Places every pin as one batch; answers one line per pin, then END.
+     */
+    private String handleMultiPin(String command, int from, int to, ResponseLines lines) throws IOException {
+        LineTokenizer t = tokenizer;
+        int n = t.split(command, from, to, 0);
+        boolean atomic = n > 0 && t.tokenEqualsUpperCase(0, Protocol.KEY_ATOMIC);
+        int first = atomic ? 1 : 0;
+        if (n == first || (n - first) % 2 != 0) {
+            return "ERROR INVALID_FORMAT Expected: MPIN [ATOMIC] <x1> <y1> [<x2> <y2> ...]";
+        }
+        List<Board.BatchItem> items = new ArrayList<>((n - first) / 2);
+        for (int i = first; i < n; i += 2) {
+            long x = t.parseInt(i);
+            long y = t.parseInt(i + 1);
+            if (x == LineTokenizer.INVALID || y == LineTokenizer.INVALID) {
+                return "ERROR INVALID_FORMAT Coordinates must be integers";
+            }
+            items.add(Board.BatchItem.pin((int) x, (int) y));
+        }
+        for (String result : board.applyBatch(items, atomic)) {
+            lines.start().append(result);
+            lines.end();
+        }
+        lines.finish(-1);
+        return null;
+    }
+
+    /**
+     * SUBSCRIBE command
+     * Format: SUBSCRIBE [color=<c> contains=<x> <y> refersTo=<substring>]
+     * After OK, matching changes arrive as EVENT lines (see SubscriptionHub) between
+     * responses. Subscribing again replaces the criteria.
+     */
+    private String handleSubscribe(String command, int from, int to) {
+        if (hub == null) {
+            return "ERROR INVALID_FORMAT Subscriptions are not available";
+        }
+        Criteria c = criteria;
+        String error = parseCriteria(command, from, to, c);
+        if (error != null) {
+            return error;
+        }
+        if (c.pins || c.limit >= 0 || c.offset > 0) {
+            return "ERROR INVALID_FORMAT Expected: SUBSCRIBE [color=<c>] [contains=<x> <y>] [refersTo=<s>]";
+        }
+
+        Subscription next = hub.subscribe(c.color, c.byPoint, c.containsX, c.containsY, c.refersTo, eventWakeup);
+        if (next == null) {
+            return "ERROR INVALID_COLOR " + c.color;
+        }
+        synchronized (this) {
+            unsubscribe();
+            if (released) {
+                // The connection closed while this command ran
+                hub.unsubscribe(next);
+            } else {
+                subscription = next;
+            }
+        }
+        return "OK Subscribed";
+    }
+
+    /**
+     * Criteria shared by GET and SUBSCRIBE, parsed into a reused holder.
+     */
+    private static final class Criteria {
+        boolean pins;
+        String color;
+        boolean byPoint;
+        int containsX;
+        int containsY;
+        String refersTo;
+        long limit;
+        long offset;
+    }
+
+    /**
+     * Parses [PINS | color=<c> contains=<x> <y> refersTo=<substring>] [LIMIT <n>] [OFFSET <k>]
+     * into c, returning an error response or null.
+     */
+    private String parseCriteria(String command, int from, int to, Criteria c) {
+        c.color = null;
+        c.byPoint = false;
+        c.refersTo = null;
+        c.limit = -1;
+        c.offset = 0;
+        long containsX = 0;
+        long containsY = 0;
+
+        LineTokenizer t = tokenizer;
+        int n = t.split(command, from, to, 0);
+        // Special case: GET PINS, optionally paged
+        c.pins = n > 0 && t.tokenEqualsUpperCase(0, "PINS") && onlyPaging(t, 1, n);
+        for (int i = c.pins ? 1 : 0; i < n; i++) {
+            if (t.tokenEqualsUpperCase(i, Protocol.KEY_LIMIT) && i + 1 < n) {
+                c.limit = t.parseInt(i + 1);
+                // LIMIT 0 would answer MORE with its own offset, and a client following it loops
+                if (c.limit <= 0) {
+                    return PAGING_ERROR;
+                }
+                i += 1;
+
+            } else if (t.tokenEqualsUpperCase(i, Protocol.KEY_OFFSET) && i + 1 < n) {
+                c.offset = t.parseInt(i + 1);
+                if (c.offset < 0) {
+                    return PAGING_ERROR;
+                }
+                i += 1;
+
+            } else if (t.tokenStartsWith(i, "color=")) {
+                c.color = colorOf(command, t.start(i) + 6, t.end(i));
+
+            } else if (t.tokenEquals(i, "contains") && i + 2 < n) {
+                containsX = t.parseInt(i + 1);
+                containsY = containsX == LineTokenizer.INVALID ? containsX : t.parseInt(i + 2);
+                c.byPoint = true;
+                i += 2;
+
+            } else if (t.tokenStartsWith(i, "contains=") && i + 1 < n) {
+                containsX = LineTokenizer.parseInt(command, t.start(i) + 9, t.end(i));
+                containsY = containsX == LineTokenizer.INVALID ? containsX : t.parseInt(i + 1);
+                c.byPoint = true;
+                i += 1;
+
+            } else if (t.tokenEquals(i, "refersTo") && i + 1 < n) {
+                c.refersTo = t.token(i + 1);
+                i += 1;
+
+            } else if (t.tokenStartsWith(i, "refersTo=")) {
+                c.refersTo = command.substring(t.start(i) + 9, t.end(i));
+            }
+
+            if (containsY == LineTokenizer.INVALID) {
+                return "ERROR INVALID_FORMAT Coordinates must be integers";
+            }
+        }
+        c.containsX = (int) containsX;
+        c.containsY = (int) containsY;
+        return null;
+    }
+
+    // True if tokens [from, n) are nothing but LIMIT/OFFSET pairs
+    private static boolean onlyPaging(LineTokenizer t, int from, int n) {
+        for (int i = from; i < n; i += 2) {
+            if (i + 1 >= n || !(t.tokenEqualsUpperCase(i, Protocol.KEY_LIMIT)
+                    || t.tokenEqualsUpperCase(i, Protocol.KEY_OFFSET))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final String PAGING_ERROR =
+            "ERROR INVALID_FORMAT LIMIT must be a positive integer and OFFSET a non-negative one";
+
+    /**
+     * Writes a multi-line response one line at a time through a reused buffer,
+     * logging what was sent the same way writeResponse does.
+     */
+    private final class ResponseLines {
+        private final Appendable out;
+        private final String separator;
+        private final boolean logSent;
+        private final boolean trace;
+        private String first;
+        private int count;
+
+        ResponseLines(Appendable out, String separator, boolean logSent) {
+            this.out = out;
+            this.separator = separator;
+            this.logSent = logSent;
+            this.trace = logSent && Log.isTraceEnabled();
+        }
+
+        StringBuilder start() {
+            line.setLength(0);
+            return line;
+        }
+
+        void end() throws IOException {
+            out.append(line).append(separator);
+            if (trace) {
+                log(Log.Level.TRACE, "Sent: " + line);
+            } else if (count == 0 && logSent && Log.isDebugEnabled()) {
+                first = line.toString();
+            }
+            count++;
+        }
+
+        // Closes the response with MORE <next> when next >= 0, then END
+        void finish(long next) throws IOException {
+            if (next >= 0) {
+                start().append(Protocol.RESP_MORE).append(' ').append(next);
+                end();
+            }
+            start().append(Protocol.RESP_END);
+            end();
+            if (logSent && !trace && Log.isDebugEnabled()) {
+                log(Log.Level.DEBUG, "Sent: " + first
+                        + (count > 1 ? " (+" + (count - 1) + " more lines)" : ""));
+            }
+        }
+    }
+
+    /**
+     * PIN command.
+     * Format: PIN <x> <y>
+     */
+    private String handlePin(String command, int from, int to) {
+        LineTokenizer t = tokenizer;
+        if (t.split(command, from, to, 0) < 2) {
+            return "ERROR INVALID_FORMAT Expected: PIN <x> <y>";
+        }
+
+        long x = t.parseInt(0);
+        long y = t.parseInt(1);
+        if (x == LineTokenizer.INVALID || y == LineTokenizer.INVALID) {
+            return "ERROR INVALID_FORMAT Coordinates must be integers";
+        }
+
+        return board.placePin((int) x, (int) y);
+    }
+
+    /**
+     * UNPIN command.
+     * Format: UNPIN <x> <y>
+     */
+    private String handleUnpin(String command, int from, int to) {
+        LineTokenizer t = tokenizer;
+        if (t.split(command, from, to, 0) < 2) {
+            return "ERROR INVALID_FORMAT Expected: UNPIN <x> <y>";
+        }
+
+        long x = t.parseInt(0);
+        long y = t.parseInt(1);
+        if (x == LineTokenizer.INVALID || y == LineTokenizer.INVALID) {
+            return "ERROR INVALID_FORMAT Coordinates must be integers";
+        }
+
+        return board.removePin((int) x, (int) y);
+    }
+
+    /**
+     * Logs message with client ID. Callers check the level first so that
+     * suppressed messages are never built.
+     */
+    void log(Log.Level level, String message) {
+        Log.log(level, "[Client #" + clientId + "] " + message);
+    }
+}
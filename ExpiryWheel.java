@@ -0,0 +1,167 @@
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel of notes with a TTL (Varghese and Lauck).
+ *
+ * Time advances in ticks of tickMillis. Level 0 has one slot per tick for the next
+ * SLOTS ticks, level 1 one slot per SLOTS ticks for the next SLOTS^2, and so on; a note
+ * sits in the slot of the lowest level whose range holds its deadline, linked through
+ * its NoteExpiry, so scheduling and cancelling are O(1) and allocate nothing.
+ * Each tick empties one level-0 slot, and when a level's slot comes round its notes
+ * move down a level, so every note is touched at most once per level and nothing
+ * ever scans the whole board. Deadlines beyond the top level wait in its last slot
+ * and are placed again when it comes round.
+ * Synchronized on itself; callers may hold shard locks, but the wheel never takes one.
+ */
+class ExpiryWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final Note[] heads = new Note[LEVELS * SLOTS];
+    // The last tick whose due notes were handed out
+    private long currentTick;
+    private int size;
+
+    ExpiryWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Schedules a note with a NoteExpiry; one already past expires on the next tick.
+     */
+    synchronized void schedule(Note note) {
+        if (note.expiry.slot >= 0) {
+            unlink(note);
+        }
+        // Round up, so a note never expires before its deadline
+        long tick = (note.expiry.at + tickMillis - 1) / tickMillis;
+        place(note, Math.max(tick, currentTick + 1));
+    }
+
+    /**
+     * Schedules a note with a NoteExpiry unless it is in the wheel already, such as
+     * one advance handed out but the board kept for its pins. Checks and schedules
+     * under the wheel's lock, so it cannot race advance handing the note out.
+     */
+    synchronized void scheduleIfIdle(Note note) {
+        if (note.expiry.slot < 0) {
+            schedule(note);
+        }
+    }
+
+    /**
+     * Takes a note out of the wheel if it is in it.
+     */
+    synchronized void cancel(Note note) {
+        if (note.expiry != null && note.expiry.slot >= 0) {
+            unlink(note);
+        }
+    }
+
+    /**
+     * A new empty wheel at this one's current tick, which replaces it when the board
+     * is cleared; this one is left as it is for the collector.
+     */
+    synchronized ExpiryWheel successor() {
+        return new ExpiryWheel(tickMillis, currentTick * tickMillis);
+    }
+
+    /**
+     * Advances the wheel to nowMillis, adding every note whose deadline has passed to
+     * due. The notes are out of the wheel once returned.
+     */
+    synchronized void advance(long nowMillis, List<Note> due) {
+        long target = nowMillis / tickMillis;
+        while (currentTick < target) {
+            long tick = ++currentTick;
+            // Higher levels first, so their notes can still land in this tick's slot
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((tick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    int slot = level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                    for (Note note = detach(slot); note != null; ) {
+                        Note next = note.expiry.next;
+                        note.expiry.next = null;
+                        long noteTick = (note.expiry.at + tickMillis - 1) / tickMillis;
+                        if (noteTick <= tick) {
+                            due.add(note);
+                        } else {
+                            place(note, noteTick);
+                        }
+                        note = next;
+                    }
+                }
+            }
+            for (Note note = detach((int) (tick & (SLOTS - 1))); note != null; ) {
+                Note next = note.expiry.next;
+                note.expiry.next = null;
+                due.add(note);
+                note = next;
+            }
+        }
+    }
+
+    // Links the note into the slot for tick, which is after currentTick
+    private void place(Note note, long tick) {
+        int level = 0;
+        // The range of a level starts at currentTick rounded down to its slot width
+        while (level < LEVELS - 1
+                && tick >= ((currentTick >>> (SLOT_BITS * level)) + SLOTS) << (SLOT_BITS * level)) {
+            level++;
+        }
+        long limit = ((currentTick >>> (SLOT_BITS * level)) + SLOTS) << (SLOT_BITS * level);
+        if (tick >= limit) {
+            // Beyond the top level: wait in its furthest slot and be placed again from there
+            tick = limit - 1;
+        }
+        int slot = level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        Note head = heads[slot];
+        NoteExpiry e = note.expiry;
+        e.slot = slot;
+        e.prev = null;
+        e.next = head;
+        if (head != null) {
+            head.expiry.prev = note;
+        }
+        heads[slot] = note;
+        size++;
+    }
+
+    private void unlink(Note note) {
+        NoteExpiry e = note.expiry;
+        if (e.prev != null) {
+            e.prev.expiry.next = e.next;
+        } else {
+            heads[e.slot] = e.next;
+        }
+        if (e.next != null) {
+            e.next.expiry.prev = e.prev;
+        }
+        e.slot = -1;
+        e.prev = null;
+        e.next = null;
+        size--;
+    }
+
+    // Removes and returns a slot's whole list; its notes are marked unscheduled
+    private Note detach(int slot) {
+        Note head = heads[slot];
+        heads[slot] = null;
+        for (Note note = head; note != null; note = note.expiry.next) {
+            note.expiry.slot = -1;
+            note.expiry.prev = null;
+            size--;
+        }
+        return head;
+    }
+}
@@ -0,0 +1,203 @@
+import java.util.Arrays;
+
+/**
+ * Reusable whitespace tokenizer for protocol lines.
+ * Splits a region of a line in place, recording token boundaries instead of
+ * building substrings, with the same result as String.split("\\s+", limit) on a
+ * trimmed string. Keywords are matched and integers parsed straight from the
+ * characters, so a well-formed command allocates nothing while being parsed.
+ */
+final class LineTokenizer {
+    // Returned by parseInt when the token is not a valid int
+    static final long INVALID = Long.MIN_VALUE;
+
+    private CharSequence text;
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private int count;
+
+    /**
+     * Matches the regex class \s: space, \t, \n, \u000B, \f and \r.
+     */
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Splits text[from, to) on whitespace runs. With a positive limit the last
+     * token runs to the end of the region, like String.split with a limit.
+     * Returns the number of tokens.
+     */
+    int split(CharSequence text, int from, int to, int limit) {
+        this.text = text;
+        count = 0;
+        int pos = from;
+        while (pos < to) {
+            while (pos < to && isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+            if (pos >= to) {
+                break;
+            }
+            int start = pos;
+            if (limit > 0 && count == limit - 1) {
+                pos = to;
+            } else {
+                while (pos < to && !isWhitespace(text.charAt(pos))) {
+                    pos++;
+                }
+            }
+            add(start, pos);
+        }
+        return count;
+    }
+
+    private void add(int start, int end) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    int count() {
+        return count;
+    }
+
+    int start(int i) {
+        return starts[i];
+    }
+
+    int end(int i) {
+        return ends[i];
+    }
+
+    String token(int i) {
+        return text.subSequence(starts[i], ends[i]).toString();
+    }
+
+    boolean tokenEquals(int i, String word) {
+        return regionEquals(text, starts[i], ends[i], word);
+    }
+
+    boolean tokenStartsWith(int i, String prefix) {
+        return ends[i] - starts[i] >= prefix.length()
+                && regionEquals(text, starts[i], starts[i] + prefix.length(), prefix);
+    }
+
+    private static boolean regionEquals(CharSequence text, int from, int to, String word) {
+        if (to - from != word.length()) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) != word.charAt(i - from)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * True if text[from, to).toUpperCase() equals the upper-case keyword.
+     * ASCII is compared in place; anything else falls back to String.toUpperCase.
+     */
+    static boolean equalsUpperCase(CharSequence text, int from, int to, String upperKeyword) {
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) >= 0x80) {
+                return text.subSequence(from, to).toString().toUpperCase().equals(upperKeyword);
+            }
+        }
+        if (to - from != upperKeyword.length()) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            if (c != upperKeyword.charAt(i - from)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean tokenEqualsUpperCase(int i, String upperKeyword) {
+        return equalsUpperCase(text, starts[i], ends[i], upperKeyword);
+    }
+
+    /**
+     * Returns the candidate equal to text[from, to).toLowerCase(), or null if none
+     * matches or the region is not plain ASCII. Candidates must be lower case.
+     */
+    static String matchLowerCase(CharSequence text, int from, int to, String[] candidates) {
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) >= 0x80) {
+                return null;
+            }
+        }
+        for (String candidate : candidates) {
+            if (candidate.length() != to - from) {
+                continue;
+            }
+            boolean match = true;
+            for (int i = from; i < to && match; i++) {
+                char c = text.charAt(i);
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                match = c == candidate.charAt(i - from);
+            }
+            if (match) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parses text[from, to) exactly as Integer.parseInt would, returning INVALID
+     * where parseInt would throw.
+     */
+    static long parseInt(CharSequence text, int from, int to) {
+        if (from >= to) {
+            return INVALID;
+        }
+        boolean negative = false;
+        int limit = -Integer.MAX_VALUE;
+        int i = from;
+        char first = text.charAt(i);
+        if (first < '0') {
+            if (first == '-') {
+                negative = true;
+                limit = Integer.MIN_VALUE;
+            } else if (first != '+') {
+                return INVALID;
+            }
+            if (to - from == 1) {
+                return INVALID;
+            }
+            i++;
+        }
+        int multmin = limit / 10;
+        int result = 0;
+        while (i < to) {
+            int digit = Character.digit(text.charAt(i++), 10);
+            if (digit < 0 || result < multmin) {
+                return INVALID;
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                return INVALID;
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    long parseInt(int i) {
+        return parseInt(text, starts[i], ends[i]);
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous, level-gated server log.
+ *
+ * Callers check the level first (Log.isDebugEnabled() etc.) so suppressed messages
+ * are never even built; the check is a single volatile read. Enabled messages go
+ * into a bounded lock-free ring buffer and a background daemon thread writes them
+ * to stdout, so request threads never contend on System.out. When the ring is full
+ * messages are dropped and counted rather than blocking the caller.
+ */
+public final class Log {
+    public enum Level { OFF, ERROR, WARN, INFO, DEBUG, TRACE }
+
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+
+    private static volatile int threshold = Level.INFO.ordinal();
+
+    // Bounded multi-producer / single-consumer ring: a slot is free for the producer
+    // claiming position p when its sequence is p, and readable when it is p + 1
+    private static final AtomicReferenceArray<String> entries = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static long head;
+    private static long reportedDropped;
+
+    private static final PrintStream out =
+            new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        writer = new Thread(Log::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain));
+    }
+
+    private Log() {
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    public static Level getLevel() {
+        return Level.values()[threshold];
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() <= threshold && level != Level.OFF;
+    }
+
+    public static boolean isWarnEnabled() { return Level.WARN.ordinal() <= threshold; }
+    public static boolean isInfoEnabled() { return Level.INFO.ordinal() <= threshold; }
+    public static boolean isDebugEnabled() { return Level.DEBUG.ordinal() <= threshold; }
+    public static boolean isTraceEnabled() { return Level.TRACE.ordinal() <= threshold; }
+
+    public static void error(String message) { log(Level.ERROR, message); }
+    public static void warn(String message) { log(Level.WARN, message); }
+    public static void info(String message) { log(Level.INFO, message); }
+    public static void debug(String message) { log(Level.DEBUG, message); }
+    public static void trace(String message) { log(Level.TRACE, message); }
+
+    /**
+     * Number of messages lost because the ring buffer was full.
+     */
+    public static long droppedCount() {
+        return dropped.get();
+    }
+
+    public static void log(Level level, String message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long pos = tail.get();
+        while (true) {
+            int idx = (int) (pos & MASK);
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    entries.set(idx, message);
+                    sequences.set(idx, pos + 1);
+                    return;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                dropped.incrementAndGet();
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(1_000_000L);
+            }
+        }
+    }
+
+    // The writer thread and the shutdown hook both drain, so they take turns
+    private static synchronized int drain() {
+        int count = 0;
+        while (true) {
+            int idx = (int) (head & MASK);
+            if (sequences.get(idx) != head + 1) {
+                break;
+            }
+            String message = entries.get(idx);
+            entries.set(idx, null);
+            sequences.set(idx, head + CAPACITY);
+            head++;
+            out.println(message);
+            count++;
+        }
+        long lost = dropped.get() - reportedDropped;
+        if (lost > 0) {
+            reportedDropped += lost;
+            out.println("[log] dropped " + lost + " message(s), buffer full");
+        }
+        if (count > 0 || lost > 0) {
+            out.flush();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash set of primitive longs (linear probing, backward-shift delete).
+ * Used for packed (x, y) coordinates so lookups never box or allocate.
+ */
+class LongHashSet {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] table;
+    private int mask;
+    private int size;
+    private boolean hasEmptyKey;
+
+    LongHashSet() {
+        this(16);
+    }
+
+    LongHashSet(int expected) {
+        int cap = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        table = new long[cap];
+        Arrays.fill(table, EMPTY);
+        mask = cap - 1;
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(long key) {
+        if (key == EMPTY) {
+            return hasEmptyKey;
+        }
+        int i = hash(key) & mask;
+        long k;
+        while ((k = table[i]) != EMPTY) {
+            if (k == key) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the key, returning false if it was already present.
+     */
+    boolean add(long key) {
+        if (key == EMPTY) {
+            if (hasEmptyKey) {
+                return false;
+            }
+            hasEmptyKey = true;
+            size++;
+            return true;
+        }
+        int i = hash(key) & mask;
+        long k;
+        while ((k = table[i]) != EMPTY) {
+            if (k == key) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = key;
+        if (++size > (table.length >> 1) + (table.length >> 2)) {
+            rehash(table.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the key, returning false if it was not present.
+     */
+    boolean remove(long key) {
+        if (key == EMPTY) {
+            if (!hasEmptyKey) {
+                return false;
+            }
+            hasEmptyKey = false;
+            size--;
+            return true;
+        }
+        int i = hash(key) & mask;
+        long k;
+        while ((k = table[i]) != EMPTY) {
+            if (k == key) {
+                shiftBack(i);
+                size--;
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    // Closes the gap at 'free' by moving later entries of the probe run back into it
+    private void shiftBack(int free) {
+        int i = free;
+        while (true) {
+            i = (i + 1) & mask;
+            long k = table[i];
+            if (k == EMPTY) {
+                break;
+            }
+            int home = hash(k) & mask;
+            // Move k if its home slot is not cyclically within (free, i]
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                table[free] = k;
+                free = i;
+            }
+        }
+        table[free] = EMPTY;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] old = table;
+        table = new long[newCapacity];
+        Arrays.fill(table, EMPTY);
+        mask = newCapacity - 1;
+        for (long k : old) {
+            if (k != EMPTY) {
+                int i = hash(k) & mask;
+                while (table[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = k;
+            }
+        }
+    }
+
+    void clear() {
+        Arrays.fill(table, EMPTY);
+        size = 0;
+        hasEmptyKey = false;
+    }
+}
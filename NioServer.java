@@ -0,0 +1,456 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server mode: one selector thread does all socket I/O and frames
+ * lines on ByteBuffers, and a small worker pool runs the commands. Commands from
+ * one connection run in order on one worker at a time, so responses come back in
+ * request order exactly as in the thread-per-client mode.
+ * Output reaches the selector in chunks as it is rendered. Once a client has
+ * MAX_PENDING_BYTES unsent, its worker run ends, a large GET stopping part-way (see
+ * CommandProcessor.continueResponse), and the selector schedules the next run when
+ * the client has caught up. So a connection never holds much more than that however
+ * large a response is, and a client that stops reading never holds a worker.
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Stop reading from a client that has this much unprocessed input or unsent output
+    private static final int MAX_PENDING_LINES = 1024;
+    private static final int MAX_PENDING_BYTES = 1 << 20;
+    // A worker hands rendered output to the selector in chunks of this many chars
+    private static final int OUTPUT_CHUNK = 64 * 1024;
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final int port;
+    private final Board board;
+    private final SubscriptionHub hub;
+    private final ServerMetrics metrics;
+    private final ResponseCache cache;
+    private final ExecutorService workers;
+    private final Queue<Connection> interestChanges = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private Selector selector;
+    private volatile boolean running = true;
+    private int clientId;
+
+    public NioServer(int port, Board board, int workerThreads) {
+        this(port, board, null, workerThreads);
+    }
+
+    public NioServer(int port, Board board, SubscriptionHub hub, int workerThreads) {
+        this(port, board, hub, null, null, workerThreads);
+    }
+
+    public NioServer(int port, Board board, SubscriptionHub hub, ServerMetrics metrics, ResponseCache cache,
+                     int workerThreads) {
+        this.port = port;
+        this.board = board;
+        this.hub = hub;
+        this.metrics = metrics;
+        this.cache = cache;
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+
+            while (running) {
+                selector.select();
+
+                Connection changed;
+                while ((changed = interestChanges.poll()) != null) {
+                    changed.updateInterest();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(server);
+                        continue;
+                    }
+
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            conn.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.write();
+                        }
+                    } catch (IOException e) {
+                        if (Log.isWarnEnabled()) {
+                            conn.processor.log(Log.Level.WARN, "Connection error: " + e.getMessage());
+                        }
+                        conn.close();
+                    }
+                }
+            }
+        } finally {
+            workers.shutdown();
+            selector.close();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            clientId++;
+            if (Log.isInfoEnabled()) {
+                Log.info("Client #" + clientId + " connected from " + channel.socket().getInetAddress());
+            }
+
+            channel.configureBlocking(false);
+            Connection conn = new Connection(channel, new CommandProcessor(board, clientId, hub, metrics, cache));
+            if (metrics != null) {
+                metrics.connectionOpened();
+            }
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+
+            String initMsg = conn.processor.initMessage();
+            conn.enqueueOutput(initMsg + LINE_SEPARATOR);
+            if (Log.isDebugEnabled()) {
+                conn.processor.log(Log.Level.DEBUG, "Sent: " + initMsg);
+            }
+            conn.updateInterest();
+        }
+    }
+
+    /**
+     * Per-client state. Line framing and socket writes happen on the selector
+     * thread; command execution happens on a worker.
+     */
+    private final class Connection implements Runnable {
+        final SocketChannel channel;
+        final CommandProcessor processor;
+        SelectionKey key;
+
+        // Selector thread only
+        private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+        private boolean afterCarriageReturn;
+        private volatile boolean endOfInput;
+
+        private final Queue<String> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inboxSize = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        // Guarded by this
+        private final ArrayDeque<ByteBuffer> outbox = new ArrayDeque<>();
+        private int pendingBytes;
+        private boolean closeAfterFlush;
+        private boolean closed;
+
+        // Used by one worker run at a time; a GET left unfinished keeps writing to it
+        private final ChunkedOutput output = new ChunkedOutput();
+
+        Connection(SocketChannel channel, CommandProcessor processor) {
+            this.channel = channel;
+            this.processor = processor;
+            processor.setEventWakeup(this::eventsReady);
+            processor.setOutputLimit(() -> output.full);
+        }
+
+        /**
+         * Subscription wakeup, called on a board writer's thread.
+         */
+        private void eventsReady() {
+            if (processor.isEventOverflow()) {
+                // updateInterest closes the connection on the selector thread
+                requestInterestUpdate();
+            } else {
+                schedule();
+            }
+        }
+
+        void read() throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n > 0 && metrics != null) {
+                metrics.bytesRead(n);
+            }
+            if (n < 0) {
+                // Like BufferedReader.readLine, an unterminated last line still counts
+                if (partialLine.size() > 0) {
+                    emitLine();
+                }
+                endOfInput = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                schedule();
+                return;
+            }
+
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    if (!afterCarriageReturn) {
+                        emitLine();
+                    }
+                    afterCarriageReturn = false;
+                } else if (b == '\r') {
+                    emitLine();
+                    afterCarriageReturn = true;
+                } else {
+                    partialLine.write(b);
+                    afterCarriageReturn = false;
+                }
+            }
+            schedule();
+            updateInterest();
+        }
+
+        private void emitLine() {
+            inbox.add(new String(partialLine.toByteArray(), CHARSET));
+            inboxSize.incrementAndGet();
+            partialLine.reset();
+        }
+
+        // While the client has too much unsent, write() schedules once it drains
+        private void schedule() {
+            boolean unfinished = processor.hasUnfinishedResponse();
+            boolean work = (!inbox.isEmpty() || processor.hasPendingEvents() || unfinished)
+                    && pendingBytes() < MAX_PENDING_BYTES
+                    || endOfInput && inbox.isEmpty() && !unfinished;
+            if (work && scheduled.compareAndSet(false, true)) {
+                workers.execute(this);
+            }
+        }
+
+        // Events are only moved to the outbox while the client keeps up with it, so a
+        // slow subscriber backs up into its bounded subscription queue instead
+        private boolean hasEventsToSend() {
+            return processor.hasPendingEvents() && pendingBytes() < MAX_PENDING_BYTES;
+        }
+
+        private synchronized int pendingBytes() {
+            return pendingBytes;
+        }
+
+        /**
+         * Worker side: finishes an unfinished GET, then runs queued commands, stopping
+         * early once the client has MAX_PENDING_BYTES unsent, and queues their responses
+         * and any subscription events. Small responses share one write.
+         */
+        @Override
+        public void run() {
+            ChunkedOutput out = output;
+            out.full = false;
+            String line;
+            boolean disconnect = false;
+            try {
+                processor.continueResponse();
+                if (!processor.hasUnfinishedResponse()) {
+                    drainEvents(out);
+                }
+                while (!disconnect && !processor.hasUnfinishedResponse() && pendingBytes() < MAX_PENDING_BYTES
+                        && (line = inbox.poll()) != null) {
+                    inboxSize.decrementAndGet();
+                    processor.handleLine(line, out);
+                    disconnect = processor.isClosing();
+                    if (!disconnect && !processor.hasUnfinishedResponse()) {
+                        drainEvents(out);
+                    }
+                }
+            } catch (IOException e) {
+                // ChunkedOutput never throws
+                throw new UncheckedIOException(e);
+            }
+
+            boolean finished;
+            synchronized (this) {
+                out.enqueueRest();
+                if (disconnect || (endOfInput && inbox.isEmpty() && !processor.hasUnfinishedResponse())) {
+                    closeAfterFlush = true;
+                }
+                finished = closeAfterFlush;
+            }
+            requestInterestUpdate();
+
+            scheduled.set(false);
+            if (!finished) {
+                // Input may have arrived while this run was finishing
+                schedule();
+            }
+        }
+
+        private void drainEvents(Appendable out) throws IOException {
+            if (hasEventsToSend()) {
+                processor.drainEvents(out);
+            }
+        }
+
+        synchronized void enqueueOutput(CharSequence text) {
+            ByteBuffer bytes = CHARSET.encode(CharBuffer.wrap(text));
+            outbox.add(bytes);
+            pendingBytes += bytes.remaining();
+        }
+
+        /**
+         * Output of the worker runs. Text is handed to the outbox every OUTPUT_CHUNK
+         * chars, so a large GET is held a chunk at a time rather than whole; full tells
+         * the command processor when to stop one part-way.
+         */
+        private final class ChunkedOutput implements Appendable {
+            private final StringBuilder chunk = new StringBuilder();
+            // Set when a hand-off leaves MAX_PENDING_BYTES unsent; cleared by each run
+            boolean full;
+
+            @Override
+            public Appendable append(CharSequence csq) {
+                return append(csq, 0, csq.length());
+            }
+
+            @Override
+            public Appendable append(CharSequence csq, int start, int end) {
+                while (start < end) {
+                    int n = Math.min(end - start, OUTPUT_CHUNK - chunk.length());
+                    chunk.append(csq, start, start + n);
+                    start += n;
+                    if (chunk.length() >= OUTPUT_CHUNK) {
+                        handOff();
+                    }
+                }
+                return this;
+            }
+
+            @Override
+            public Appendable append(char c) {
+                chunk.append(c);
+                if (chunk.length() >= OUTPUT_CHUNK) {
+                    handOff();
+                }
+                return this;
+            }
+
+            private void handOff() {
+                enqueueOutput(chunk);
+                chunk.setLength(0);
+                full = pendingBytes() >= MAX_PENDING_BYTES;
+                requestInterestUpdate();
+            }
+
+            // Queues what is left; the caller holds the connection's lock
+            void enqueueRest() {
+                if (chunk.length() > 0) {
+                    enqueueOutput(chunk);
+                    chunk.setLength(0);
+                }
+            }
+        }
+
+        private void requestInterestUpdate() {
+            interestChanges.add(this);
+            selector.wakeup();
+        }
+
+        synchronized void write() throws IOException {
+            while (!outbox.isEmpty()) {
+                ByteBuffer head = outbox.peek();
+                int written = channel.write(head);
+                pendingBytes -= written;
+                if (metrics != null) {
+                    metrics.bytesWritten(written);
+                }
+                if (head.hasRemaining()) {
+                    break;
+                }
+                outbox.poll();
+            }
+            if (outbox.isEmpty() && closeAfterFlush) {
+                close();
+                return;
+            }
+            updateInterest();
+            // Output and input held back while the outbox was full can move now
+            if (pendingBytes < MAX_PENDING_BYTES) {
+                if (!closeAfterFlush) {
+                    schedule();
+                }
+            }
+        }
+
+        synchronized void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            if (processor.isEventOverflow()) {
+                if (Log.isWarnEnabled()) {
+                    processor.log(Log.Level.WARN, "Too many unsent events, disconnecting");
+                }
+                close();
+                return;
+            }
+            if (outbox.isEmpty() && closeAfterFlush) {
+                close();
+                return;
+            }
+            boolean backlogged = inboxSize.get() >= MAX_PENDING_LINES || pendingBytes >= MAX_PENDING_BYTES;
+            int ops = 0;
+            if (!endOfInput && !closeAfterFlush && !backlogged) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!outbox.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            processor.close();
+            if (metrics != null) {
+                metrics.connectionClosed();
+            }
+            try {
+                channel.close();
+                if (Log.isInfoEnabled()) {
+                    processor.log(Log.Level.INFO, "Connection closed");
+                }
+            } catch (IOException e) {
+                if (Log.isWarnEnabled()) {
+                    processor.log(Log.Level.WARN, "Error closing connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -1,44 +1,103 @@
-import java.io.Serializable;
-
-/**
- * Represents a note on the bulletin board.
- */
-public class Note implements Serializable {
-    private final int x;
-    private final int y;
-    private final String color;
-    private final String message;
-    private final int width;
-    private final int height;
-
-    public Note(int x, int y, String color, String message, int width, int height) {
-        this.x = x;
-        this.y = y;
-        this.color = color;
-        this.message = message;
-        this.width = width;
-        this.height = height;
-    }
-
-    public int getX() { return x; }
-    public int getY() { return y; }
-    public String getColor() { return color; }
-    public String getMessage() { return message; }
-    public int getWidth() { return width; }
-    public int getHeight() { return height; }
-
-    public boolean contains(int px, int py) {
-        return px >= x && px < x + width && py >= y && py < y + height;
-    }
-
-    public boolean completelyOverlaps(Note other) {
-        return this.x == other.x && this.y == other.y &&
-               this.width == other.width && this.height == other.height;
-    }
-
-    @Override
-    public String toString() {
-        return String.format("Note[pos=(%d,%d), color=%s, msg=\"%s\"]",
-                x, y, color, message);
-    }
+import java.io.Serializable;
+
+/**
+ * Represents a note on the bulletin board.
+ */
+public class Note implements Serializable {
+    private final int x;
+    private final int y;
+    private final NoteShape shape;
+    private final String message;
+
+    // Insertion order on the board, assigned by Board when the note is posted
+    transient long sequence;
+
+    // Number of board pins inside this note, kept up to date by Board
+    transient int pinCount;
+
+    // Position in the board's NoteStore, -1 once removed
+    transient int slot = -1;
+
+    // Neighbours among the notes bucketed in the same SpatialGrid cell
+    transient Note prevInCell;
+    transient Note nextInCell;
+
+    // Deadline and ExpiryWheel links, null if the note never expires
+    transient NoteExpiry expiry;
+
+    // Neighbours in the owner shard's list of unpinned notes
+    transient Note unpinnedPrev;
+    transient Note unpinnedNext;
+
+    // message.toLowerCase(), computed once for refersTo matching
+    private transient String lowerMessage;
+
+    // message with line breaks turned into spaces, computed once for the text protocol
+    private transient String lineMessage;
+
+    public Note(int x, int y, String color, String message, int width, int height) {
+        this(x, y, new NoteShape(color, width, height, -1), message);
+    }
+
+    // Board passes its shared shape for the note's color
+    Note(int x, int y, NoteShape shape, String message) {
+        this.x = x;
+        this.y = y;
+        this.shape = shape;
+        this.message = message;
+    }
+
+    public int getX() { return x; }
+    public int getY() { return y; }
+    public String getColor() { return shape.color; }
+    public String getMessage() { return message; }
+    public int getWidth() { return shape.width; }
+    public int getHeight() { return shape.height; }
+
+    int colorId() { return shape.colorId; }
+
+    // Wall-clock time in ms at which the note expires, 0 if it never does
+    long expiresAt() {
+        NoteExpiry e = expiry;
+        return e != null ? e.at : 0;
+    }
+
+    String lowerMessage() {
+        String lower = lowerMessage;
+        if (lower == null) {
+            lower = message.toLowerCase();
+            lowerMessage = lower;
+        }
+        return lower;
+    }
+
+    /**
+     * The message as one line of the text protocol. Only binary clients can post
+     * messages with line breaks; text clients see each break as a space.
+     */
+    String lineMessage() {
+        String line = lineMessage;
+        if (line == null) {
+            line = message.indexOf('\n') < 0 && message.indexOf('\r') < 0
+                    ? message
+                    : message.replace('\r', ' ').replace('\n', ' ');
+            lineMessage = line;
+        }
+        return line;
+    }
+
+    public boolean contains(int px, int py) {
+        return px >= x && px < x + shape.width && py >= y && py < y + shape.height;
+    }
+
+    public boolean completelyOverlaps(Note other) {
+        return this.x == other.x && this.y == other.y &&
+               getWidth() == other.getWidth() && getHeight() == other.getHeight();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Note[pos=(%d,%d), color=%s, msg=\"%s\"]",
+                x, y, shape.color, message);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,18 @@
+/**
+ * Expiry state of a note with a TTL: its deadline and its place in the ExpiryWheel.
+ * Only notes posted with a TTL get one, so notes that never expire carry a single
+ * null reference instead of the deadline and wheel links.
+ */
+final class NoteExpiry {
+    // Wall-clock time in ms at which the note expires
+    final long at;
+
+    // ExpiryWheel slot holding the note (-1 if none) and its neighbours there
+    int slot = -1;
+    Note prev;
+    Note next;
+
+    NoteExpiry(long at) {
+        this.at = at;
+    }
+}
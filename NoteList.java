@@ -0,0 +1,76 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Append-only list of notes in insertion order, used for index buckets.
+ * Notes removed from the board (slot < 0) are skipped when iterating and
+ * dropped by prune(), so removal never has to search the bucket.
+ * Not thread-safe; Board guards it.
+ */
+class NoteList implements Iterable<Note> {
+    private Note[] notes = new Note[4];
+    private int size;
+
+    /**
+     * Number of entries, including removed notes not yet pruned.
+     */
+    int size() {
+        return size;
+    }
+
+    void add(Note note) {
+        // A note added several times in a row (e.g. a repeated trigram) is kept once
+        if (size > 0 && notes[size - 1] == note) {
+            return;
+        }
+        if (size == notes.length) {
+            notes = Arrays.copyOf(notes, size * 2);
+        }
+        notes[size++] = note;
+    }
+
+    /**
+     * Drops removed notes, keeping order, and returns the new size.
+     */
+    int prune() {
+        int write = 0;
+        for (int read = 0; read < size; read++) {
+            if (notes[read].slot >= 0) {
+                notes[write++] = notes[read];
+            }
+        }
+        Arrays.fill(notes, write, size, null);
+        size = write;
+        return size;
+    }
+
+    @Override
+    public Iterator<Note> iterator() {
+        return new Iterator<Note>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < size && notes[from].slot < 0) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Note next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                Note note = notes[next];
+                next = advance(next + 1);
+                return note;
+            }
+        };
+    }
+}
@@ -0,0 +1,23 @@
+import java.io.Serializable;
+
+/**
+ * The attributes a board's notes share: color and size.
+ * Board keeps one instance per valid color and every note of that color points to it,
+ * so a note stores one reference instead of its own color, width, height and color ID.
+ */
+final class NoteShape implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final String color;
+    final int width;
+    final int height;
+    // Index of the color in the board's color list, -1 for notes made outside a board
+    final int colorId;
+
+    NoteShape(String color, int width, int height, int colorId) {
+        this.color = color;
+        this.width = width;
+        this.height = height;
+        this.colorId = colorId;
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * Slot-indexed arena of notes in insertion order.
+ * Posting appends to the next free slot, removing leaves a tombstone, and the
+ * array is compacted in place once tombstones outnumber live notes. Nothing is
+ * copied on an ordinary write. Not thread-safe; Board guards it.
+ */
+class NoteStore implements Iterable<Note> {
+    private static final int MIN_COMPACT = 64;
+
+    private Note[] slots = new Note[64];
+    private int end;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    void add(Note note) {
+        if (end == slots.length) {
+            if (end - size >= size) {
+                compact();
+            } else {
+                slots = Arrays.copyOf(slots, slots.length * 2);
+            }
+        }
+        note.slot = end;
+        slots[end++] = note;
+        size++;
+    }
+
+    void remove(Note note) {
+        int slot = note.slot;
+        if (slot < 0 || slot >= end || slots[slot] != note) {
+            return;
+        }
+        slots[slot] = null;
+        note.slot = -1;
+        size--;
+
+        int dead = end - size;
+        if (dead >= MIN_COMPACT && dead > size) {
+            compact();
+        }
+    }
+
+    /**
+     * Removes every note matching the filter in one pass, keeping order.
+     * Returns the number of notes removed.
+     */
+    int removeIf(Predicate<Note> filter) {
+        int write = 0;
+        for (int read = 0; read < end; read++) {
+            Note note = slots[read];
+            if (note == null) {
+                continue;
+            }
+            if (filter.test(note)) {
+                note.slot = -1;
+                continue;
+            }
+            note.slot = write;
+            slots[write++] = note;
+        }
+        Arrays.fill(slots, write, end, null);
+        int removed = size - write;
+        end = write;
+        size = write;
+        return removed;
+    }
+
+    private void compact() {
+        removeIf(note -> false);
+    }
+
+    List<Note> toList() {
+        List<Note> out = new ArrayList<>(size);
+        for (int i = 0; i < end; i++) {
+            if (slots[i] != null) {
+                out.add(slots[i]);
+            }
+        }
+        return out;
+    }
+
+    void clear() {
+        slots = new Note[64];
+        end = 0;
+        size = 0;
+    }
+
+    @Override
+    public Iterator<Note> iterator() {
+        return new Iterator<Note>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < end && slots[from] == null) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < end;
+            }
+
+            @Override
+            public Note next() {
+                if (next >= end) {
+                    throw new NoSuchElementException();
+                }
+                Note note = slots[next];
+                next = advance(next + 1);
+                return note;
+            }
+        };
+    }
+}
@@ -0,0 +1,247 @@
+import java.util.List;
+
+/**
+ * BoardShard keeping every note as an object, indexed by cell, position, color and
+ * trigram, so every filter and SHAKE start from a candidate set rather than a scan.
+ */
+class ObjectShard extends BoardShard {
+    final NoteStore notes = new NoteStore();
+    final PinSet pins = new PinSet();
+    final SpatialGrid grid;
+    // Notes by packed top-left corner; every note has the board's size, so two notes
+    // completely overlap exactly when they share this key
+    final LongHashMap<Note> byPosition = new LongHashMap<>();
+    final TextIndex text = new TextIndex();
+    final NoteList[] byColor;
+
+    // Notes without a pin, most recently unpinned first, linked through the notes
+    // themselves so SHAKE only visits the notes it removes
+    private Note unpinnedHead;
+
+    // Removed notes whose text and color index entries have not been pruned yet
+    private int unpruned;
+
+    ObjectShard(int startX, int endX, int boardWidth, int boardHeight, int noteWidth, int noteHeight,
+                int colorCount) {
+        super(startX, endX);
+        this.byColor = new NoteList[colorCount];
+        for (int i = 0; i < colorCount; i++) {
+            byColor[i] = new NoteList();
+        }
+        // Notes anchored in the strip reach up to one note width past its right edge
+        int gridWidth = Math.min(boardWidth, endX + noteWidth) - startX;
+        this.grid = new SpatialGrid(startX, gridWidth, boardWidth, boardHeight, noteWidth, noteHeight);
+    }
+
+    @Override
+    int noteCount() {
+        return notes.size();
+    }
+
+    @Override
+    int pinCount() {
+        return pins.size();
+    }
+
+    @Override
+    boolean hasPin(int x, int y) {
+        return pins.contains(x, y);
+    }
+
+    @Override
+    int copySortedPinsTo(long[] out, int pos) {
+        return pins.copySortedTo(out, pos);
+    }
+
+    @Override
+    int countPinsIn(Note note) {
+        return grid.countPinsIn(note);
+    }
+
+    @Override
+    Note noteAt(int x, int y) {
+        return byPosition.get(SpatialGrid.pack(x, y));
+    }
+
+    @Override
+    boolean isPinned(Note note) {
+        return note.pinCount > 0;
+    }
+
+    @Override
+    void addNote(Note note) {
+        notes.add(note);
+        grid.addNote(note);
+        byPosition.put(SpatialGrid.pack(note.getX(), note.getY()), note);
+        text.add(note);
+        byColor[note.colorId()].add(note);
+        if (note.pinCount == 0) {
+            linkUnpinned(note);
+        }
+    }
+
+    /**
+     * Removes one note. Its text and color index entries are skipped from now on and
+     * pruned once such entries outnumber the notes left, so removal stays O(1) amortized.
+     */
+    @Override
+    void removeNote(Note note) {
+        if (note.pinCount == 0) {
+            unlinkUnpinned(note);
+        }
+        unindex(note);
+        unpruned++;
+        pruneIfStale();
+    }
+
+    private void unindex(Note note) {
+        notes.remove(note);
+        grid.removeNote(note);
+        byPosition.remove(SpatialGrid.pack(note.getX(), note.getY()));
+    }
+
+    private void pruneIfStale() {
+        if (unpruned >= 64 && unpruned > notes.size()) {
+            text.prune();
+            for (NoteList bucket : byColor) {
+                bucket.prune();
+            }
+            unpruned = 0;
+        }
+    }
+
+    private void linkUnpinned(Note note) {
+        note.unpinnedPrev = null;
+        note.unpinnedNext = unpinnedHead;
+        if (unpinnedHead != null) {
+            unpinnedHead.unpinnedPrev = note;
+        }
+        unpinnedHead = note;
+    }
+
+    private void unlinkUnpinned(Note note) {
+        if (note.unpinnedPrev != null) {
+            note.unpinnedPrev.unpinnedNext = note.unpinnedNext;
+        } else {
+            unpinnedHead = note.unpinnedNext;
+        }
+        if (note.unpinnedNext != null) {
+            note.unpinnedNext.unpinnedPrev = note.unpinnedPrev;
+        }
+        note.unpinnedPrev = null;
+        note.unpinnedNext = null;
+    }
+
+    @Override
+    boolean addPin(int x, int y) {
+        if (!pins.add(x, y)) {
+            return false;
+        }
+        grid.addPin(x, y);
+        return true;
+    }
+
+    @Override
+    boolean removePin(int x, int y) {
+        if (!pins.remove(x, y)) {
+            return false;
+        }
+        grid.removePin(x, y);
+        return true;
+    }
+
+    /**
+     * Adds delta to the pin count of every note in this shard containing (x, y),
+     * moving notes that gain their first pin or lose their last one in or out of
+     * the unpinned list.
+     */
+    @Override
+    void adjustPinCounts(int x, int y, int delta, List<Note> scratch) {
+        scratch.clear();
+        grid.collectNotesContaining(x, y, scratch);
+        for (Note note : scratch) {
+            int before = note.pinCount;
+            note.pinCount += delta;
+            if (before == 0) {
+                unlinkUnpinned(note);
+            } else if (note.pinCount == 0) {
+                linkUnpinned(note);
+            }
+        }
+    }
+
+    /**
+     * Removes every note without a pin, returning how many were removed. Only the
+     * unpinned list is walked, so the cost is proportional to the notes removed.
+     * The removed notes are added to removedOut unless it is null.
+     */
+    @Override
+    int removeUnpinned(List<Note> removedOut) {
+        int removed = 0;
+        for (Note note = unpinnedHead; note != null; ) {
+            Note next = note.unpinnedNext;
+            note.unpinnedPrev = null;
+            note.unpinnedNext = null;
+            unindex(note);
+            if (removedOut != null) {
+                removedOut.add(note);
+            }
+            removed++;
+            note = next;
+        }
+        unpinnedHead = null;
+        unpruned += removed;
+        pruneIfStale();
+        return removed;
+    }
+
+    @Override
+    void collectNotes(List<Note> out) {
+        for (Note note : notes) {
+            out.add(note);
+        }
+    }
+
+    /**
+     * Starts from the smallest candidate set the indexes offer (spatial cells, color
+     * bucket or trigram postings) and checks the remaining filters on each candidate.
+     */
+    @Override
+    void findNotes(int colorId, boolean byPoint, int containsX, int containsY, String lowerRefersTo,
+                   List<Note> results, int limit) {
+        Iterable<Note> candidates = notes;
+        int estimate = notes.size();
+
+        if (byPoint) {
+            List<Note> near = grid.notesContaining(containsX, containsY);
+            candidates = near;
+            estimate = near.size();
+        }
+        if (colorId >= 0 && byColor[colorId].size() < estimate) {
+            candidates = byColor[colorId];
+            estimate = byColor[colorId].size();
+        }
+        if (lowerRefersTo != null) {
+            NoteList postings = text.candidates(lowerRefersTo);
+            if (postings != null && postings.size() < estimate) {
+                candidates = postings;
+            }
+        }
+
+        for (Note note : candidates) {
+            if (colorId >= 0 && note.colorId() != colorId) {
+                continue;
+            }
+            if (byPoint && !note.contains(containsX, containsY)) {
+                continue;
+            }
+            if (lowerRefersTo != null && !note.lowerMessage().contains(lowerRefersTo)) {
+                continue;
+            }
+            results.add(note);
+            if (results.size() >= limit) {
+                return;
+            }
+        }
+    }
+}
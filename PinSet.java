@@ -0,0 +1,70 @@
+/**
+ * Set of pin coordinates packed as (x << 32 | y) longs.
+ * Membership goes through a primitive hash set, so PIN and UNPIN checks are O(1),
+ * and a SortedLongSet beside it is updated in place on every change, so listing the
+ * pins in order is a copy rather than a sort.
+ */
+class PinSet {
+    private final LongHashSet members = new LongHashSet();
+    private final SortedLongSet ordered = new SortedLongSet();
+
+    static long key(int x, int y) {
+        return SpatialGrid.pack(x, y);
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    boolean contains(int x, int y) {
+        return members.contains(key(x, y));
+    }
+
+    /**
+     * Adds the pin, returning false if it was already present.
+     */
+    boolean add(int x, int y) {
+        long key = key(x, y);
+        if (!members.add(key)) {
+            return false;
+        }
+        ordered.add(key);
+        return true;
+    }
+
+    /**
+     * Removes the pin, returning false if it was not present.
+     */
+    boolean remove(int x, int y) {
+        long key = key(x, y);
+        if (!members.remove(key)) {
+            return false;
+        }
+        ordered.remove(key);
+        return true;
+    }
+
+    /**
+     * Counts the pins inside the given rectangle, with one range count per column.
+     */
+    int countIn(int x, int y, int width, int height) {
+        int count = 0;
+        for (int px = x; px < x + width; px++) {
+            count += ordered.countBetween(key(px, y), key(px, y + height));
+        }
+        return count;
+    }
+
+    /**
+     * Copies the packed pins, ordered by x then y, into out from pos on, returning
+     * the position after the last one.
+     */
+    int copySortedTo(long[] out, int pos) {
+        return ordered.copyTo(out, pos);
+    }
+
+    void clear() {
+        members.clear();
+        ordered.clear();
+    }
+}
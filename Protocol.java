@@ -10,6 +10,13 @@ public class Protocol {
     public static final String CMD_SHAKE = "SHAKE";
     public static final String CMD_CLEAR = "CLEAR";
     public static final String CMD_DISCONNECT = "DISCONNECT";
+    public static final String CMD_SUBSCRIBE = "SUBSCRIBE";
+    public static final String CMD_UNSUBSCRIBE = "UNSUBSCRIBE";
+    public static final String CMD_BATCH = "BATCH";
+    public static final String CMD_MPOST = "MPOST";
+    public static final String CMD_MPIN = "MPIN";
+    public static final String CMD_END = "END";
+    public static final String CMD_STATS = "STATS";
     
     // Response types
     public static final String RESP_OK = "OK";
@@ -18,6 +25,19 @@ public class Protocol {
     public static final String RESP_NOTE = "NOTE";
     public static final String RESP_PIN = "PIN";
     public static final String RESP_END = "END";
+    public static final String RESP_MORE = "MORE";
+    public static final String RESP_EVENT = "EVENT";
+    public static final String RESP_STAT = "STAT";
+
+    // GET paging keywords
+    public static final String KEY_LIMIT = "LIMIT";
+    public static final String KEY_OFFSET = "OFFSET";
+
+    // BATCH / MPOST / MPIN all-or-nothing keyword
+    public static final String KEY_ATOMIC = "ATOMIC";
+
+    // POST time-to-live option, before the color: POST <x> <y> TTL <seconds> <color> <message>
+    public static final String KEY_TTL = "TTL";
     
     // Error codes
     public static final String ERR_INVALID_FORMAT = "INVALID_FORMAT";
@@ -27,6 +47,10 @@ public class Protocol {
     public static final String ERR_NO_NOTE = "NO_NOTE_AT_COORDINATE";
     public static final String ERR_NO_PIN = "NO_PIN_AT_COORDINATE";
     public static final String ERR_UNKNOWN_COMMAND = "UNKNOWN_COMMAND";
+    public static final String ERR_STORAGE = "STORAGE_ERROR";
+    public static final String ERR_BATCH_ABORTED = "BATCH_ABORTED";
+    public static final String ERR_PIN_EXISTS = "PIN_ALREADY_EXISTS";
+    public static final String ERR_READ_ONLY = "READ_ONLY";
     
     /**
      * Formats the initial server response sent when a client connects.
@@ -0,0 +1,37 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Point-in-time result of a board query.
+ * Holds the matching notes in insertion order together with whether each one
+ * was pinned at the moment the query ran, so rendering can happen after the
+ * board lock is released without mixing in later PIN/UNPIN changes.
+ */
+public class QueryResult {
+    private final Note[] notes;
+    private final boolean[] pinned;
+
+    QueryResult(List<Note> matches) {
+        this.notes = matches.toArray(new Note[0]);
+        this.pinned = new boolean[notes.length];
+        for (int i = 0; i < notes.length; i++) {
+            pinned[i] = notes[i].pinCount > 0;
+        }
+    }
+
+    public int size() {
+        return notes.length;
+    }
+
+    public Note getNote(int i) {
+        return notes[i];
+    }
+
+    public boolean isPinned(int i) {
+        return pinned[i];
+    }
+
+    public List<Note> toList() {
+        return Arrays.asList(notes);
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Follower side of replication: keeps this server's board a copy of a leader's (see
+ * ReplicationLeader) by applying the leader's log records in order on one background
+ * thread. The board is read-only to clients meanwhile.
+ *
+ * The first connection, and any on which the leader cannot resume where the copy
+ * stands, replaces the board with a snapshot from the leader; a reconnection to the
+ * same leader run otherwise carries on from the last applied record. Clients
+ * reading while a snapshot loads may see the board part-way through it. A lost
+ * connection is retried every RETRY_MS, serving the board as it was in between.
+ */
+class ReplicationFollower implements Closeable {
+    private static final long RETRY_MS = 1000;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // Larger messages are a protocol violation and end the connection
+    private static final int MAX_MESSAGE = 1 << 28;
+
+    private final Board board;
+    private final String host;
+    private final int port;
+
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    private Thread thread;
+
+    // Written by the follower thread only; leaderId 0 until the first snapshot
+    private volatile long leaderId;
+    private volatile long applied;
+    private volatile long leaderEnd;
+    private volatile boolean connected;
+    // When the copy last held everything the leader was known to have
+    private volatile long caughtUpAt = System.currentTimeMillis();
+    private volatile long snapshotsLoaded;
+
+    ReplicationFollower(Board board, String host, int port) {
+        this.board = board;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Marks the board read-only and starts following the leader in the background.
+     */
+    void start() {
+        board.setReadOnly(true);
+        thread = new Thread(this::run, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                follow();
+            } catch (IOException e) {
+                if (running && Log.isWarnEnabled()) {
+                    String reason = e instanceof EOFException ? "connection closed" : e.getMessage();
+                    Log.warn("Lost leader " + host + ":" + port + " (" + reason + "), retrying");
+                }
+            }
+            connected = false;
+            try {
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // One connection to the leader, until it fails
+    private void follow() throws IOException {
+        try (Socket s = new Socket()) {
+            socket = s;
+            if (!running) {
+                return;
+            }
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            s.setTcpNoDelay(true);
+            // The leader sends at least a heartbeat every HEARTBEAT_MS
+            s.setSoTimeout((int) (ReplicationLeader.HEARTBEAT_MS * 4));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+            out.writeInt(ReplicationLeader.MAGIC);
+            out.writeLong(leaderId);
+            out.writeLong(applied);
+            out.flush();
+
+            if (in.readInt() != ReplicationLeader.MAGIC) {
+                throw new IOException("not a replication leader");
+            }
+            long id = in.readLong();
+            long position = in.readLong();
+            int snapshotLength = in.readInt();
+            if (snapshotLength >= 0) {
+                loadSnapshot(in, snapshotLength);
+            } else if (id != leaderId || position != applied) {
+                throw new IOException("leader resumed at an unexpected position");
+            }
+            leaderId = id;
+            applied = position;
+            leaderEnd = position;
+            caughtUpAt = System.currentTimeMillis();
+            connected = true;
+            if (Log.isInfoEnabled()) {
+                Log.info("Following leader " + host + ":" + port + " from position " + position);
+            }
+
+            byte[] buffer = new byte[1 << 16];
+            while (running) {
+                long end = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_MESSAGE) {
+                    throw new IOException("bad message length " + length);
+                }
+                if (length > buffer.length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                in.readFully(buffer, 0, length);
+                leaderEnd = end;
+                if (length > 0) {
+                    apply(buffer, length);
+                    out.writeLong(applied);
+                    out.flush();
+                }
+                if (applied >= end) {
+                    caughtUpAt = System.currentTimeMillis();
+                }
+            }
+        } finally {
+            socket = null;
+        }
+    }
+
+    private void loadSnapshot(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        // Forget the old position first: a failure here must not let a reconnection resume
+        leaderId = 0;
+        board.clear();
+        int restored = BoardSnapshot.wrap(ByteBuffer.wrap(bytes)).restoreInto(board);
+        snapshotsLoaded++;
+        if (Log.isInfoEnabled()) {
+            Log.info("Loaded a snapshot of " + restored + " note(s) from leader " + host + ":" + port);
+        }
+    }
+
+    private void apply(byte[] records, int length) throws IOException {
+        try {
+            WriteAheadLog.applyRecords(ByteBuffer.wrap(records, 0, length), board);
+        } catch (IOException | RuntimeException e) {
+            // Some records may have been applied; only a snapshot can say where the copy stands
+            leaderId = 0;
+            throw new IOException("could not apply log records: " + e, e);
+        }
+        applied += length;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    long getSnapshotsLoaded() {
+        return snapshotsLoaded;
+    }
+
+    /**
+     * Bytes of the leader's log this copy is known to be missing.
+     */
+    long getLagBytes() {
+        return Math.max(0, leaderEnd - applied);
+    }
+
+    /**
+     * How long the copy may be out of date: 0 while it holds everything the leader
+     * last reported, otherwise the time since it last did (including while
+     * disconnected).
+     */
+    long getLagMillis() {
+        if (connected && applied >= leaderEnd) {
+            return 0;
+        }
+        return System.currentTimeMillis() - caughtUpAt;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        Socket s = socket;
+        if (s != null) {
+            s.close();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Leader side of replication: streams the board's write-ahead log to follower
+ * servers (see ReplicationFollower) over TCP.
+ *
+ * Records reach the leader through the log's tap, in the order the board applied
+ * them, and the newest backlogBytes of them are kept in a ring. A position is a byte
+ * offset in that stream. Every follower has a thread that sends it whole records from
+ * its position on, or a heartbeat after HEARTBEAT_MS without any. A follower that
+ * reconnects to the same leader run with a position still in the ring carries on
+ * from there; any other first gets a snapshot of the board taken at a known position.
+ * One that falls behind the ring is disconnected, so it comes back for a snapshot.
+ *
+ * Wire format (big-endian):
+ *   follower hello: int magic, long leaderId (0 for none), long position
+ *   leader reply:   int magic, long leaderId, long position, int snapshotLength,
+ *                   snapshot bytes (snapshotLength -1: resume at the follower's position)
+ *   leader, then:   long leaderEnd, int length, length bytes of whole records
+ *   follower acks:  long position applied, after each message with records
+ */
+class ReplicationLeader implements WriteAheadLog.Tap, Closeable {
+    static final int MAGIC = 0x42425250; // "BBRP"
+    static final long HEARTBEAT_MS = 500;
+    // Record bytes sent in one message, unless a single record is larger
+    private static final int MAX_MESSAGE = 1 << 20;
+
+    private final Board board;
+    private final int port;
+    // Tells this run's stream apart from any earlier one's
+    private final long leaderId = new Random().nextLong() | 1;
+
+    // Guarded by this
+    private final byte[] ring;
+    private long end;
+    private boolean closed;
+
+    private final List<Link> followers = new CopyOnWriteArrayList<>();
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * One connected follower, for STATS.
+     */
+    private static final class Link {
+        volatile long acked;
+
+        Link(long acked) {
+            this.acked = acked;
+        }
+    }
+
+    ReplicationLeader(Board board, int port, int backlogBytes) {
+        this.board = board;
+        this.port = port;
+        this.ring = new byte[backlogBytes];
+    }
+
+    /**
+     * Opens the replication port and accepts followers on a background thread.
+     */
+    void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            int followerId = 0;
+            try (ServerSocket server = serverSocket) {
+                while (true) {
+                    Socket socket = server.accept();
+                    followerId++;
+                    Thread sender = new Thread(() -> serve(socket), "replication-follower-" + followerId);
+                    sender.setDaemon(true);
+                    sender.start();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (!closed) {
+                        System.err.println("Replication server error: " + e.getMessage());
+                    }
+                }
+            }
+        }, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // ---- the stream ----
+
+    @Override
+    public synchronized void recorded(byte[] data, int offset, int length) {
+        // A record larger than the ring leaves only its tail; no follower can resume before it
+        int skip = Math.max(0, length - ring.length);
+        int at = (int) ((end + skip) % ring.length);
+        int first = Math.min(length - skip, ring.length - at);
+        System.arraycopy(data, offset + skip, ring, at, first);
+        System.arraycopy(data, offset + skip + first, ring, 0, length - skip - first);
+        end += length;
+        notifyAll();
+    }
+
+    // Oldest position still in the ring
+    private long oldest() {
+        return Math.max(0, end - ring.length);
+    }
+
+    private int ringInt(long position) {
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v = (v << 8) | (ring[(int) ((position + i) % ring.length)] & 0xFF);
+        }
+        return v;
+    }
+
+    // Copies whole records from position into buffer[0], growing it for a record
+    // larger than it, and returns their length; the caller holds this
+    private int collect(long position, byte[][] buffer) {
+        long last = position;
+        while (last < end) {
+            long next = last + 8 + ringInt(last);
+            if (last > position && next - position > MAX_MESSAGE) {
+                break;
+            }
+            last = next;
+        }
+        int length = (int) (last - position);
+        if (length > buffer[0].length) {
+            buffer[0] = new byte[length];
+        }
+        int at = (int) (position % ring.length);
+        int first = Math.min(length, ring.length - at);
+        System.arraycopy(ring, at, buffer[0], 0, first);
+        System.arraycopy(ring, 0, buffer[0], first, length - first);
+        return length;
+    }
+
+    // ---- followers ----
+
+    private void serve(Socket socket) {
+        String address = socket.getRemoteSocketAddress().toString();
+        Link link = null;
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout((int) (HEARTBEAT_MS * 4));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a follower");
+            }
+            long followerLeader = in.readLong();
+            long position = in.readLong();
+            byte[] snapshot = null;
+            synchronized (this) {
+                if (followerLeader != leaderId || position < oldest() || position > end) {
+                    position = -1;
+                }
+            }
+            if (position < 0) {
+                // Every log append happens under a shard write lock, so none is half done here
+                long[] at = new long[1];
+                Board.State state = board.captureState(() -> {
+                    synchronized (this) {
+                        at[0] = end;
+                    }
+                });
+                snapshot = BoardSnapshot.toBytes(state);
+                position = at[0];
+            }
+            out.writeInt(MAGIC);
+            out.writeLong(leaderId);
+            out.writeLong(position);
+            out.writeInt(snapshot != null ? snapshot.length : -1);
+            if (snapshot != null) {
+                out.write(snapshot);
+            }
+            out.flush();
+
+            link = new Link(position);
+            followers.add(link);
+            if (Log.isInfoEnabled()) {
+                Log.info("Follower " + address + (snapshot != null
+                        ? " connected, sent a snapshot of " + snapshot.length + " bytes"
+                        : " resumed") + " at position " + position);
+            }
+
+            byte[][] buffer = { new byte[1 << 16] };
+            while (true) {
+                int length;
+                long leaderEnd;
+                synchronized (this) {
+                    if (end == position && !closed) {
+                        wait(HEARTBEAT_MS);
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    if (position < oldest()) {
+                        if (Log.isWarnEnabled()) {
+                            Log.warn("Follower " + address + " fell behind the replication backlog");
+                        }
+                        return;
+                    }
+                    length = collect(position, buffer);
+                    leaderEnd = end;
+                }
+                out.writeLong(leaderEnd);
+                out.writeInt(length);
+                out.write(buffer[0], 0, length);
+                out.flush();
+                position += length;
+                while (in.available() >= 8) {
+                    link.acked = in.readLong();
+                }
+            }
+        } catch (IOException e) {
+            if (Log.isInfoEnabled()) {
+                Log.info("Follower " + address + " disconnected: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (link != null) {
+                followers.remove(link);
+            }
+        }
+    }
+
+    long getLeaderId() {
+        return leaderId;
+    }
+
+    synchronized long getPosition() {
+        return end;
+    }
+
+    int getFollowerCount() {
+        return followers.size();
+    }
+
+    /**
+     * Bytes of log the furthest-behind follower has not confirmed yet, 0 with none.
+     */
+    long getMaxLagBytes() {
+        long position = getPosition();
+        long lag = 0;
+        for (Link link : followers) {
+            lag = Math.max(lag, position - link.acked);
+        }
+        return lag;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        ServerSocket server = serverSocket;
+        if (server != null) {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of rendered GET responses shared by every connection, keyed by the
+ * normalized query and tagged with the board version (Board.notesVersion or
+ * pinsVersion) read before the response was rendered.
+ * An entry is only served while its version is still current, so a board change
+ * makes stale exactly the queries it can affect (same color and region, or pins)
+ * without any work on the write path; stale entries are dropped when next looked up
+ * or evicted. The cache is split into segments by key hash, each an LRU map with its
+ * own lock and an equal share of the size budget.
+ */
+class ResponseCache {
+    private static final int SEGMENTS = 16;
+    // Rough per-entry cost of the map node, entry object and string headers
+    private static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * One rendered response, line separators included.
+     */
+    static final class Entry {
+        final long version;
+        final String text;
+        final int size;
+
+        Entry(long version, String key, String text) {
+            this.version = version;
+            this.text = text;
+            this.size = ENTRY_OVERHEAD + 2 * (key.length() + text.length());
+        }
+    }
+
+    private static final class Segment {
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private final long budget;
+        private long size;
+
+        Segment(long budget) {
+            this.budget = budget;
+        }
+
+        synchronized Entry get(String key, long version) {
+            Entry entry = entries.get(key);
+            if (entry == null || entry.version == version) {
+                return entry;
+            }
+            entries.remove(key);
+            size -= entry.size;
+            return null;
+        }
+
+        synchronized void put(String key, Entry entry) {
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                size -= old.size;
+            }
+            size += entry.size;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (size > budget && eldest.hasNext()) {
+                size -= eldest.next().size;
+                eldest.remove();
+            }
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int maxEntryChars;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * A cache holding about maxBytes of responses. A response too large for a quarter
+     * of one segment is never cached, so one huge GET cannot flush everything else.
+     */
+    ResponseCache(long maxBytes) {
+        long budget = Math.max(1, maxBytes / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(budget);
+        }
+        this.maxEntryChars = (int) Math.min(Integer.MAX_VALUE, budget / 8);
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Returns the response cached for key at version, or null.
+     */
+    Entry get(String key, long version) {
+        Entry entry = segmentFor(key).get(key, version);
+        if (entry != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Starts capturing a response written to out, for put once it is complete.
+     */
+    Recorder record(Appendable out) {
+        return new Recorder(out, maxEntryChars);
+    }
+
+    /**
+     * Caches what recorder captured under key and version, unless it grew too large.
+     */
+    void put(String key, long version, Recorder recorder) {
+        if (recorder.buffer != null) {
+            segmentFor(key).put(key, new Entry(version, key, recorder.buffer.toString()));
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Passes everything through to the real output while keeping a copy, until the
+     * copy exceeds the size limit.
+     */
+    static final class Recorder implements Appendable {
+        private final Appendable out;
+        private final int limit;
+        private StringBuilder buffer = new StringBuilder();
+
+        Recorder(Appendable out, int limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq) throws IOException {
+            out.append(csq);
+            if (buffer != null) {
+                buffer.append(csq);
+                if (buffer.length() > limit) {
+                    buffer = null;
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) throws IOException {
+            out.append(csq, start, end);
+            if (buffer != null) {
+                buffer.append(csq, start, end);
+                if (buffer.length() > limit) {
+                    buffer = null;
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) throws IOException {
+            out.append(c);
+            if (buffer != null) {
+                buffer.append(c);
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters, per-command latency histograms and gauges, readable with
+ * the STATS command and over JMX.
+ * Recording a command is two clock reads, one histogram increment and, on failure,
+ * one striped counter; gauges such as the note count are only computed when read,
+ * so the numbers cost next to nothing while nobody looks at them.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    /**
+     * Command types with their own counters. BATCH covers BATCH, MPOST and MPIN.
+     */
+    enum Command { POST, GET, PIN, UNPIN, SHAKE, CLEAR, BATCH }
+
+    private static final Command[] COMMANDS = Command.values();
+
+    private final Board board;
+    private final long startedAt = System.nanoTime();
+    private final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length];
+    private final LongAdder[] errors = new LongAdder[COMMANDS.length];
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private volatile ResponseCache responseCache;
+    private volatile ReplicationLeader replicationLeader;
+    private volatile ReplicationFollower replicationFollower;
+
+    public ServerMetrics(Board board) {
+        this.board = board;
+        for (int i = 0; i < COMMANDS.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Reports the hit and miss counts of the server's GET response cache.
+     */
+    void setResponseCache(ResponseCache cache) {
+        this.responseCache = cache;
+    }
+
+    /**
+     * Reports the followers of a replication leader and how far behind they are.
+     */
+    void setReplicationLeader(ReplicationLeader leader) {
+        this.replicationLeader = leader;
+    }
+
+    /**
+     * Reports how far this follower's board is behind its leader's.
+     */
+    void setReplicationFollower(ReplicationFollower follower) {
+        this.replicationFollower = follower;
+    }
+
+    // ---- recording ----
+
+    /**
+     * Records one command that started at startNanos (System.nanoTime) and just finished.
+     */
+    void commandDone(Command command, long startNanos, boolean failed) {
+        latencies[command.ordinal()].record(System.nanoTime() - startNanos);
+        if (failed) {
+            errors[command.ordinal()].increment();
+        }
+    }
+
+    void connectionOpened() {
+        connections.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    void bytesRead(long n) {
+        bytesIn.add(n);
+    }
+
+    void bytesWritten(long n) {
+        bytesOut.add(n);
+    }
+
+    /**
+     * Wraps a socket stream so every byte read from it is counted.
+     */
+    InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    bytesIn.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Wraps a socket stream so every byte written to it is counted.
+     */
+    OutputStream countOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+                bytesOut.add(length);
+            }
+        };
+    }
+
+    // ---- reading ----
+
+    /**
+     * The STATS response body: one "STAT <name> <value>" line per gauge, then one
+     * "STAT <command> count=.. errors=.. mean_us=.. p50_us=.. p99_us=.. p999_us=.. max_us=.."
+     * line per command type.
+     */
+    List<String> statLines() {
+        long[] counts = board.countNotesAndPins();
+        List<String> lines = new ArrayList<>();
+        lines.add(stat("uptime_s", getUptimeSeconds()));
+        lines.add(stat("connections", connections.get()));
+        lines.add(stat("notes", counts[0]));
+        lines.add(stat("pins", counts[1]));
+        lines.add(stat("notes_expired", board.getExpiredCount()));
+        lines.add(stat("bytes_in", bytesIn.sum()));
+        lines.add(stat("bytes_out", bytesOut.sum()));
+        lines.add(stat("lock_waits", board.getLockWaitCount()));
+        lines.add(Protocol.RESP_STAT + " lock_wait_ms " + String.format("%.3f", getLockWaitMillis()));
+        lines.add(stat("get_cache_hits", getResponseCacheHits()));
+        lines.add(stat("get_cache_misses", getResponseCacheMisses()));
+        ReplicationLeader leader = replicationLeader;
+        ReplicationFollower follower = replicationFollower;
+        if (leader != null || follower != null) {
+            lines.add(Protocol.RESP_STAT + " replication_role " + getReplicationRole());
+        }
+        if (leader != null) {
+            lines.add(stat("replication_position", leader.getPosition()));
+            lines.add(stat("replication_followers", leader.getFollowerCount()));
+        }
+        if (follower != null) {
+            lines.add(stat("replication_connected", follower.isConnected() ? 1 : 0));
+            lines.add(stat("replication_snapshots", follower.getSnapshotsLoaded()));
+        }
+        if (leader != null || follower != null) {
+            lines.add(stat("replication_lag_bytes", getReplicationLagBytes()));
+        }
+        if (follower != null) {
+            lines.add(stat("replication_lag_ms", getReplicationLagMillis()));
+        }
+        for (Map.Entry<String, CommandStats> entry : getCommands().entrySet()) {
+            CommandStats s = entry.getValue();
+            lines.add(String.format("%s %s count=%d errors=%d mean_us=%.1f p50_us=%.1f p99_us=%.1f"
+                            + " p999_us=%.1f max_us=%.1f", Protocol.RESP_STAT, entry.getKey(), s.getCount(),
+                    s.getErrors(), s.getMeanMicros(), s.getP50Micros(), s.getP99Micros(), s.getP999Micros(),
+                    s.getMaxMicros()));
+        }
+        return lines;
+    }
+
+    private static String stat(String name, long value) {
+        return Protocol.RESP_STAT + " " + name + " " + value;
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return (System.nanoTime() - startedAt) / 1_000_000_000L;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return connections.get();
+    }
+
+    @Override
+    public long getNoteCount() {
+        return board.countNotesAndPins()[0];
+    }
+
+    @Override
+    public long getPinCount() {
+        return board.countNotesAndPins()[1];
+    }
+
+    @Override
+    public long getExpiredNotes() {
+        return board.getExpiredCount();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getLockWaitCount() {
+        return board.getLockWaitCount();
+    }
+
+    @Override
+    public double getLockWaitMillis() {
+        return board.getLockWaitNanos() / 1e6;
+    }
+
+    @Override
+    public long getResponseCacheHits() {
+        ResponseCache cache = responseCache;
+        return cache != null ? cache.hits() : 0;
+    }
+
+    @Override
+    public long getResponseCacheMisses() {
+        ResponseCache cache = responseCache;
+        return cache != null ? cache.misses() : 0;
+    }
+
+    @Override
+    public String getReplicationRole() {
+        if (replicationFollower != null) {
+            return "follower";
+        }
+        return replicationLeader != null ? "leader" : "none";
+    }
+
+    @Override
+    public int getReplicationFollowers() {
+        ReplicationLeader leader = replicationLeader;
+        return leader != null ? leader.getFollowerCount() : 0;
+    }
+
+    @Override
+    public long getReplicationLagBytes() {
+        ReplicationFollower follower = replicationFollower;
+        if (follower != null) {
+            return follower.getLagBytes();
+        }
+        ReplicationLeader leader = replicationLeader;
+        return leader != null ? leader.getMaxLagBytes() : 0;
+    }
+
+    @Override
+    public long getReplicationLagMillis() {
+        ReplicationFollower follower = replicationFollower;
+        return follower != null ? follower.getLagMillis() : 0;
+    }
+
+    @Override
+    public Map<String, CommandStats> getCommands() {
+        Map<String, CommandStats> out = new LinkedHashMap<>();
+        for (Command command : COMMANDS) {
+            LatencyHistogram h = latencies[command.ordinal()];
+            out.put(command.name(), new CommandStats(h.count(), errors[command.ordinal()].sum(),
+                    h.mean() / 1e3, h.percentile(50) / 1e3, h.percentile(99) / 1e3,
+                    h.percentile(99.9) / 1e3, h.max() / 1e3));
+        }
+        return out;
+    }
+}
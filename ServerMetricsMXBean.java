@@ -0,0 +1,84 @@
+import java.util.Map;
+
+/**
+ * Management view of ServerMetrics, registered as BBoard:type=ServerMetrics,port=N
+ * so jconsole and other JMX clients can read the same numbers as STATS.
+ */
+public interface ServerMetricsMXBean {
+    long getUptimeSeconds();
+
+    int getActiveConnections();
+
+    long getNoteCount();
+
+    long getPinCount();
+
+    long getExpiredNotes();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getLockWaitCount();
+
+    double getLockWaitMillis();
+
+    long getResponseCacheHits();
+
+    long getResponseCacheMisses();
+
+    /**
+     * "leader", "follower" or "none".
+     */
+    String getReplicationRole();
+
+    int getReplicationFollowers();
+
+    /**
+     * On a follower, log bytes it is known to be missing; on a leader, the most any
+     * follower has not confirmed.
+     */
+    long getReplicationLagBytes();
+
+    /**
+     * On a follower, how long its board may be out of date; 0 elsewhere.
+     */
+    long getReplicationLagMillis();
+
+    /**
+     * Per command type: how often it ran, how often it failed and its latency.
+     */
+    Map<String, CommandStats> getCommands();
+
+    /**
+     * Snapshot of one command type's counters; latencies in microseconds.
+     */
+    final class CommandStats {
+        private final long count;
+        private final long errors;
+        private final double meanMicros;
+        private final double p50Micros;
+        private final double p99Micros;
+        private final double p999Micros;
+        private final double maxMicros;
+
+        public CommandStats(long count, long errors, double meanMicros, double p50Micros,
+                            double p99Micros, double p999Micros, double maxMicros) {
+            this.count = count;
+            this.errors = errors;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+            this.p999Micros = p999Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() { return count; }
+        public long getErrors() { return errors; }
+        public double getMeanMicros() { return meanMicros; }
+        public double getP50Micros() { return p50Micros; }
+        public double getP99Micros() { return p99Micros; }
+        public double getP999Micros() { return p999Micros; }
+        public double getMaxMicros() { return maxMicros; }
+    }
+}
@@ -0,0 +1,171 @@
+import java.util.Arrays;
+
+/**
+ * Sorted set of primitive longs kept as an ordered list of sorted blocks of at most
+ * BLOCK keys (a two-level B-tree). Adding or removing a key shifts keys within one
+ * block and, when a block splits, merges or empties, the list of blocks; so a change
+ * costs O(BLOCK + size / BLOCK) rather than O(size), and listing the keys in order is
+ * a copy of each block in turn.
+ * Not thread-safe.
+ */
+class SortedLongSet {
+    private static final int BLOCK = 512;
+
+    private long[][] blocks = new long[4][];
+    private int[] counts = new int[4];
+    private int blockCount;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    // The block whose range holds key: the last one starting at or before it, else the first
+    private int blockFor(long key) {
+        int lo = 0;
+        int hi = blockCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (blocks[mid][0] <= key) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    boolean contains(long key) {
+        if (blockCount == 0) {
+            return false;
+        }
+        int b = blockFor(key);
+        return Arrays.binarySearch(blocks[b], 0, counts[b], key) >= 0;
+    }
+
+    /**
+     * Counts the keys in [from, to).
+     */
+    int countBetween(long from, long to) {
+        if (blockCount == 0 || from >= to) {
+            return 0;
+        }
+        int count = 0;
+        for (int b = blockFor(from); b < blockCount && blocks[b][0] < to; b++) {
+            int lo = Arrays.binarySearch(blocks[b], 0, counts[b], from);
+            int hi = Arrays.binarySearch(blocks[b], 0, counts[b], to);
+            count += (hi < 0 ? -hi - 1 : hi) - (lo < 0 ? -lo - 1 : lo);
+        }
+        return count;
+    }
+
+    /**
+     * Adds key, returning false if it was already present.
+     */
+    boolean add(long key) {
+        if (blockCount == 0) {
+            insertBlock(0, new long[BLOCK], 0);
+        }
+        int b = blockFor(key);
+        int at = Arrays.binarySearch(blocks[b], 0, counts[b], key);
+        if (at >= 0) {
+            return false;
+        }
+        at = -at - 1;
+        if (counts[b] == BLOCK) {
+            // Split in half; the key goes into whichever half covers it
+            long[] upper = new long[BLOCK];
+            int half = BLOCK / 2;
+            System.arraycopy(blocks[b], half, upper, 0, BLOCK - half);
+            counts[b] = half;
+            insertBlock(b + 1, upper, BLOCK - half);
+            if (at > half) {
+                b++;
+                at -= half;
+            }
+        }
+        long[] block = blocks[b];
+        System.arraycopy(block, at, block, at + 1, counts[b] - at);
+        block[at] = key;
+        counts[b]++;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes key, returning false if it was not present.
+     */
+    boolean remove(long key) {
+        if (blockCount == 0) {
+            return false;
+        }
+        int b = blockFor(key);
+        long[] block = blocks[b];
+        int at = Arrays.binarySearch(block, 0, counts[b], key);
+        if (at < 0) {
+            return false;
+        }
+        System.arraycopy(block, at + 1, block, at, counts[b] - at - 1);
+        counts[b]--;
+        size--;
+        if (counts[b] == 0) {
+            removeBlock(b);
+        } else if (b + 1 < blockCount && counts[b] + counts[b + 1] <= BLOCK / 2) {
+            merge(b);
+        } else if (b > 0 && counts[b - 1] + counts[b] <= BLOCK / 2) {
+            merge(b - 1);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the keys in ascending order into out from pos on, returning the position
+     * after the last one.
+     */
+    int copyTo(long[] out, int pos) {
+        for (int b = 0; b < blockCount; b++) {
+            System.arraycopy(blocks[b], 0, out, pos, counts[b]);
+            pos += counts[b];
+        }
+        return pos;
+    }
+
+    long[] toArray() {
+        long[] out = new long[size];
+        copyTo(out, 0);
+        return out;
+    }
+
+    void clear() {
+        blocks = new long[4][];
+        counts = new int[4];
+        blockCount = 0;
+        size = 0;
+    }
+
+    // Moves block b + 1's keys to the end of block b and drops b + 1
+    private void merge(int b) {
+        System.arraycopy(blocks[b + 1], 0, blocks[b], counts[b], counts[b + 1]);
+        counts[b] += counts[b + 1];
+        removeBlock(b + 1);
+    }
+
+    private void insertBlock(int b, long[] block, int count) {
+        if (blockCount == blocks.length) {
+            blocks = Arrays.copyOf(blocks, blockCount * 2);
+            counts = Arrays.copyOf(counts, blockCount * 2);
+        }
+        System.arraycopy(blocks, b, blocks, b + 1, blockCount - b);
+        System.arraycopy(counts, b, counts, b + 1, blockCount - b);
+        blocks[b] = block;
+        counts[b] = count;
+        blockCount++;
+    }
+
+    private void removeBlock(int b) {
+        System.arraycopy(blocks, b + 1, blocks, b, blockCount - b - 1);
+        System.arraycopy(counts, b + 1, counts, b, blockCount - b - 1);
+        blockCount--;
+        blocks[blockCount] = null;
+    }
+}
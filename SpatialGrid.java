@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Uniform grid index over the board area, or over a vertical strip of it starting at originX.
+ * Notes are bucketed by the cell holding their top-left corner and pins by the cell
+ * holding them. A cell is never smaller than a note, so a note spans at most 2x2 cells
+ * and every containment check only looks at that neighbourhood.
+ * A cell's notes form a chain through Note.nextInCell and Note.prevInCell, so bucketing
+ * a note costs no allocation beyond the cell's head slot and unbucketing it is O(1).
+ */
+class SpatialGrid {
+    private static final int MAX_CELLS_PER_AXIS = 1024;
+
+    static final Comparator<Note> INSERTION_ORDER = Comparator.comparingLong(n -> n.sequence);
+
+    private final int originX;
+    private final int width;
+    private final int height;
+    private final int cellWidth;
+    private final int cellHeight;
+    private final int cols;
+    private final int rows;
+
+    private final Note[] noteCells;
+    private final PinCell[] pinCells;
+
+    /**
+     * Grid over a strip of a board boardWidth wide. Cells are sized for the whole board,
+     * so splitting it into strips does not multiply the number of cells.
+     */
+    SpatialGrid(int originX, int width, int boardWidth, int height, int noteWidth, int noteHeight) {
+        this.originX = originX;
+        this.width = width;
+        this.height = height;
+        this.cellWidth = cellSize(boardWidth, noteWidth);
+        this.cellHeight = cellSize(height, noteHeight);
+        this.cols = Math.max(1, ceilDiv(width, cellWidth));
+        this.rows = Math.max(1, ceilDiv(height, cellHeight));
+
+        this.noteCells = new Note[cols * rows];
+        this.pinCells = new PinCell[cols * rows];
+    }
+
+    /**
+     * Side of a cell along an axis where the board measures boardSize and a note noteSize:
+     * never smaller than a note, and large enough to keep the cells per axis bounded.
+     */
+    static int cellSize(int boardSize, int noteSize) {
+        return Math.max(Math.max(1, noteSize), ceilDiv(boardSize, MAX_CELLS_PER_AXIS));
+    }
+
+    static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    private int cellIndex(int cx, int cy) {
+        return cy * cols + cx;
+    }
+
+    private int colOf(int x) {
+        return Math.floorDiv(x - originX, cellWidth);
+    }
+
+    private boolean inBounds(int x, int y) {
+        return x >= originX && y >= 0 && x - originX < width && y < height;
+    }
+
+    static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    static int unpackX(long key) {
+        return (int) (key >> 32);
+    }
+
+    static int unpackY(long key) {
+        return (int) key;
+    }
+
+    // ---- notes ----
+
+    void addNote(Note note) {
+        int idx = cellIndex(colOf(note.getX()), note.getY() / cellHeight);
+        Note head = noteCells[idx];
+        note.prevInCell = null;
+        note.nextInCell = head;
+        if (head != null) {
+            head.prevInCell = note;
+        }
+        noteCells[idx] = note;
+    }
+
+    void removeNote(Note note) {
+        Note prev = note.prevInCell;
+        Note next = note.nextInCell;
+        if (prev != null) {
+            prev.nextInCell = next;
+        } else {
+            int idx = cellIndex(colOf(note.getX()), note.getY() / cellHeight);
+            if (noteCells[idx] != note) {
+                // Not in this grid
+                return;
+            }
+            noteCells[idx] = next;
+        }
+        if (next != null) {
+            next.prevInCell = prev;
+        }
+        note.prevInCell = null;
+        note.nextInCell = null;
+    }
+
+    /**
+     * Collects every note containing (px, py), in insertion order.
+     */
+    List<Note> notesContaining(int px, int py) {
+        List<Note> out = new ArrayList<>();
+        collectNotesContaining(px, py, out);
+        out.sort(INSERTION_ORDER);
+        return out;
+    }
+
+    /**
+     * Adds every note containing (px, py) to out, in no particular order.
+     * Only the cell holding the point and its left/upper neighbours can anchor such a note.
+     */
+    void collectNotesContaining(int px, int py, List<Note> out) {
+        if (!inBounds(px, py)) {
+            return;
+        }
+        int cx = colOf(px);
+        int cy = py / cellHeight;
+        for (int y = Math.max(0, cy - 1); y <= cy; y++) {
+            for (int x = Math.max(0, cx - 1); x <= cx; x++) {
+                for (Note note = noteCells[cellIndex(x, y)]; note != null; note = note.nextInCell) {
+                    if (note.contains(px, py)) {
+                        out.add(note);
+                    }
+                }
+            }
+        }
+    }
+
+    // ---- pins ----
+
+    void addPin(int x, int y) {
+        int idx = cellIndex(colOf(x), y / cellHeight);
+        PinCell cell = pinCells[idx];
+        if (cell == null) {
+            cell = new PinCell();
+            pinCells[idx] = cell;
+        }
+        cell.add(pack(x, y));
+    }
+
+    void removePin(int x, int y) {
+        int idx = cellIndex(colOf(x), y / cellHeight);
+        PinCell cell = pinCells[idx];
+        if (cell == null) {
+            return;
+        }
+        cell.remove(pack(x, y));
+        if (cell.size == 0) {
+            pinCells[idx] = null;
+        }
+    }
+
+    /**
+     * Counts the pins lying inside the given note.
+     */
+    int countPinsIn(Note note) {
+        int count = 0;
+        int x0 = Math.max(0, colOf(note.getX()));
+        int y0 = note.getY() / cellHeight;
+        int x1 = Math.min(cols - 1, colOf(note.getX() + note.getWidth() - 1));
+        int y1 = Math.min(rows - 1, (note.getY() + note.getHeight() - 1) / cellHeight);
+
+        for (int cy = y0; cy <= y1; cy++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                PinCell cell = pinCells[cellIndex(cx, cy)];
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0; i < cell.size; i++) {
+                    long p = cell.pins[i];
+                    if (note.contains(unpackX(p), unpackY(p))) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    void clear() {
+        Arrays.fill(noteCells, null);
+        Arrays.fill(pinCells, null);
+    }
+
+    /**
+     * Small growable bucket of packed pin coordinates.
+     */
+    private static final class PinCell {
+        long[] pins = new long[4];
+        int size;
+
+        void add(long pin) {
+            if (size == pins.length) {
+                pins = Arrays.copyOf(pins, size * 2);
+            }
+            pins[size++] = pin;
+        }
+
+        void remove(long pin) {
+            for (int i = 0; i < size; i++) {
+                if (pins[i] == pin) {
+                    pins[i] = pins[--size];
+                    return;
+                }
+            }
+        }
+    }
+}
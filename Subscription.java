@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One client's SUBSCRIBE: the GET criteria it filters notes by, and a bounded queue
+ * of rendered event lines waiting to be sent.
+ * Board writers only ever enqueue here, so a client that reads slowly fills its own
+ * queue instead of holding up the board. Once the queue is full, further events are
+ * either counted and dropped or the subscriber is marked for disconnection.
+ */
+final class Subscription {
+    enum OverflowPolicy { DROP, DISCONNECT }
+
+    // Criteria, as for GET; colorId -1 means any color
+    final int colorId;
+    private final boolean byPoint;
+    private final int containsX;
+    private final int containsY;
+    private final String lowerRefersTo;
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Runnable wakeup;
+
+    private final Queue<String> events = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+
+    /**
+     * wakeup runs on the board writer's thread whenever the queue stops being empty
+     * (or overflows), so it must only signal the connection, never write to it.
+     */
+    Subscription(int colorId, boolean byPoint, int containsX, int containsY, String refersTo,
+                 int capacity, OverflowPolicy policy, Runnable wakeup) {
+        this.colorId = colorId;
+        this.byPoint = byPoint;
+        this.containsX = containsX;
+        this.containsY = containsY;
+        this.lowerRefersTo = refersTo != null ? refersTo.toLowerCase() : null;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.wakeup = wakeup;
+    }
+
+    /**
+     * True if the note passes the criteria other than color, which the hub has
+     * already checked by bucketing subscribers per color.
+     */
+    boolean matches(Note note) {
+        if (byPoint && !note.contains(containsX, containsY)) {
+            return false;
+        }
+        return lowerRefersTo == null || note.lowerMessage().contains(lowerRefersTo);
+    }
+
+    /**
+     * Queues one event line without blocking.
+     */
+    void offer(String event) {
+        if (size.get() >= capacity) {
+            if (policy == OverflowPolicy.DROP) {
+                dropped.incrementAndGet();
+            } else if (overflowed.compareAndSet(false, true)) {
+                wakeup.run();
+            }
+            return;
+        }
+        events.add(event);
+        if (size.getAndIncrement() == 0) {
+            wakeup.run();
+        }
+    }
+
+    boolean hasEvents() {
+        return size.get() > 0 || dropped.get() > 0;
+    }
+
+    /**
+     * True once the queue overflowed under the DISCONNECT policy.
+     */
+    boolean isOverflowed() {
+        return overflowed.get();
+    }
+
+    /**
+     * Appends every queued event to out, each followed by separator, preceded by
+     * EVENT DROPPED n if events were lost since the last drain. Returns the number
+     * of lines written.
+     */
+    int drainTo(Appendable out, String separator) throws IOException {
+        int lines = 0;
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            out.append(Protocol.RESP_EVENT).append(" DROPPED ").append(Long.toString(lost)).append(separator);
+            lines++;
+        }
+        String event;
+        while ((event = events.poll()) != null) {
+            size.decrementAndGet();
+            out.append(event).append(separator);
+            lines++;
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,147 @@
+import java.util.Arrays;
+
+/**
+ * Fans board mutations out to every SUBSCRIBE'd client as event lines:
+ *
+ *   EVENT NOTE <x> <y> <color> <pinned|unpinned> <message>   note posted
+ *   EVENT REMOVED <x> <y>                                    note removed by SHAKE
+ *   EVENT PIN <x> <y> / EVENT UNPIN <x> <y>                  pin placed / removed
+ *   EVENT CLEARED                                            board cleared
+ *
+ * Note events only reach subscribers whose criteria match the note; pin and clear
+ * events reach everyone, as they can change any note's pinned state.
+ * Subscribers are bucketed by the color they filter on, so a note event only visits
+ * the subscribers for its color plus those without a color filter, and each event
+ * line is rendered once however many subscribers receive it.
+ */
+class SubscriptionHub implements BoardListener {
+    private final Board board;
+    private final int capacity;
+    private final Subscription.OverflowPolicy policy;
+
+    // Index colorId holds subscribers filtering on that color, the last index the rest.
+    // Replaced wholesale under this lock, read without it by board writers.
+    private volatile Subscription[][] buckets;
+    private volatile int subscribers;
+
+    SubscriptionHub(Board board, int capacity, Subscription.OverflowPolicy policy) {
+        this.board = board;
+        this.capacity = capacity;
+        this.policy = policy;
+        Subscription[][] empty = new Subscription[board.colorCount() + 1][];
+        Arrays.fill(empty, new Subscription[0]);
+        this.buckets = empty;
+        board.addListener(this);
+    }
+
+    /**
+     * Registers a subscriber, or returns null if color is not one of the board's.
+     */
+    Subscription subscribe(String color, boolean byPoint, int containsX, int containsY, String refersTo,
+                           Runnable wakeup) {
+        int colorId = color != null ? board.colorIdOf(color) : -1;
+        if (color != null && colorId < 0) {
+            return null;
+        }
+        Subscription subscription = new Subscription(colorId, byPoint, containsX, containsY, refersTo,
+                capacity, policy, wakeup);
+        synchronized (this) {
+            Subscription[][] next = buckets.clone();
+            int bucket = bucketOf(subscription);
+            Subscription[] old = next[bucket];
+            next[bucket] = Arrays.copyOf(old, old.length + 1);
+            next[bucket][old.length] = subscription;
+            buckets = next;
+            subscribers++;
+        }
+        return subscription;
+    }
+
+    synchronized void unsubscribe(Subscription subscription) {
+        int bucket = bucketOf(subscription);
+        Subscription[] old = buckets[bucket];
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == subscription) {
+                Subscription[] shrunk = new Subscription[old.length - 1];
+                System.arraycopy(old, 0, shrunk, 0, i);
+                System.arraycopy(old, i + 1, shrunk, i, old.length - i - 1);
+                Subscription[][] next = buckets.clone();
+                next[bucket] = shrunk;
+                buckets = next;
+                subscribers--;
+                return;
+            }
+        }
+    }
+
+    private int bucketOf(Subscription subscription) {
+        return subscription.colorId >= 0 ? subscription.colorId : buckets.length - 1;
+    }
+
+    // ---- BoardListener ----
+
+    @Override
+    public void notePosted(Note note) {
+        offerNote(note, false);
+    }
+
+    @Override
+    public void noteRemoved(Note note) {
+        offerNote(note, true);
+    }
+
+    @Override
+    public void pinPlaced(int x, int y) {
+        if (subscribers > 0) {
+            broadcast(Protocol.RESP_EVENT + " PIN " + x + " " + y);
+        }
+    }
+
+    @Override
+    public void pinRemoved(int x, int y) {
+        if (subscribers > 0) {
+            broadcast(Protocol.RESP_EVENT + " UNPIN " + x + " " + y);
+        }
+    }
+
+    @Override
+    public void boardCleared() {
+        broadcast(Protocol.RESP_EVENT + " CLEARED");
+    }
+
+    private void offerNote(Note note, boolean removed) {
+        if (subscribers == 0) {
+            return;
+        }
+        Subscription[][] current = buckets;
+        String event = offerNote(current[note.colorId()], note, removed, null);
+        offerNote(current[current.length - 1], note, removed, event);
+    }
+
+    // Offers the note's event to the matching subscribers in bucket, rendering it on
+    // first use; returns the rendered event, or the one passed in
+    private static String offerNote(Subscription[] bucket, Note note, boolean removed, String event) {
+        for (Subscription subscription : bucket) {
+            if (!subscription.matches(note)) {
+                continue;
+            }
+            if (event == null) {
+                event = removed
+                        ? Protocol.RESP_EVENT + " REMOVED " + note.getX() + " " + note.getY()
+                        : Protocol.RESP_EVENT + " NOTE " + note.getX() + " " + note.getY() + " "
+                                + note.getColor() + " " + (note.pinCount > 0 ? "pinned" : "unpinned") + " "
+                                + note.lineMessage();
+            }
+            subscription.offer(event);
+        }
+        return event;
+    }
+
+    private void broadcast(String event) {
+        for (Subscription[] bucket : buckets) {
+            for (Subscription subscription : bucket) {
+                subscription.offer(event);
+            }
+        }
+    }
+}
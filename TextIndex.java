@@ -0,0 +1,59 @@
+/**
+ * Trigram index over lower-cased note messages for refersTo substring queries.
+ * Every note is listed, in insertion order, under each distinct three-character
+ * sequence of its message. Any message containing the query must contain all of the
+ * query's trigrams, so the shortest of those posting lists is a complete candidate set
+ * that callers narrow down with the exact contains check.
+ * Removed notes are skipped when iterating and purged on prune().
+ * Not thread-safe; Board guards it.
+ */
+class TextIndex {
+    static final int GRAM = 3;
+
+    private final LongHashMap<NoteList> grams = new LongHashMap<>();
+
+    private static long gram(String s, int i) {
+        return (long) s.charAt(i) << 32 | (long) s.charAt(i + 1) << 16 | s.charAt(i + 2);
+    }
+
+    void add(Note note) {
+        String text = note.lowerMessage();
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            long key = gram(text, i);
+            NoteList postings = grams.get(key);
+            if (postings == null) {
+                postings = new NoteList();
+                grams.put(key, postings);
+            }
+            postings.add(note);
+        }
+    }
+
+    /**
+     * Candidate notes whose message may contain lowerQuery, in insertion order,
+     * or null if the query is too short to use the index.
+     */
+    NoteList candidates(String lowerQuery) {
+        if (lowerQuery.length() < GRAM) {
+            return null;
+        }
+        NoteList best = null;
+        for (int i = 0; i + GRAM <= lowerQuery.length(); i++) {
+            NoteList postings = grams.get(gram(lowerQuery, i));
+            if (postings == null) {
+                return new NoteList();
+            }
+            if (best == null || postings.size() < best.size()) {
+                best = postings;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Drops removed notes from every posting list.
+     */
+    void prune() {
+        grams.removeValues(postings -> postings.prune() == 0);
+    }
+}
@@ -0,0 +1,604 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary log of board mutations, split into numbered segment files.
+ *
+ * Board appends a record while it still holds the shard locks for the change, so the
+ * log order agrees with the order the changes were applied in, and waits for it to be
+ * durable only after releasing them. Records are gathered in memory and one fsync
+ * covers every record appended since the last one, so concurrent clients share the
+ * cost of a sync (group commit). Each record is framed as
+ * [int length][int crc32][byte type][payload]; a torn record at the end of a segment
+ * is detected and cut off on replay.
+ * A tap sees every record as it is appended, which is how replication ships the log
+ * to followers; a log made by inMemory() keeps nothing and only feeds its tap.
+ */
+class WriteAheadLog implements Closeable {
+    /**
+     * When a mutation counts as durable.
+     * FSYNC: the client's own thread writes and syncs before answering.
+     * GROUP: a log thread syncs batches; clients wait for the batch holding their change.
+     * ASYNC: clients never wait; the log thread syncs every ASYNC_INTERVAL_MS, so a
+     * crash can lose the last moments of changes.
+     */
+    enum Durability { FSYNC, GROUP, ASYNC }
+
+    /**
+     * Receives each record as it is appended, framed exactly as in a segment file.
+     * Called with the log's lock held, so records arrive in log order; must not block.
+     */
+    interface Tap {
+        void recorded(byte[] data, int offset, int length);
+    }
+
+    static final byte POST = 1;
+    static final byte PIN = 2;
+    static final byte UNPIN = 3;
+    static final byte SHAKE = 4;
+    static final byte CLEAR = 5;
+    // Several POST/PIN/UNPIN entries, each [type][payload], applied all or not at all
+    static final byte BATCH = 6;
+    // A POST of a note with a TTL: the POST payload, then its expiry time in epoch ms
+    static final byte POST_TTL = 7;
+    // A note removed because its TTL ran out: its sequence and position
+    static final byte EXPIRE = 8;
+
+    private static final int HEADER = 8;
+    // Longest record (type and payload) written or replayed. Replay takes a longer
+    // length for a torn tail, so Board refuses changes whose record would exceed it.
+    static final int MAX_RECORD = 1 << 26;
+    private static final long ASYNC_INTERVAL_MS = 100;
+
+    private final Path dir;
+    private final Durability durability;
+    private final CRC32 crc = new CRC32();
+
+    // Guarded by this
+    private byte[] pending = new byte[1 << 16];
+    private int pendingLength;
+    private long appended;
+    private long durable;
+    private IOException failure;
+    private boolean closed;
+    private Tap tap;
+    // Segment that records appended from now on belong to, and where in pending the
+    // previous one ends if startSegment has not been flushed yet (-1 otherwise)
+    private long currentSegment;
+    private int segmentEndsAt = -1;
+
+    // Guarded by flushLock; only one thread writes to the file at a time
+    private final Object flushLock = new Object();
+    private FileChannel channel;
+    private long segment;
+
+    private final Thread syncer;
+
+    WriteAheadLog(Path dir, long segment, Durability durability) throws IOException {
+        this.dir = dir;
+        this.durability = durability;
+        this.segment = segment;
+        this.currentSegment = segment;
+        this.channel = openSegment(segment);
+
+        if (durability == Durability.FSYNC) {
+            syncer = null;
+        } else {
+            syncer = new Thread(this::syncLoop, "wal-sync");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+    // No directory: records go to the tap and are then dropped
+    private WriteAheadLog() {
+        this.dir = null;
+        this.durability = Durability.ASYNC;
+        this.syncer = null;
+    }
+
+    /**
+     * A log that writes nothing to disk, so a board without persistence can still
+     * stream its changes to a tap. Every change counts as durable at once.
+     */
+    static WriteAheadLog inMemory() {
+        return new WriteAheadLog();
+    }
+
+    static Path segmentPath(Path dir, long segment) {
+        return dir.resolve(String.format("wal-%016d.log", segment));
+    }
+
+    /**
+     * Parses the segment number out of a segment file name, or -1 if it is not one.
+     */
+    static long segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith("wal-") || !name.endsWith(".log")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(4, name.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(segmentPath(dir, number),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Total bytes appended so far, across segments.
+     */
+    synchronized long position() {
+        return appended;
+    }
+
+    /**
+     * Sends every record appended from now on to tap as well.
+     */
+    synchronized void setTap(Tap tap) {
+        this.tap = tap;
+    }
+
+    // ---- appending ----
+
+    long logPost(Note note) {
+        byte[] color = note.getColor().getBytes(StandardCharsets.UTF_8);
+        byte[] message = note.getMessage().getBytes(StandardCharsets.UTF_8);
+        synchronized (this) {
+            int start = begin(postType(note), postSize(note, color, message));
+            putPost(note, color, message);
+            return end(start);
+        }
+    }
+
+    synchronized long logExpire(Note note) {
+        int start = begin(EXPIRE, 16);
+        putLong(note.sequence);
+        putInt(note.getX());
+        putInt(note.getY());
+        return end(start);
+    }
+
+    /**
+     * Logs the applied items of a batch as one record, so replay after a crash sees
+     * either the whole batch or none of it.
+     */
+    long logBatch(List<Board.BatchItem> items) {
+        byte[][] colors = new byte[items.size()][];
+        byte[][] messages = new byte[items.size()][];
+        int payload = 4;
+        for (int i = 0; i < colors.length; i++) {
+            Board.BatchItem item = items.get(i);
+            if (item.type == POST) {
+                colors[i] = item.note.getColor().getBytes(StandardCharsets.UTF_8);
+                messages[i] = item.note.getMessage().getBytes(StandardCharsets.UTF_8);
+                payload += 1 + postSize(item.note, colors[i], messages[i]);
+            } else {
+                payload += 1 + 8;
+            }
+        }
+        synchronized (this) {
+            int start = begin(BATCH, payload);
+            putInt(colors.length);
+            for (int i = 0; i < colors.length; i++) {
+                Board.BatchItem item = items.get(i);
+                pending[pendingLength++] = item.type == POST ? postType(item.note) : item.type;
+                if (item.type == POST) {
+                    putPost(item.note, colors[i], messages[i]);
+                } else {
+                    putInt(item.x);
+                    putInt(item.y);
+                }
+            }
+            return end(start);
+        }
+    }
+
+    /**
+     * Upper bound on the payload of a POST entry for this color and message, with
+     * or without a TTL; Board adds these up to keep records within MAX_RECORD.
+     */
+    static long postPayloadBound(String color, String message) {
+        return 8 + 4 + 4 + 4 + BinaryProtocol.utf8Length(color) + 4 + BinaryProtocol.utf8Length(message) + 8;
+    }
+
+    // Notes without a TTL keep the original POST record
+    private static byte postType(Note note) {
+        return note.expiry != null ? POST_TTL : POST;
+    }
+
+    private static int postSize(Note note, byte[] color, byte[] message) {
+        return 8 + 4 + 4 + 4 + color.length + 4 + message.length + (note.expiry != null ? 8 : 0);
+    }
+
+    private void putPost(Note note, byte[] color, byte[] message) {
+        putLong(note.sequence);
+        putInt(note.getX());
+        putInt(note.getY());
+        putBytes(color);
+        putBytes(message);
+        if (note.expiry != null) {
+            putLong(note.expiry.at);
+        }
+    }
+
+    synchronized long logPin(int x, int y) {
+        int start = begin(PIN, 8);
+        putInt(x);
+        putInt(y);
+        return end(start);
+    }
+
+    synchronized long logUnpin(int x, int y) {
+        int start = begin(UNPIN, 8);
+        putInt(x);
+        putInt(y);
+        return end(start);
+    }
+
+    synchronized long logShake() {
+        return end(begin(SHAKE, 0));
+    }
+
+    synchronized long logClear() {
+        return end(begin(CLEAR, 0));
+    }
+
+    private int begin(byte type, int payload) {
+        if (1 + (long) payload > MAX_RECORD) {
+            // Board checks sizes before applying a change; replay would stop here
+            throw new IllegalArgumentException("Record of " + payload + " bytes is too large for the log");
+        }
+        int needed = pendingLength + HEADER + 1 + payload;
+        if (needed > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(needed, pending.length * 2));
+        }
+        int start = pendingLength;
+        pendingLength += HEADER;
+        pending[pendingLength++] = type;
+        return start;
+    }
+
+    private long end(int start) {
+        int length = pendingLength - start - HEADER;
+        crc.reset();
+        crc.update(pending, start + HEADER, length);
+        writeInt(start, length);
+        writeInt(start + 4, (int) crc.getValue());
+        appended += pendingLength - start;
+        if (tap != null) {
+            tap.recorded(pending, start, pendingLength - start);
+        }
+        if (dir == null) {
+            pendingLength = start;
+        }
+        return appended;
+    }
+
+    private void putInt(int v) {
+        writeInt(pendingLength, v);
+        pendingLength += 4;
+    }
+
+    private void putLong(long v) {
+        putInt((int) (v >>> 32));
+        putInt((int) v);
+    }
+
+    private void putBytes(byte[] bytes) {
+        putInt(bytes.length);
+        System.arraycopy(bytes, 0, pending, pendingLength, bytes.length);
+        pendingLength += bytes.length;
+    }
+
+    private void writeInt(int at, int v) {
+        pending[at] = (byte) (v >>> 24);
+        pending[at + 1] = (byte) (v >>> 16);
+        pending[at + 2] = (byte) (v >>> 8);
+        pending[at + 3] = (byte) v;
+    }
+
+    // ---- durability ----
+
+    /**
+     * Blocks until everything up to position is on disk, as the durability mode asks.
+     * Returns false if the log has failed and the change may not survive a restart.
+     */
+    boolean awaitDurable(long position) {
+        switch (durability) {
+            case FSYNC:
+                try {
+                    flush();
+                } catch (IOException e) {
+                    fail(e);
+                }
+                break;
+            case GROUP:
+                synchronized (this) {
+                    notifyAll();
+                    while (durable < position && failure == null && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+                break;
+            case ASYNC:
+                break;
+        }
+        synchronized (this) {
+            return failure == null;
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    if (durability == Durability.ASYNC) {
+                        wait(ASYNC_INTERVAL_MS);
+                    } else {
+                        while (!closed && durable >= appended) {
+                            wait();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+            if (Log.isEnabled(Log.Level.ERROR)) {
+                Log.error("Write-ahead log failed, changes are no longer persisted: " + e.getMessage());
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Writes and syncs everything appended so far. Records appended while the sync
+     * runs are left for the next one.
+     */
+    void flush() throws IOException {
+        synchronized (flushLock) {
+            byte[] data;
+            long target;
+            int endsAt;
+            long next;
+            synchronized (this) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (pendingLength == 0 && segmentEndsAt < 0) {
+                    return;
+                }
+                data = Arrays.copyOf(pending, pendingLength);
+                pendingLength = 0;
+                target = appended;
+                endsAt = segmentEndsAt;
+                next = currentSegment;
+                segmentEndsAt = -1;
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (endsAt >= 0) {
+                // Finish the segment startSegment ended, then carry on in the new one
+                buffer.limit(endsAt);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                channel.close();
+                segment = next;
+                channel = openSegment(segment);
+                buffer.limit(data.length);
+            }
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+
+            synchronized (this) {
+                durable = target;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Ends the current segment after the records appended so far and returns the number
+     * of the next one, which every later record goes to. Only marks the boundary: the
+     * next flush writes and syncs the ended segment and opens the new one, so this does
+     * no I/O and can run while the board's locks are held to capture the matching state.
+     */
+    synchronized long startSegment() {
+        if (segmentEndsAt >= 0) {
+            throw new IllegalStateException("Previous segment has not been flushed yet");
+        }
+        segmentEndsAt = pendingLength;
+        return ++currentSegment;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            synchronized (flushLock) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    // ---- replay ----
+
+    /**
+     * Applies every complete record in the segment to the board, in order.
+     * A torn or corrupt tail, as left by a crash mid-write, is truncated away.
+     * Returns the number of records applied.
+     */
+    static long replay(Path file, Board board) throws IOException {
+        long records = 0;
+        long good = 0;
+        CRC32 crc = new CRC32();
+        byte[] payload = new byte[256];
+
+        try (InputStream raw = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 1 << 16))) {
+            while (true) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 1 || length > MAX_RECORD) {
+                        break;
+                    }
+                    if (length > payload.length) {
+                        payload = new byte[Math.max(length, payload.length * 2)];
+                    }
+                    in.readFully(payload, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(ByteBuffer.wrap(payload, 0, length), board);
+                records++;
+                good += HEADER + length;
+            }
+        }
+
+        if (good < Files.size(file)) {
+            if (Log.isWarnEnabled()) {
+                Log.warn("Truncating damaged tail of " + file.getFileName() + " at byte " + good);
+            }
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.truncate(good);
+                ch.force(true);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Applies a run of whole records, framed as in a segment file, to the board in
+     * order, e.g. as a follower receives them from its leader. Returns the number of
+     * records applied; throws if one is cut short or fails its checksum.
+     */
+    static int applyRecords(ByteBuffer records, Board board) throws IOException {
+        CRC32 crc = new CRC32();
+        int count = 0;
+        while (records.hasRemaining()) {
+            if (records.remaining() < HEADER) {
+                throw new IOException("Truncated log record");
+            }
+            int length = records.getInt();
+            int checksum = records.getInt();
+            if (length < 1 || length > records.remaining()) {
+                throw new IOException("Truncated log record");
+            }
+            int at = records.arrayOffset() + records.position();
+            crc.reset();
+            crc.update(records.array(), at, length);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Log record failed its checksum");
+            }
+            apply(ByteBuffer.wrap(records.array(), at, length), board);
+            records.position(records.position() + length);
+            count++;
+        }
+        return count;
+    }
+
+    private static void apply(ByteBuffer record, Board board) {
+        byte type = record.get();
+        switch (type) {
+            case POST:
+            case POST_TTL: {
+                long sequence = record.getLong();
+                int x = record.getInt();
+                int y = record.getInt();
+                String color = getString(record);
+                String message = getString(record);
+                long expiresAt = type == POST_TTL ? record.getLong() : 0;
+                board.restoreNote(sequence, x, y, color, message, expiresAt);
+                break;
+            }
+            case EXPIRE:
+                board.restoreExpiry(record.getLong(), record.getInt(), record.getInt());
+                break;
+            case PIN:
+                board.placePin(record.getInt(), record.getInt());
+                break;
+            case UNPIN:
+                board.removePin(record.getInt(), record.getInt());
+                break;
+            case SHAKE:
+                board.shake();
+                break;
+            case CLEAR:
+                board.clear();
+                break;
+            case BATCH:
+                for (int count = record.getInt(); count > 0; count--) {
+                    apply(record, board);
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown log record type " + type);
+        }
+    }
+
+    private static String getString(ByteBuffer record) {
+        int length = record.getInt();
+        String s = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return s;
+    }
+}
@@ -0,0 +1,319 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Micro-benchmarks for Board and the command parser, run the way JMH runs them:
+ * for every combination of board size, note count and pin density, each benchmark
+ * gets warm-up iterations and then timed iterations on a freshly built board, and
+ * the mean score is reported with its 99.9% error margin. Operations that change
+ * the board for good (posting, shaking) are timed over a fixed number of calls per
+ * iteration instead of for a fixed time, so every iteration sees the same board.
+ *
+ * Build and run from the repository root:
+ *   javac -d out *.java bench/*.java
+ *   java -cp out BoardBench [--board=1000,10000] [--notes=1000,100000] [--pins=0.01,0.1]
+ *                           [--warmup=3] [--iterations=5] [--time=1000] [--only=query]
+ *                           [--storage=objects|columns]
+ *
+ * --board is the side of a square board, --notes the notes on it before each
+ * iteration, --pins the number of pins per note, --time the length of one
+ * iteration in ms, --only runs just the benchmarks whose name contains it and
+ * --storage picks how the board keeps its notes (Board.NoteStorage).
+ */
+public class BoardBench {
+    private static final int NOTE_SIZE = 10;
+    private static final String[] COLORS = { "red", "blue", "green", "yellow" };
+    private static final String[] WORDS = { "meeting", "lunch", "exam", "party", "lost", "found", "sale", "help" };
+
+    // Results go here so the JIT cannot drop the benchmarked calls
+    static volatile long sink;
+
+    static Board.NoteStorage storage = Board.NoteStorage.OBJECTS;
+
+    /**
+     * One benchmark invocation; i counts invocations within the iteration.
+     */
+    interface Op {
+        long run(int i);
+    }
+
+    interface OpFactory {
+        Op create(Fixture f);
+    }
+
+    private static final class Benchmark {
+        final String name;
+        final OpFactory factory;
+        // Calls timed once per iteration, or 0 to call repeatedly for the iteration time
+        final int shots;
+
+        Benchmark(String name, int shots, OpFactory factory) {
+            this.name = name;
+            this.shots = shots;
+            this.factory = factory;
+        }
+    }
+
+    /**
+     * A board filled with notes at random distinct positions and a share of pins,
+     * plus random inputs drawn up front so drawing them is not measured.
+     */
+    static final class Fixture {
+        static final int INPUTS = 1 << 16;
+
+        final Board board;
+        final List<Note> notes;
+        // Distinct positions where no note is anchored yet
+        final int[] xs = new int[INPUTS];
+        final int[] ys = new int[INPUTS];
+        final String[] colors = new String[INPUTS];
+        final String[] words = new String[INPUTS];
+        // Points that are not pins, so PIN then UNPIN leaves the board as it was
+        final int[] freeXs = new int[INPUTS];
+        final int[] freeYs = new int[INPUTS];
+
+        Fixture(int size, int noteCount, double pinDensity, long seed) {
+            Set<String> colorSet = new LinkedHashSet<>(List.of(COLORS));
+            board = new Board(size, size, NOTE_SIZE, NOTE_SIZE, colorSet, 1, storage);
+            Random random = new Random(seed);
+            int span = size - NOTE_SIZE + 1;
+
+            LongHashSet used = new LongHashSet();
+            while (used.size() < noteCount) {
+                int x = random.nextInt(span);
+                int y = random.nextInt(span);
+                if (used.add(SpatialGrid.pack(x, y))) {
+                    board.postNote(x, y, COLORS[random.nextInt(COLORS.length)],
+                            "note " + used.size() + " " + WORDS[random.nextInt(WORDS.length)]);
+                }
+            }
+            LongHashSet pins = new LongHashSet();
+            for (int i = 0; i < (int) (noteCount * pinDensity); i++) {
+                int x = random.nextInt(size);
+                int y = random.nextInt(size);
+                if (pins.add(SpatialGrid.pack(x, y))) {
+                    board.placePin(x, y);
+                }
+            }
+            notes = board.queryNotes(null, null, null, null);
+
+            for (int i = 0; i < INPUTS; i++) {
+                do {
+                    xs[i] = random.nextInt(span);
+                    ys[i] = random.nextInt(span);
+                } while (!used.add(SpatialGrid.pack(xs[i], ys[i])));
+                colors[i] = COLORS[random.nextInt(COLORS.length)];
+                words[i] = WORDS[random.nextInt(WORDS.length)];
+                int x;
+                int y;
+                do {
+                    x = random.nextInt(size);
+                    y = random.nextInt(size);
+                } while (pins.contains(SpatialGrid.pack(x, y)));
+                freeXs[i] = x;
+                freeYs[i] = y;
+            }
+        }
+
+        Note note(int i) {
+            return notes.get(Math.floorMod(i * 0x9E3779B9, notes.size()));
+        }
+    }
+
+    private static List<Benchmark> benchmarks() {
+        List<Benchmark> list = new ArrayList<>();
+        int mask = Fixture.INPUTS - 1;
+
+        list.add(new Benchmark("postNote", Fixture.INPUTS, f -> i -> {
+            int k = i & mask;
+            return f.board.postNote(f.xs[k], f.ys[k], f.colors[k], "benchmark note").length();
+        }));
+        list.add(new Benchmark("placePin+removePin", 0, f -> i -> {
+            int k = i & mask;
+            return f.board.placePin(f.freeXs[k], f.freeYs[k]).length()
+                    + f.board.removePin(f.freeXs[k], f.freeYs[k]).length();
+        }));
+        list.add(new Benchmark("isNotePinned", 0, f -> i -> f.board.isNotePinned(f.note(i)) ? 1 : 0));
+
+        // queryNotes with every combination of the color, contains and refersTo filters
+        for (int mode = 0; mode < 8; mode++) {
+            boolean byColor = (mode & 1) != 0;
+            boolean byPoint = (mode & 2) != 0;
+            boolean byText = (mode & 4) != 0;
+            String name = "queryNotes(" + (mode == 0 ? "all" : (byColor ? "color " : "")
+                    + (byPoint ? "contains " : "") + (byText ? "refersTo " : "")).trim() + ")";
+            list.add(new Benchmark(name, 0, f -> i -> {
+                int k = i & mask;
+                Note target = f.note(i);
+                return f.board.queryNotes(
+                        byColor ? f.colors[k] : null,
+                        byPoint ? target.getX() + NOTE_SIZE / 2 : null,
+                        byPoint ? target.getY() + NOTE_SIZE / 2 : null,
+                        byText ? f.words[k] : null).size();
+            }));
+        }
+
+        list.add(new Benchmark("shake", 1, f -> i -> f.board.shake().length()));
+
+        // The text protocol, parsing included, through CommandProcessor
+        list.add(new Benchmark("processCommand(POST)", Fixture.INPUTS, f -> {
+            CommandProcessor processor = new CommandProcessor(f.board, 1);
+            String[] commands = new String[Fixture.INPUTS];
+            for (int k = 0; k < commands.length; k++) {
+                commands[k] = "POST " + f.xs[k] + " " + f.ys[k] + " " + f.colors[k] + " benchmark note";
+            }
+            return i -> processor.processCommand(commands[i & mask]).length();
+        }));
+        list.add(new Benchmark("processCommand(GET)", 0, f -> {
+            CommandProcessor processor = new CommandProcessor(f.board, 1);
+            String[] commands = new String[Fixture.INPUTS];
+            for (int k = 0; k < commands.length; k++) {
+                Note target = f.note(k);
+                commands[k] = "GET color=" + f.colors[k] + " contains=" + (target.getX() + 1) + " "
+                        + (target.getY() + 1) + " refersTo=" + f.words[k];
+            }
+            return i -> processor.processCommand(commands[i & mask]).length();
+        }));
+        list.add(new Benchmark("processCommand(PIN+UNPIN)", 0, f -> {
+            CommandProcessor processor = new CommandProcessor(f.board, 1);
+            String[] pins = new String[Fixture.INPUTS];
+            String[] unpins = new String[Fixture.INPUTS];
+            for (int k = 0; k < pins.length; k++) {
+                pins[k] = "PIN " + f.freeXs[k] + " " + f.freeYs[k];
+                unpins[k] = "UNPIN " + f.freeXs[k] + " " + f.freeYs[k];
+            }
+            return i -> processor.processCommand(pins[i & mask]).length()
+                    + processor.processCommand(unpins[i & mask]).length();
+        }));
+        return list;
+    }
+
+    public static void main(String[] args) {
+        int[] boards = { 1000, 10000 };
+        int[] noteCounts = { 1000, 100000 };
+        double[] pinDensities = { 0.01, 0.1 };
+        int warmup = 3;
+        int iterations = 5;
+        long timeMs = 1000;
+        String only = null;
+
+        for (String arg : args) {
+            if (arg.startsWith("--board=")) {
+                boards = ints(arg.substring(8));
+            } else if (arg.startsWith("--notes=")) {
+                noteCounts = ints(arg.substring(8));
+            } else if (arg.startsWith("--pins=")) {
+                String[] parts = arg.substring(7).split(",");
+                pinDensities = new double[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    pinDensities[i] = Double.parseDouble(parts[i]);
+                }
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(arg.substring(9));
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Integer.parseInt(arg.substring(13));
+            } else if (arg.startsWith("--time=")) {
+                timeMs = Long.parseLong(arg.substring(7));
+            } else if (arg.startsWith("--only=")) {
+                only = arg.substring(7);
+            } else if (arg.startsWith("--storage=")) {
+                storage = Board.NoteStorage.valueOf(arg.substring(10).toUpperCase());
+            } else {
+                System.err.println("Unknown option " + arg);
+                System.exit(1);
+            }
+        }
+
+        Log.setLevel(Log.Level.OFF);
+        System.out.printf("%-36s %7s %8s %5s %14s %12s  %s%n",
+                "Benchmark", "board", "notes", "pins", "Score", "Error", "Units");
+        for (Benchmark benchmark : benchmarks()) {
+            if (only != null && !benchmark.name.contains(only)) {
+                continue;
+            }
+            for (int size : boards) {
+                for (int notes : noteCounts) {
+                    long positions = (long) (size - NOTE_SIZE + 1) * (size - NOTE_SIZE + 1);
+                    if (notes > positions / 2) {
+                        // Too crowded to place the notes at random
+                        continue;
+                    }
+                    for (double pins : pinDensities) {
+                        run(benchmark, size, notes, pins, warmup, iterations, timeMs);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void run(Benchmark benchmark, int size, int notes, double pins,
+                            int warmup, int iterations, long timeMs) {
+        double[] scores = new double[iterations];
+        for (int it = -warmup; it < iterations; it++) {
+            Fixture fixture = new Fixture(size, notes, pins, 42 + it);
+            Op op = benchmark.factory.create(fixture);
+            double score;
+            if (benchmark.shots == 1) {
+                long start = System.nanoTime();
+                sink += op.run(0);
+                score = (System.nanoTime() - start) / 1e6;
+            } else if (benchmark.shots > 1) {
+                long start = System.nanoTime();
+                long total = 0;
+                for (int i = 0; i < benchmark.shots; i++) {
+                    total += op.run(i);
+                }
+                score = benchmark.shots / ((System.nanoTime() - start) / 1e9);
+                sink += total;
+            } else {
+                score = measure(op, timeMs);
+            }
+            if (it >= 0) {
+                scores[it] = score;
+            }
+        }
+
+        double mean = 0;
+        for (double s : scores) {
+            mean += s;
+        }
+        mean /= scores.length;
+        double variance = 0;
+        for (double s : scores) {
+            variance += (s - mean) * (s - mean);
+        }
+        // 99.9% margin as JMH prints it, using the normal quantile
+        double error = scores.length > 1 ? 3.29 * Math.sqrt(variance / (scores.length - 1) / scores.length) : 0;
+        System.out.printf("%-36s %7d %8d %5s %14.1f +- %10.1f  %s%n", benchmark.name, size, notes,
+                pins, mean, error, benchmark.shots == 1 ? "ms/op" : "ops/s");
+    }
+
+    // Runs op for timeMs and returns invocations per second
+    private static double measure(Op op, long timeMs) {
+        long deadline = System.nanoTime() + timeMs * 1_000_000;
+        long start = System.nanoTime();
+        long total = 0;
+        int i = 0;
+        long now;
+        do {
+            for (int batch = 0; batch < 64; batch++) {
+                total += op.run(i++);
+            }
+            now = System.nanoTime();
+        } while (now < deadline);
+        sink += total;
+        return i / ((now - start) / 1e9);
+    }
+
+    private static int[] ints(String list) {
+        String[] parts = list.split(",");
+        int[] out = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            out[i] = Integer.parseInt(parts[i]);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,276 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * End-to-end load generator: many concurrent clients on their own sockets send a
+ * weighted mix of commands to a running server and wait for each answer, then the
+ * throughput and p50/p99/p999 latency of every command type are reported.
+ *
+ * Start a server, then from the repository root:
+ *   javac -d out *.java bench/*.java
+ *   java -cp out BBoard 5000 1000 1000 10 10 red blue green yellow --mode=nio
+ *   java -cp out LoadGenerator [--host=localhost] [--port=5000] [--clients=64]
+ *                              [--warmup=5] [--duration=20] [--seed=1]
+ *                              [--mix=POST:40,GET:30,PIN:10,UNPIN:10,GET_PINS:10]
+ *
+ * --warmup and --duration are in seconds; nothing sent during the warm-up is counted.
+ * --mix weights the command types POST, GET (a random one of GET's filters),
+ * GET_ALL (unfiltered), GET_PINS, PIN, UNPIN, SHAKE and CLEAR.
+ */
+public class LoadGenerator {
+    private static final String[] WORDS = { "meeting", "lunch", "exam", "party", "lost", "found", "sale", "help" };
+
+    private final String host;
+    private final int port;
+    private final String[] kinds;
+    private final int[] cumulativeWeights;
+
+    private volatile boolean measuring;
+    private volatile boolean stopping;
+
+    LoadGenerator(String host, int port, Map<String, Integer> mix) {
+        this.host = host;
+        this.port = port;
+        this.kinds = mix.keySet().toArray(new String[0]);
+        this.cumulativeWeights = new int[kinds.length];
+        int total = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            total += mix.get(kinds[i]);
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    /**
+     * One client connection with its own latency histograms, one per command type.
+     */
+    private final class Client implements Runnable {
+        final Random random;
+        final LatencyHistogram[] latencies = new LatencyHistogram[kinds.length];
+        long errors;
+        IOException failure;
+
+        int boardWidth;
+        int boardHeight;
+        int noteWidth;
+        int noteHeight;
+        String[] colors;
+
+        Client(long seed) {
+            random = new Random(seed);
+            for (int i = 0; i < kinds.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = new Socket(host, port);
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                 PrintWriter out = new PrintWriter(new BufferedWriter(
+                         new OutputStreamWriter(socket.getOutputStream())))) {
+                socket.setTcpNoDelay(true);
+                readInit(in.readLine());
+
+                while (!stopping) {
+                    int kind = pickKind();
+                    String command = command(kinds[kind]);
+                    boolean multiLine = command.startsWith("GET");
+
+                    long start = System.nanoTime();
+                    out.print(command);
+                    out.print('\n');
+                    out.flush();
+                    String line = in.readLine();
+                    if (line == null) {
+                        throw new IOException("Server closed the connection");
+                    }
+                    boolean error = line.startsWith(Protocol.RESP_ERROR);
+                    while (multiLine && !error && !line.equals(Protocol.RESP_END)) {
+                        line = in.readLine();
+                        if (line == null) {
+                            throw new IOException("Server closed the connection");
+                        }
+                    }
+                    long elapsed = System.nanoTime() - start;
+
+                    if (measuring) {
+                        latencies[kind].record(elapsed);
+                        // Overlaps and missing pins are expected with random input
+                        if (error && !line.contains(Protocol.ERR_OVERLAP_ERROR)
+                                && !line.contains(Protocol.ERR_NO_PIN) && !line.contains(Protocol.ERR_PIN_EXISTS)) {
+                            errors++;
+                        }
+                    }
+                }
+                out.print(Protocol.CMD_DISCONNECT + "\n");
+                out.flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        private void readInit(String init) throws IOException {
+            if (init == null || !init.startsWith(Protocol.RESP_INIT)) {
+                throw new IOException("Expected INIT, got " + init);
+            }
+            String[] parts = init.split(" ");
+            boardWidth = Integer.parseInt(parts[1]);
+            boardHeight = Integer.parseInt(parts[2]);
+            noteWidth = Integer.parseInt(parts[3]);
+            noteHeight = Integer.parseInt(parts[4]);
+            colors = new String[parts.length - 5];
+            System.arraycopy(parts, 5, colors, 0, colors.length);
+        }
+
+        private int pickKind() {
+            int r = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            for (int i = 0; i < cumulativeWeights.length; i++) {
+                if (r < cumulativeWeights[i]) {
+                    return i;
+                }
+            }
+            return cumulativeWeights.length - 1;
+        }
+
+        private String command(String kind) {
+            int x = random.nextInt(boardWidth - noteWidth + 1);
+            int y = random.nextInt(boardHeight - noteHeight + 1);
+            switch (kind) {
+                case "POST":
+                    return "POST " + x + " " + y + " " + colors[random.nextInt(colors.length)] + " "
+                            + WORDS[random.nextInt(WORDS.length)] + " " + random.nextInt(1000);
+                case "GET":
+                    switch (random.nextInt(3)) {
+                        case 0:
+                            return "GET color=" + colors[random.nextInt(colors.length)] + " LIMIT 100";
+                        case 1:
+                            return "GET contains=" + x + " " + y;
+                        default:
+                            return "GET refersTo=" + WORDS[random.nextInt(WORDS.length)] + " LIMIT 100";
+                    }
+                case "GET_ALL":
+                    return "GET";
+                case "GET_PINS":
+                    return "GET PINS LIMIT 100";
+                case "PIN":
+                    return "PIN " + random.nextInt(boardWidth) + " " + random.nextInt(boardHeight);
+                case "UNPIN":
+                    return "UNPIN " + random.nextInt(boardWidth) + " " + random.nextInt(boardHeight);
+                default:
+                    return kind;
+            }
+        }
+    }
+
+    void run(int clientCount, int warmupSeconds, int durationSeconds, long seed) throws InterruptedException {
+        List<Client> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            Client client = new Client(seed + i);
+            clients.add(client);
+            Thread thread = new Thread(client, "load-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        Thread.sleep(warmupSeconds * 1000L);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(durationSeconds * 1000L);
+        measuring = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        stopping = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long errors = 0;
+        int failed = 0;
+        LatencyHistogram[] merged = new LatencyHistogram[kinds.length];
+        for (int i = 0; i < kinds.length; i++) {
+            merged[i] = new LatencyHistogram();
+        }
+        for (Client client : clients) {
+            for (int i = 0; i < kinds.length; i++) {
+                merged[i].add(client.latencies[i]);
+            }
+            errors += client.errors;
+            if (client.failure != null) {
+                failed++;
+                if (failed == 1) {
+                    System.err.println("Client failed: " + client.failure.getMessage());
+                }
+            }
+        }
+
+        System.out.printf("%d clients, %.1f s measured, %d unexpected errors, %d failed clients%n%n",
+                clientCount, seconds, errors, failed);
+        System.out.printf("%-10s %12s %12s %10s %10s %10s %10s%n",
+                "Command", "count", "ops/s", "p50 us", "p99 us", "p999 us", "max us");
+        long total = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            LatencyHistogram h = merged[i];
+            long count = h.count();
+            total += count;
+            System.out.printf("%-10s %12d %12.0f %10.1f %10.1f %10.1f %10.1f%n", kinds[i], count, count / seconds,
+                    h.percentile(50) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3, h.max() / 1e3);
+        }
+        System.out.printf("%-10s %12d %12.0f%n", "total", total, total / seconds);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = "localhost";
+        int port = 5000;
+        int clients = 64;
+        int warmup = 5;
+        int duration = 20;
+        long seed = 1;
+        String mix = "POST:40,GET:30,PIN:10,UNPIN:10,GET_PINS:10";
+
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                host = arg.substring(7);
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring(7));
+            } else if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(arg.substring(9));
+            } else if (arg.startsWith("--duration=")) {
+                duration = Integer.parseInt(arg.substring(11));
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(arg.substring(7));
+            } else if (arg.startsWith("--mix=")) {
+                mix = arg.substring(6);
+            } else {
+                System.err.println("Unknown option " + arg);
+                System.exit(1);
+            }
+        }
+
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String entry : mix.split(",")) {
+            String[] kv = entry.split(":");
+            int weight = Integer.parseInt(kv[1]);
+            if (weight > 0) {
+                weights.put(kv[0].toUpperCase(), weight);
+            }
+        }
+        if (weights.isEmpty()) {
+            System.err.println("--mix needs at least one command with a positive weight");
+            System.exit(1);
+        }
+
+        new LoadGenerator(host, port, weights).run(clients, warmup, duration, seed);
+    }
+}
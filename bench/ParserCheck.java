@@ -0,0 +1,425 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Differential check of the command parser: feeds random and edge-case input to
+ * LineTokenizer and CommandProcessor and to the split/Integer.parseInt parser they
+ * replaced, and reports every input on which the two disagree.
+ *
+ * Three levels are compared:
+ *   tokens    LineTokenizer.split against String.split("\\s+", limit) on trimmed lines
+ *   integers  LineTokenizer.parseInt against Integer.parseInt
+ *   commands  CommandProcessor.processCommand against LegacyParser, the original
+ *             handlers, each running the same command stream on its own board
+ *
+ * Inputs mix every \s whitespace character with look-alikes that are not \s, sign
+ * characters, overflowing and non-ASCII digits, empty tokens and odd letter case.
+ * Syntax added since (LIMIT/OFFSET, the TTL option, commands other than the original
+ * seven) is left out of the command stream, since the old parser treats it as
+ * plain text on purpose.
+ *
+ * Build and run from the repository root:
+ *   javac -d out *.java bench/*.java
+ *   java -cp out ParserCheck [--seeds=1,2,3] [--shards=1,3,8] [--commands=4000] [--lines=20000]
+ *
+ * Exits with status 1 if any difference was found.
+ */
+public class ParserCheck {
+    private static final String[] COLORS = { "red", "blue", "green" };
+    // All six \s characters, then characters trim() or Unicode call space that \s does not
+    private static final String[] SPACES = {
+            " ", " ", " ", "\t", "\n", "\u000B", "\f", "\r", "  ", "\t \f",
+            "\u001F", "\u00A0", "\u2003", ""
+    };
+    private static final String[] NUMBERS = {
+            "0", "7", "15", "42", "60", "-3", "+5", "007", "-0", "+", "-", "+-1", "--1",
+            "2147483647", "2147483648", "-2147483648", "-2147483649", "99999999999",
+            "\u0661\u0662", "\uFF11\uFF15", "\u0967", "1e3", "0x10", "1.5", "12a", "", "x"
+    };
+    private static final String[] COMMANDS = {
+            "POST", "post", "Post", "GET", "get", "PIN", "pin", "UNPIN", "Unpin",
+            "SHAKE", "CLEAR", "DISCONNECT", "FOO", "PO", "GETS", "po\u017Ft", "g\u0435t", "\u00DF"
+    };
+    private static final String[] WORDS = {
+            "meeting", "lunch", "exam", "red", "PINS", "pins", "contains", "refersTo", "color=red",
+            "TTL=", "TTL=abc", "ttl=x", "caf\u00E9", "\u00DF", "=", "contains=", "refersTo="
+    };
+
+    private final Random random;
+    private final List<String> failures = new ArrayList<>();
+    private int checked;
+
+    ParserCheck(long seed) {
+        this.random = new Random(seed);
+    }
+
+    // ---- tokens and integers ----
+
+    void checkTokens(int lines) {
+        LineTokenizer t = new LineTokenizer();
+        for (int i = 0; i < lines; i++) {
+            String line = randomLine().trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            for (int limit : new int[] { 0, 1, 2, 4, 5 }) {
+                String[] expected = line.split("\\s+", limit);
+                int n = t.split(line, 0, line.length(), limit);
+                String[] actual = new String[n];
+                for (int k = 0; k < n; k++) {
+                    actual[k] = t.token(k);
+                }
+                checked++;
+                if (!Arrays.equals(expected, actual)) {
+                    fail("split limit " + limit, line, Arrays.toString(expected), Arrays.toString(actual));
+                }
+            }
+        }
+    }
+
+    void checkIntegers(int count) {
+        for (int i = 0; i < count; i++) {
+            String s = randomNumber();
+            long expected;
+            try {
+                expected = Integer.parseInt(s);
+            } catch (NumberFormatException e) {
+                expected = LineTokenizer.INVALID;
+            }
+            // Parse from the middle of a longer text, as the tokenizer does
+            String text = "x " + s + " y";
+            long actual = LineTokenizer.parseInt(text, 2, 2 + s.length());
+            checked++;
+            if (expected != actual) {
+                fail("parseInt", s, String.valueOf(expected), String.valueOf(actual));
+            }
+        }
+    }
+
+    // ---- commands ----
+
+    void checkCommands(int shards, int commands) {
+        Set<String> colors = new LinkedHashSet<>(List.of(COLORS));
+        Board current = new Board(100, 100, 10, 10, colors, shards);
+        Board legacy = new Board(100, 100, 10, 10, colors, shards);
+        CommandProcessor processor = new CommandProcessor(current, 1);
+        LegacyParser parser = new LegacyParser(legacy);
+
+        for (int i = 0; i < commands; i++) {
+            // Lines come from readLine, so they never hold \n or \r; the old connection
+            // loop trimmed every line and skipped blank ones
+            String command = randomCommand().replace('\n', '\t').replace('\r', '\f').trim();
+            if (command.isEmpty()) {
+                continue;
+            }
+            String expected = parser.processCommand(command);
+            String actual = processor.processCommand(command);
+            checked++;
+            if (!expected.equals(actual)) {
+                fail(shards + " shard(s)", command, expected, actual);
+            }
+        }
+    }
+
+    private String randomCommand() {
+        int kind = random.nextInt(100);
+        StringBuilder b = new StringBuilder();
+        if (random.nextInt(10) == 0) {
+            b.append(pick(SPACES));
+        }
+        if (kind < 35) {
+            b.append(random.nextInt(8) == 0 ? pick(COMMANDS) : "POST");
+            int args = random.nextInt(10) == 0 ? random.nextInt(4) : 4 + random.nextInt(3);
+            for (int a = 0; a < args; a++) {
+                b.append(space());
+                if (a < 2) {
+                    b.append(coordinate());
+                } else if (a == 2) {
+                    b.append(random.nextInt(6) == 0 ? pick(WORDS) : casing(pick(COLORS)));
+                } else {
+                    b.append(pick(WORDS));
+                }
+            }
+        } else if (kind < 65) {
+            b.append(random.nextInt(8) == 0 ? pick(COMMANDS) : casing("GET"));
+            int args = random.nextInt(5);
+            for (int a = 0; a < args; a++) {
+                b.append(space()).append(criterion());
+            }
+        } else if (kind < 90) {
+            b.append(random.nextBoolean() ? "PIN" : "UNPIN");
+            int args = random.nextInt(10) == 0 ? random.nextInt(4) : 2;
+            for (int a = 0; a < args; a++) {
+                b.append(space()).append(coordinate());
+            }
+        } else if (kind < 97) {
+            b.append(pick(COMMANDS));
+            if (random.nextBoolean()) {
+                b.append(space()).append(pick(WORDS));
+            }
+        } else {
+            b.append(random.nextBoolean() ? "SHAKE" : "CLEAR");
+        }
+        if (random.nextInt(10) == 0) {
+            b.append(pick(SPACES));
+        }
+        return b.toString();
+    }
+
+    private String criterion() {
+        switch (random.nextInt(8)) {
+            case 0:
+                return "color=" + casing(pick(COLORS));
+            case 1:
+                return "contains" + space() + coordinate() + space() + coordinate();
+            case 2:
+                return "contains=" + coordinate() + space() + coordinate();
+            case 3:
+                return "refersTo" + space() + pick(WORDS);
+            case 4:
+                return "refersTo=" + pick(WORDS);
+            case 5:
+                return casing("PINS");
+            default:
+                return pick(WORDS);
+        }
+    }
+
+    private String coordinate() {
+        return random.nextInt(6) == 0 ? pick(NUMBERS) : String.valueOf(random.nextInt(110) - 5);
+    }
+
+    private String randomLine() {
+        StringBuilder b = new StringBuilder();
+        int tokens = random.nextInt(7);
+        for (int i = 0; i < tokens; i++) {
+            b.append(pick(SPACES));
+            b.append(random.nextBoolean() ? pick(WORDS) : pick(NUMBERS));
+        }
+        b.append(pick(SPACES));
+        return b.toString();
+    }
+
+    private String randomNumber() {
+        if (random.nextBoolean()) {
+            return pick(NUMBERS);
+        }
+        // Random digits and signs, often long enough to overflow
+        String chars = "0123456789+-\u0660\u0665\uFF10 a";
+        StringBuilder b = new StringBuilder();
+        int length = random.nextInt(12);
+        for (int i = 0; i < length; i++) {
+            b.append(i == 0 || random.nextInt(8) == 0
+                    ? chars.charAt(random.nextInt(chars.length()))
+                    : (char) ('0' + random.nextInt(10)));
+        }
+        return b.toString();
+    }
+
+    private String space() {
+        String s = pick(SPACES);
+        // Keep tokens apart: an empty or non-\s separator would merge them
+        return s.isEmpty() || !s.matches("\\s+") ? " " : s;
+    }
+
+    private String casing(String word) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return word.toUpperCase();
+            case 1:
+                return word.toLowerCase();
+            default:
+                return word;
+        }
+    }
+
+    private String pick(String[] options) {
+        return options[random.nextInt(options.length)];
+    }
+
+    private void fail(String where, String input, String expected, String actual) {
+        if (failures.size() < 20) {
+            failures.add(where + ": " + escape(input) + "\n    expected " + escape(expected)
+                    + "\n    actual   " + escape(actual));
+        } else if (failures.size() == 20) {
+            failures.add("... (further differences not shown)");
+        }
+    }
+
+    private static String escape(String s) {
+        StringBuilder b = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c < 0x20 || c >= 0x7F) {
+                b.append(String.format("\\u%04X", (int) c));
+            } else {
+                b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+
+    /**
+     * The command handling the tokenizer replaced, kept as it was: split with regular
+     * expressions, Integer.parseInt, and upper-casing the command word.
+     */
+    static final class LegacyParser {
+        private final Board board;
+
+        LegacyParser(Board board) {
+            this.board = board;
+        }
+
+        String processCommand(String command) {
+            try {
+                String[] parts = command.split("\\s+", 2);
+                String cmd = parts[0].toUpperCase();
+
+                switch (cmd) {
+                    case Protocol.CMD_POST:
+                        return handlePost(parts.length > 1 ? parts[1] : "");
+                    case Protocol.CMD_GET:
+                        return handleGet(parts.length > 1 ? parts[1] : "");
+                    case Protocol.CMD_PIN:
+                        return handlePin(parts.length > 1 ? parts[1] : "", true);
+                    case Protocol.CMD_UNPIN:
+                        return handlePin(parts.length > 1 ? parts[1] : "", false);
+                    case Protocol.CMD_SHAKE:
+                        return board.shake();
+                    case Protocol.CMD_CLEAR:
+                        return board.clear();
+                    case Protocol.CMD_DISCONNECT:
+                        return "OK Goodbye";
+                    default:
+                        return "ERROR UNKNOWN_COMMAND Unknown command: " + cmd;
+                }
+            } catch (Exception e) {
+                return "ERROR INVALID_FORMAT " + e.getMessage();
+            }
+        }
+
+        private String handlePost(String args) {
+            try {
+                String[] parts = args.split("\\s+", 4);
+                if (parts.length < 4) {
+                    return "ERROR INVALID_FORMAT Expected: POST <x> <y> <color> <message>";
+                }
+                int x = Integer.parseInt(parts[0]);
+                int y = Integer.parseInt(parts[1]);
+                return board.postNote(x, y, parts[2].toLowerCase(), parts[3]);
+            } catch (NumberFormatException e) {
+                return "ERROR INVALID_FORMAT Coordinates must be integers";
+            }
+        }
+
+        private String handleGet(String args) {
+            try {
+                if (args.toUpperCase().equals("PINS")) {
+                    StringBuilder response = new StringBuilder();
+                    for (String pin : board.getAllPins()) {
+                        response.append("PIN ").append(pin).append("\n");
+                    }
+                    return response.append("END").toString();
+                }
+
+                String color = null;
+                Integer containsX = null;
+                Integer containsY = null;
+                String refersTo = null;
+                if (!args.isEmpty()) {
+                    String[] criteria = args.split("\\s+");
+                    for (int i = 0; i < criteria.length; i++) {
+                        if (criteria[i].startsWith("color=")) {
+                            color = criteria[i].substring(6).toLowerCase();
+                        } else if (criteria[i].equals("contains") && i + 2 < criteria.length) {
+                            containsX = Integer.parseInt(criteria[i + 1]);
+                            containsY = Integer.parseInt(criteria[i + 2]);
+                            i += 2;
+                        } else if (criteria[i].startsWith("contains=") && i + 1 < criteria.length) {
+                            containsX = Integer.parseInt(criteria[i].substring(9));
+                            containsY = Integer.parseInt(criteria[i + 1]);
+                            i += 1;
+                        } else if (criteria[i].equals("refersTo") && i + 1 < criteria.length) {
+                            refersTo = criteria[i + 1];
+                            i += 1;
+                        } else if (criteria[i].startsWith("refersTo=")) {
+                            refersTo = criteria[i].substring(9);
+                        }
+                    }
+                }
+
+                StringBuilder response = new StringBuilder();
+                for (Note note : board.queryNotes(color, containsX, containsY, refersTo)) {
+                    response.append("NOTE ")
+                            .append(note.getX()).append(" ")
+                            .append(note.getY()).append(" ")
+                            .append(note.getColor()).append(" ")
+                            .append(board.isNotePinned(note) ? "pinned" : "unpinned").append(" ")
+                            .append(note.getMessage())
+                            .append("\n");
+                }
+                return response.append("END").toString();
+            } catch (NumberFormatException e) {
+                return "ERROR INVALID_FORMAT Coordinates must be integers";
+            }
+        }
+
+        private String handlePin(String args, boolean pin) {
+            try {
+                String[] parts = args.split("\\s+");
+                if (parts.length < 2) {
+                    return "ERROR INVALID_FORMAT Expected: " + (pin ? "PIN" : "UNPIN") + " <x> <y>";
+                }
+                int x = Integer.parseInt(parts[0]);
+                int y = Integer.parseInt(parts[1]);
+                return pin ? board.placePin(x, y) : board.removePin(x, y);
+            } catch (NumberFormatException e) {
+                return "ERROR INVALID_FORMAT Coordinates must be integers";
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        long[] seeds = { 1, 2, 3 };
+        int[] shardCounts = { 1, 3, 8 };
+        int commands = 4000;
+        int lines = 20000;
+
+        for (String arg : args) {
+            if (arg.startsWith("--seeds=")) {
+                seeds = Arrays.stream(arg.substring(8).split(",")).mapToLong(Long::parseLong).toArray();
+            } else if (arg.startsWith("--shards=")) {
+                shardCounts = Arrays.stream(arg.substring(9).split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (arg.startsWith("--commands=")) {
+                commands = Integer.parseInt(arg.substring(11));
+            } else if (arg.startsWith("--lines=")) {
+                lines = Integer.parseInt(arg.substring(8));
+            } else {
+                System.err.println("Unknown option " + arg);
+                System.exit(1);
+            }
+        }
+
+        int differences = 0;
+        for (long seed : seeds) {
+            ParserCheck check = new ParserCheck(seed);
+            check.checkTokens(lines);
+            check.checkIntegers(lines);
+            for (int shards : shardCounts) {
+                check.checkCommands(shards, commands);
+            }
+            System.out.printf("seed %d: %d comparisons, %d difference(s)%n", seed, check.checked,
+                    check.failures.size());
+            for (String failure : check.failures) {
+                System.out.println("  " + failure);
+            }
+            differences += check.failures.size();
+        }
+        if (differences > 0) {
+            System.exit(1);
+        }
+    }
+}
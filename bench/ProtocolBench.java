@@ -0,0 +1,312 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compares the text protocol with the binary one on the same workload: clients
+ * pipeline windows of requests (POST, GET contains=, PIN) on their own
+ * connections, first over the text port and then over the binary port with
+ * BBoardClient, and the throughput of each run is reported. The board is cleared
+ * before each run so both start from the same state.
+ *
+ * Start a server with both ports, then from the repository root:
+ *   javac -d out *.java bench/*.java
+ *   java -cp out BBoard 5000 1000 1000 10 10 red blue green yellow --binary-port=5001
+ *   java -cp out ProtocolBench [--host=localhost] [--port=5000] [--binary-port=5001]
+ *                              [--clients=8] [--depth=32] [--warmup=3] [--duration=10] [--seed=1]
+ *
+ * --depth is the number of requests a client sends before reading their answers;
+ * --warmup and --duration are in seconds per run.
+ */
+public class ProtocolBench {
+    private static final String[] WORDS = { "meeting", "lunch", "exam", "party", "lost", "found", "sale", "help" };
+
+    private final String host;
+    private final int port;
+    private final int binaryPort;
+    private final int depth;
+
+    private volatile boolean measuring;
+    private volatile boolean stopping;
+
+    ProtocolBench(String host, int port, int binaryPort, int depth) {
+        this.host = host;
+        this.port = port;
+        this.binaryPort = binaryPort;
+        this.depth = depth;
+    }
+
+    /**
+     * One connection's loop; counts the requests answered while measuring.
+     */
+    private abstract class Client implements Runnable {
+        final Random random;
+        long completed;
+        IOException failure;
+
+        int boardWidth;
+        int boardHeight;
+        int noteWidth;
+        int noteHeight;
+        List<String> colors;
+
+        Client(long seed) {
+            random = new Random(seed);
+        }
+
+        @Override
+        public void run() {
+            try {
+                connect();
+                while (!stopping) {
+                    int answered = window();
+                    if (measuring) {
+                        completed += answered;
+                    }
+                }
+                disconnect();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        abstract void connect() throws IOException;
+
+        // Sends depth requests, waits for all their answers and returns how many there were
+        abstract int window() throws IOException;
+
+        abstract void disconnect() throws IOException;
+
+        int x() {
+            return random.nextInt(boardWidth - noteWidth + 1);
+        }
+
+        int y() {
+            return random.nextInt(boardHeight - noteHeight + 1);
+        }
+
+        String color() {
+            return colors.get(random.nextInt(colors.size()));
+        }
+
+        String message() {
+            return WORDS[random.nextInt(WORDS.length)] + " " + random.nextInt(1000);
+        }
+    }
+
+    private final class TextClient extends Client {
+        private Socket socket;
+        private BufferedReader in;
+        private PrintWriter out;
+        private final boolean[] multiLine = new boolean[depth];
+
+        TextClient(long seed) {
+            super(seed);
+        }
+
+        @Override
+        void connect() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+            String init = in.readLine();
+            if (init == null || !init.startsWith(Protocol.RESP_INIT)) {
+                throw new IOException("Expected INIT, got " + init);
+            }
+            String[] parts = init.split(" ");
+            boardWidth = Integer.parseInt(parts[1]);
+            boardHeight = Integer.parseInt(parts[2]);
+            noteWidth = Integer.parseInt(parts[3]);
+            noteHeight = Integer.parseInt(parts[4]);
+            colors = new ArrayList<>();
+            for (int i = 5; i < parts.length; i++) {
+                colors.add(parts[i]);
+            }
+        }
+
+        @Override
+        int window() throws IOException {
+            for (int i = 0; i < depth; i++) {
+                int kind = random.nextInt(10);
+                multiLine[i] = kind >= 5 && kind < 9;
+                if (kind < 5) {
+                    out.print("POST " + x() + " " + y() + " " + color() + " " + message());
+                } else if (kind < 9) {
+                    out.print("GET contains=" + x() + " " + y());
+                } else {
+                    out.print("PIN " + x() + " " + y());
+                }
+                out.print('\n');
+            }
+            out.flush();
+            for (int i = 0; i < depth; i++) {
+                String line = readLine();
+                while (multiLine[i] && !line.startsWith(Protocol.RESP_ERROR) && !line.equals(Protocol.RESP_END)) {
+                    line = readLine();
+                }
+            }
+            return depth;
+        }
+
+        private String readLine() throws IOException {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException("Server closed the connection");
+            }
+            return line;
+        }
+
+        @Override
+        void disconnect() throws IOException {
+            out.print(Protocol.CMD_DISCONNECT + "\n");
+            out.flush();
+            socket.close();
+        }
+    }
+
+    private final class BinaryClient extends Client {
+        private BBoardClient client;
+        private final List<CompletableFuture<?>> pending = new ArrayList<>();
+
+        BinaryClient(long seed) {
+            super(seed);
+        }
+
+        @Override
+        void connect() throws IOException {
+            client = BBoardClient.connect(host, binaryPort);
+            boardWidth = client.getBoardWidth();
+            boardHeight = client.getBoardHeight();
+            noteWidth = client.getNoteWidth();
+            noteHeight = client.getNoteHeight();
+            colors = client.getColors();
+        }
+
+        @Override
+        int window() throws IOException {
+            pending.clear();
+            for (int i = 0; i < depth; i++) {
+                int kind = random.nextInt(10);
+                if (kind < 5) {
+                    pending.add(client.postAsync(x(), y(), color(), message()));
+                } else if (kind < 9) {
+                    pending.add(client.getNotesAsync(null, x(), y(), null, -1, 0));
+                } else {
+                    pending.add(client.pinAsync(x(), y()));
+                }
+            }
+            client.flush();
+            for (CompletableFuture<?> future : pending) {
+                try {
+                    future.join();
+                } catch (RuntimeException e) {
+                    throw new IOException("Request failed", e);
+                }
+            }
+            return depth;
+        }
+
+        @Override
+        void disconnect() throws IOException {
+            client.close();
+        }
+    }
+
+    /**
+     * Runs clientCount clients of one protocol and returns the answered requests per second.
+     */
+    double run(boolean binary, int clientCount, int warmupSeconds, int durationSeconds, long seed)
+            throws IOException, InterruptedException {
+        try (BBoardClient admin = BBoardClient.connect(host, binaryPort)) {
+            admin.clear();
+        }
+        measuring = false;
+        stopping = false;
+
+        List<Client> clients = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            Client client = binary ? new BinaryClient(seed + i) : new TextClient(seed + i);
+            clients.add(client);
+            Thread thread = new Thread(client, (binary ? "binary-" : "text-") + i);
+            threads.add(thread);
+            thread.start();
+        }
+
+        Thread.sleep(warmupSeconds * 1000L);
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(durationSeconds * 1000L);
+        measuring = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        stopping = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long total = 0;
+        for (Client client : clients) {
+            total += client.completed;
+            if (client.failure != null) {
+                throw client.failure;
+            }
+        }
+        return total / seconds;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = "localhost";
+        int port = 5000;
+        int binaryPort = 5001;
+        int clients = 8;
+        int depth = 32;
+        int warmup = 3;
+        int duration = 10;
+        long seed = 1;
+
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                host = arg.substring(7);
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring(7));
+            } else if (arg.startsWith("--binary-port=")) {
+                binaryPort = Integer.parseInt(arg.substring(14));
+            } else if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(arg.substring(10));
+            } else if (arg.startsWith("--depth=")) {
+                depth = Integer.parseInt(arg.substring(8));
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(arg.substring(9));
+            } else if (arg.startsWith("--duration=")) {
+                duration = Integer.parseInt(arg.substring(11));
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(arg.substring(7));
+            } else {
+                System.err.println("Unknown option " + arg);
+                System.exit(1);
+            }
+        }
+        if (depth < 1) {
+            System.err.println("--depth must be at least 1");
+            System.exit(1);
+        }
+
+        ProtocolBench bench = new ProtocolBench(host, port, binaryPort, depth);
+        double text = bench.run(false, clients, warmup, duration, seed);
+        double binary = bench.run(true, clients, warmup, duration, seed);
+        System.out.printf("%d clients, pipeline depth %d, %d s per run%n%n", clients, depth, duration);
+        System.out.printf("%-8s %12s%n", "Protocol", "ops/s");
+        System.out.printf("%-8s %12.0f%n", "text", text);
+        System.out.printf("%-8s %12.0f%n", "binary", binary);
+        System.out.printf("%nbinary/text: %.2fx%n", binary / text);
+    }
+}